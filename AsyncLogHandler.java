@@ -0,0 +1,284 @@
+package Server;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * This is a logging Handler that never writes on the thread that logs. Each
+ * record is put in a slot of a fixed ring buffer, and a single writer thread
+ * takes them out in order, formats them and writes them to the log file in
+ * batches, flushing whenever it runs out of records.
+ *
+ * The ring's slots are allocated once. Claiming one is a compare-and-set on
+ * the tail, so loggers on different threads don't wait for each other, and
+ * connection events (see ConnectionLog) are written straight into the slot,
+ * so that logging a connection allocates nothing and resolves nothing on the
+ * accepting thread: the message is only built by the writer.
+ *
+ * When the ring is full, the DROP policy throws the record away and counts
+ * it, and the writer reports how many were dropped; the BLOCK policy waits
+ * for the writer to make room.
+ *
+ */
+public class AsyncLogHandler extends Handler {
+
+    /**
+     * What to do with a record when the ring buffer is full.
+     */
+    public enum Policy {
+        DROP, BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    // The kinds of slot
+    static final int RECORD = 0;        // A LogRecord
+    static final int CONNECTED = 1;     // A connection event, see ConnectionLog
+    static final int CLOSED = 2;
+    static final int REFUSED = 3;
+
+    private static final int BATCH = 256;               // Records per write
+    private static final long IDLE = 100000000L;        // Writer's nap, in nanoseconds
+
+    /**
+     * A slot of the ring. The producer fills it, then publishes it by setting
+     * sequence; the writer empties it, then frees it by advancing head.
+     */
+    private static final class Slot {
+
+        volatile long sequence;
+        int kind;
+        LogRecord record;
+        long millis;
+        Listener listener;
+        Socket socket;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();   // Next sequence to claim
+    private volatile long head = 0;                     // Next sequence to write
+    private final Policy policy;
+    private final LongAdder dropped = new LongAdder();
+    private final Writer out;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean sleeping = false;
+
+    /**
+     * Create the handler and start its writer thread, appending to the
+     * specified file.
+     *
+     * @param file
+     * @param capacity the number of records the ring holds, rounded up to a
+     * power of two
+     * @param policy
+     * @throws IOException
+     */
+    public AsyncLogHandler(String file, int capacity, Policy policy) throws IOException {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i - size + 1;  // Free, from the lap before the first
+        }
+        mask = size - 1;
+        this.policy = policy;
+        out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+        setFormatter(new SimpleFormatter());
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "AsyncLogHandler");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        // The caller is found from the stack, so it must be found here,
+        // before the record changes threads
+        record.getSourceClassName();
+        Slot slot = claim();
+        if (slot != null) {
+            slot.kind = RECORD;
+            slot.record = record;
+            publish(slot);
+        }
+    }
+
+    /**
+     * Log a connection event for the ConnectionLog. Only references are
+     * stored: the message is built by the writer.
+     */
+    void connection(int kind, Listener listener, Socket socket) {
+        Slot slot = claim();
+        if (slot != null) {
+            slot.kind = kind;
+            slot.millis = System.currentTimeMillis();
+            slot.listener = listener;
+            slot.socket = socket;
+            publish(slot);
+        }
+    }
+
+    /**
+     * Claim the next slot, or return null if the record is dropped.
+     */
+    private Slot claim() {
+        for (;;) {
+            long seq = tail.get();
+            if (seq - head >= slots.length) {
+                // Full
+                if (policy == Policy.DROP || !running) {
+                    dropped.increment();
+                    return null;
+                }
+                wake();
+                LockSupport.parkNanos(10000);
+                continue;
+            }
+            if (tail.compareAndSet(seq, seq + 1)) {
+                return slots[(int) (seq & mask)];
+            }
+        }
+    }
+
+    private void publish(Slot slot) {
+        // The slot's sequence is the one claimed, plus one once published
+        slot.sequence = slot.sequence + slots.length;
+        if (sleeping) {
+            wake();
+        }
+    }
+
+    private void wake() {
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * The writer thread's body: write what has been published, in batches,
+     * until close().
+     */
+    private void write() {
+        StringBuilder batch = new StringBuilder(16 * 1024);
+        Map<Listener, long[]> counts = new IdentityHashMap<Listener, long[]>();
+        long nextReport = System.nanoTime() + ConnectionLog.getInterval() * 1000000L;
+        for (;;) {
+            int n = 0;
+            long h = head;
+            Slot slot;
+            while (n < BATCH && (slot = slots[(int) (h & mask)]).sequence == h + 1) {
+                format(slot, batch);
+                slot.record = null;
+                slot.listener = null;
+                slot.socket = null;
+                head = ++h;
+                n++;
+            }
+            if (System.nanoTime() - nextReport >= 0) {
+                report(batch, counts);
+                nextReport = System.nanoTime() + ConnectionLog.getInterval() * 1000000L;
+            }
+            try {
+                if (batch.length() > 0) {
+                    out.write(batch.toString());
+                    batch.setLength(0);
+                }
+                if (n < BATCH) {
+                    // Caught up: flush, and wait for more
+                    out.flush();
+                    if (!running && head == tail.get()) {
+                        break;
+                    }
+                    sleeping = true;
+                    if (slots[(int) (head & mask)].sequence != head + 1) {
+                        LockSupport.parkNanos(IDLE);
+                    }
+                    sleeping = false;
+                }
+            } catch (IOException e) {
+                reportError(null, e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    private void format(Slot slot, StringBuilder batch) {
+        LogRecord record = slot.kind == RECORD ? slot.record
+                : ConnectionLog.record(slot.kind, slot.listener, slot.socket, slot.millis);
+        try {
+            batch.append(getFormatter().format(record));
+        } catch (RuntimeException e) {
+            reportError(null, e, ErrorManager.FORMAT_FAILURE);
+        }
+    }
+
+    /**
+     * Write the periodic lines: how many records were dropped, and the
+     * connection counts when they are aggregated.
+     */
+    private void report(StringBuilder batch, Map<Listener, long[]> counts) {
+        long n = dropped.sumThenReset();
+        if (n > 0) {
+            LogRecord record = new LogRecord(Level.WARNING,
+                    n + " log records dropped: the log buffer was full");
+            record.setLoggerName(AsyncLogHandler.class.getName());
+            batch.append(getFormatter().format(record));
+        }
+        for (LogRecord record : ConnectionLog.aggregate(counts)) {
+            batch.append(getFormatter().format(record));
+        }
+    }
+
+    /**
+     * The number of records dropped since the writer last reported them.
+     *
+     * @return
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void flush() {
+        wake();
+    }
+
+    /**
+     * Write everything published so far, and close the file.
+     */
+    @Override
+    public void close() {
+        running = false;
+        wake();
+        try {
+            writer.join();
+            out.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+}
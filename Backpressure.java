@@ -0,0 +1,32 @@
+package Server;
+
+/**
+ * What a connection does when its client reads slower than its service
+ * writes, and more than the high water mark of output waits to be sent. It
+ * goes back to normal once the output is back under the low water mark.
+ *
+ * Output only waits in the server's memory with the NIO engine. With the
+ * other engines the socket's send buffer is the only queue, and a service
+ * writing to a slow client blocks in write(), so every policy is BLOCK
+ * there: the write timeout, if any, is the deadline.
+ *
+ */
+public enum Backpressure {
+
+    /**
+     * Stop reading from the client, so that a service that answers requests
+     * stops producing answers, until the client catches up. A service thread
+     * writing through a stream waits, as it has no other choice, but for no
+     * deadline.
+     */
+    PAUSE_READ,
+    /**
+     * Like PAUSE_READ, but a connection stalled for longer than the write
+     * timeout is closed.
+     */
+    BLOCK,
+    /**
+     * Close the connection as soon as it goes over the high water mark.
+     */
+    DISCONNECT
+}
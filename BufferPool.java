@@ -0,0 +1,393 @@
+package Server;
+
+import java.io.PrintWriter;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The direct ByteBuffers of all connections come from this pool, and go back
+ * to it when their connection ends, so that a busy server stops allocating
+ * them once it has as many as its connections use at once.
+ *
+ * Buffers come in size classes, powers of two from MIN_SIZE to MAX_SIZE: a
+ * request is served from the smallest class that fits it, and larger ones
+ * are allocated outside the pool. The buffers of a class are carved out of
+ * slabs of SLAB_SIZE bytes, each one direct allocation, and kept in a shared
+ * free list. A thread that borrows buffers also keeps a few of each class
+ * for itself, which it takes back first, without touching the shared list.
+ * Only threads that borrow get such a cache, so that a thread that merely
+ * releases, a Connection thread at its end for instance, puts the buffers
+ * back in the shared lists; and what is left in the cache of a thread that
+ * has ended is taken back into them when a list runs dry.
+ *
+ * With the server.buffers.debug system property set, every borrowed buffer
+ * is tracked with where it was borrowed: a buffer released twice, or
+ * garbage collected without being released, is logged with that stack.
+ *
+ */
+public final class BufferPool {
+
+    public static final String DEBUG_PROPERTY = "server.buffers.debug";
+    public static final int MIN_SIZE = 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+    public static final int SLAB_SIZE = 1024 * 1024;
+    private static final int CACHE_SIZE = 16;       // Buffers per class per thread
+    private static final long RECLAIM_INTERVAL = 10; // milliseconds between looks at the caches
+    private static final boolean DEBUG = Boolean.getBoolean(DEBUG_PROPERTY);
+    private static final Logger LOGGER = Logger.getLogger(BufferPool.class.getName());
+    private static BufferPool shared;
+
+    /**
+     * The buffers of one size.
+     */
+    private static final class SizeClass {
+
+        final int size;
+        final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+        private ByteBuffer slab;    // What is left of the current slab
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        /**
+         * A new buffer from the current slab, or a new one.
+         */
+        synchronized ByteBuffer carve(LongAdder slabs) {
+            if (slab == null || slab.remaining() < size) {
+                slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, size));
+                slabs.increment();
+            }
+            int p = slab.position();
+            slab.limit(p + size);
+            ByteBuffer b = slab.slice();
+            slab.position(p + size).limit(slab.capacity());
+            return b;
+        }
+    }
+
+    /**
+     * A thread's own buffers, by class.
+     */
+    private static final class Cache {
+
+        final Thread owner;
+        final ArrayDeque<ByteBuffer>[] buffers;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})    // No generic arrays
+        Cache(int classes) {
+            owner = Thread.currentThread();
+            buffers = new ArrayDeque[classes];
+            for (int i = 0; i < classes; i++) {
+                buffers[i] = new ArrayDeque<ByteBuffer>(CACHE_SIZE);
+            }
+        }
+    }
+
+    /**
+     * A borrowed buffer, in debug mode.
+     */
+    private static final class Tracked extends WeakReference<ByteBuffer> {
+
+        final Throwable borrowedAt;
+        final int key;
+
+        Tracked(ByteBuffer b, ReferenceQueue<ByteBuffer> queue) {
+            super(b, queue);
+            this.key = System.identityHashCode(b);
+            this.borrowedAt = new Throwable("Buffer of " + b.capacity()
+                    + " bytes borrowed by " + Thread.currentThread().getName());
+        }
+    }
+
+    private final SizeClass[] classes;
+    private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>();
+    private final List<Cache> allCaches = new ArrayList<Cache>();  // Locked
+    private volatile long reclaimed;    // When the caches were last looked at
+    final LongAdder borrowed = new LongAdder();
+    final LongAdder released = new LongAdder();
+    final LongAdder hits = new LongAdder();         // Borrowed from a cache or the free list
+    final LongAdder unpooled = new LongAdder();     // Too large for any class
+    final LongAdder slabs = new LongAdder();
+    final LongAdder leaks = new LongAdder();        // Found in debug mode
+    private final Map<Integer, Tracked[]> tracked = new HashMap<Integer, Tracked[]>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+    public BufferPool() {
+        int n = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+        classes = new SizeClass[n];
+        for (int i = 0; i < n; i++) {
+            classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    /**
+     * The pool shared by the whole process.
+     *
+     * @return
+     */
+    public static synchronized BufferPool getShared() {
+        if (shared == null) {
+            shared = new BufferPool();
+        }
+        return shared;
+    }
+
+    /**
+     * The class serving buffers of size bytes, or -1 if none does.
+     */
+    private static int index(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1)
+                - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * A cleared direct buffer of at least size bytes, which must be given
+     * back with release() once it is no longer used.
+     *
+     * @param size
+     * @return
+     */
+    public ByteBuffer borrow(int size) {
+        borrowed.increment();
+        int i = index(size);
+        ByteBuffer b;
+        if (i < 0) {
+            unpooled.increment();
+            b = ByteBuffer.allocateDirect(size);
+        } else {
+            Cache cache = caches.get();
+            if (cache == null) {
+                cache = new Cache(classes.length);
+                caches.set(cache);
+                synchronized (allCaches) {
+                    allCaches.add(cache);
+                }
+            }
+            b = cache.buffers[i].pollLast();
+            if (b == null) {
+                b = classes[i].free.poll();
+            }
+            if (b == null && reclaim()) {
+                b = classes[i].free.poll();
+            }
+            if (b != null) {
+                hits.increment();
+            } else {
+                b = classes[i].carve(slabs);
+            }
+        }
+        if (DEBUG) {
+            track(b);
+        }
+        return b;
+    }
+
+    /**
+     * Give a borrowed buffer back. It must not be used afterwards.
+     *
+     * @param b
+     */
+    public void release(ByteBuffer b) {
+        if (DEBUG && !untrack(b)) {
+            return;
+        }
+        released.increment();
+        int i = index(b.capacity());
+        if (i < 0 || classes[i].size != b.capacity() || !b.isDirect()) {
+            return;     // Not one of ours: left to the garbage collector
+        }
+        b.clear();
+        Cache cache = caches.get();
+        if (cache != null && cache.buffers[i].size() < CACHE_SIZE) {
+            cache.buffers[i].addLast(b);
+        } else {
+            classes[i].free.offer(b);
+        }
+    }
+
+    /**
+     * Put the buffers cached by threads that have ended back in the shared
+     * lists. Only looks every RECLAIM_INTERVAL, as many threads may have
+     * caches.
+     *
+     * @return whether it looked
+     */
+    private boolean reclaim() {
+        long now = System.currentTimeMillis();
+        if (now - reclaimed < RECLAIM_INTERVAL) {
+            return false;
+        }
+        reclaimed = now;
+        synchronized (allCaches) {
+            for (Iterator<Cache> i = allCaches.iterator(); i.hasNext();) {
+                Cache cache = i.next();
+                if (cache.owner.isAlive()) {
+                    continue;
+                }
+                // The owner is gone, so nobody else touches its cache
+                i.remove();
+                for (int j = 0; j < classes.length; j++) {
+                    classes[j].free.addAll(cache.buffers[j]);
+                }
+            }
+        }
+        return true;
+    }
+
+    private synchronized void track(ByteBuffer b) {
+        reportLeaks();
+        Tracked t = new Tracked(b, collected);
+        Tracked[] same = tracked.get(t.key);
+        if (same == null) {
+            tracked.put(t.key, new Tracked[]{t});
+        } else {
+            Tracked[] more = new Tracked[same.length + 1];
+            System.arraycopy(same, 0, more, 0, same.length);
+            more[same.length] = t;
+            tracked.put(t.key, more);
+        }
+    }
+
+    /**
+     * Forget a buffer being released.
+     *
+     * @return false if it was not borrowed, or released already
+     */
+    private synchronized boolean untrack(ByteBuffer b) {
+        reportLeaks();
+        int key = System.identityHashCode(b);
+        Tracked[] same = tracked.get(key);
+        for (int j = 0; same != null && j < same.length; j++) {
+            if (same[j].get() == b) {
+                remove(same[j]);
+                return true;
+            }
+        }
+        LOGGER.log(Level.SEVERE, "Buffer of " + b.capacity()
+                + " bytes released but not borrowed, or released twice",
+                new Throwable("Released by " + Thread.currentThread().getName()));
+        return false;
+    }
+
+    private void remove(Tracked t) {
+        Tracked[] same = tracked.get(t.key);
+        if (same == null) {
+            return;
+        }
+        int n = 0;
+        Tracked[] rest = new Tracked[same.length - 1];
+        for (Tracked s : same) {
+            if (s != t) {
+                if (n == rest.length) {
+                    return;     // Not there
+                }
+                rest[n++] = s;
+            }
+        }
+        if (rest.length == 0) {
+            tracked.remove(t.key);
+        } else {
+            tracked.put(t.key, rest);
+        }
+    }
+
+    /**
+     * Log the buffers collected while still borrowed. Holds the lock.
+     */
+    private void reportLeaks() {
+        Tracked t;
+        while ((t = (Tracked) collected.poll()) != null) {
+            Tracked[] same = tracked.get(t.key);
+            boolean borrowed = false;
+            for (int j = 0; same != null && j < same.length; j++) {
+                borrowed |= same[j] == t;
+            }
+            if (borrowed) {
+                remove(t);
+                leaks.increment();
+                LOGGER.log(Level.SEVERE, "Buffer garbage collected without being released",
+                        t.borrowedAt);
+            }
+        }
+    }
+
+    /**
+     * The buffers borrowed and not released yet, leaving out those found
+     * leaked in debug mode.
+     *
+     * @return
+     */
+    public long getOutstanding() {
+        return borrowed.sum() - released.sum() - leaks.sum();
+    }
+
+    /**
+     * The share of borrowed buffers that were reused rather than allocated.
+     *
+     * @return
+     */
+    public double getHitRate() {
+        long b = borrowed.sum();
+        return b == 0 ? 0 : (double) hits.sum() / b;
+    }
+
+    /**
+     * The buffers waiting in the shared free lists; those in the threads'
+     * caches are not counted.
+     */
+    private long free() {
+        long n = 0;
+        for (SizeClass c : classes) {
+            for (Iterator<ByteBuffer> i = c.free.iterator(); i.hasNext(); i.next()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Display the pool's counters, in the style of Server.displayStatus().
+     *
+     * @param out
+     */
+    public void displayStatus(PrintWriter out) {
+        out.print(String.format("BUFFERS %d BORROWED, %d OUTSTANDING, %.1f%% HIT, "
+                + "%d UNPOOLED, %d FREE, %d SLABS OF %d KB%s\n",
+                borrowed.sum(), getOutstanding(), 100 * getHitRate(), unpooled.sum(),
+                free(), slabs.sum(), SLAB_SIZE / 1024,
+                DEBUG ? ", " + leaks.sum() + " LEAKED" : ""));
+    }
+
+    /**
+     * Print the counters as the fields of a JSON object.
+     *
+     * @param out
+     */
+    public void printJson(PrintWriter out) {
+        out.print("\"borrowed\":" + borrowed.sum()
+                + ",\"outstanding\":" + getOutstanding()
+                + ",\"hits\":" + hits.sum()
+                + ",\"unpooled\":" + unpooled.sum()
+                + ",\"slabs\":" + slabs.sum()
+                + ",\"leaks\":" + leaks.sum());
+    }
+}
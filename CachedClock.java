@@ -0,0 +1,147 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * A clock that renders the current time once per tick, rather than once per
+ * use. The time is formatted and encoded into a byte array, between a prefix
+ * and a suffix, when the first caller after the tick asks for it; every other
+ * caller in the same tick gets the same array, ready to be written to a
+ * socket, at the cost of reading the system clock.
+ *
+ * Ticks start on multiples of the resolution since the epoch, so that with a
+ * resolution of a second a tick is a second of the wall clock. The rendered
+ * time is the time of the first call of its tick, so it is late by at most
+ * the resolution. The arrays are shared and must not be changed.
+ *
+ */
+public final class CachedClock {
+
+    public static final long DEFAULT_RESOLUTION = 1000;    // milliseconds
+
+    /**
+     * How the time is rendered.
+     */
+    public enum Format {
+        /**
+         * As Date.toString(): "Sat Oct 17 00:41:49 UTC 2026", in the default
+         * time zone.
+         */
+        DATE,
+        /**
+         * ISO-8601, in UTC: "2026-10-17T00:41:49Z".
+         */
+        ISO_8601,
+        /**
+         * RFC 1123, as HTTP dates are: "Sat, 17 Oct 2026 00:41:49 GMT".
+         */
+        RFC_1123,
+        /**
+         * Milliseconds since the epoch: "1792197709000".
+         */
+        EPOCH_MILLIS
+    }
+
+    private static final DateTimeFormatter RFC_1123 = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * The rendering of one tick.
+     */
+    private static final class Tick {
+
+        final long number;      // Its start, in resolutions since the epoch
+        final byte[] bytes;
+
+        Tick(long number, byte[] bytes) {
+            this.number = number;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Format format;
+    private final long resolution;
+    private final String prefix;
+    private final String suffix;
+    private volatile Tick tick;
+
+    /**
+     * Create a clock rendering the time alone, once a second.
+     *
+     * @param format
+     */
+    public CachedClock(Format format) {
+        this(format, DEFAULT_RESOLUTION, "", "");
+    }
+
+    /**
+     * Create a clock rendering the time between the specified prefix and
+     * suffix, once every resolution milliseconds.
+     *
+     * @param format
+     * @param resolution
+     * @param prefix
+     * @param suffix
+     */
+    public CachedClock(Format format, long resolution, String prefix, String suffix) {
+        if (resolution < 1) {
+            throw new IllegalArgumentException("Bad resolution: " + resolution);
+        }
+        this.format = format;
+        this.resolution = resolution;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        long now = System.currentTimeMillis();
+        this.tick = new Tick(now / resolution, render(now));
+    }
+
+    /**
+     * The current time, rendered.
+     *
+     * @return a shared array, not to be changed
+     */
+    public byte[] bytes() {
+        Tick t = tick;
+        long now = System.currentTimeMillis();
+        long number = now / resolution;
+        if (number != t.number) {
+            // A new tick, or the clock went back. Callers racing here render
+            // the same tick, and any of their renderings will do.
+            t = new Tick(number, render(now));
+            tick = t;
+        }
+        return t.bytes;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    private byte[] render(long millis) {
+        String time;
+        switch (format) {
+            case ISO_8601:
+                time = Instant.ofEpochMilli(millis - millis % Math.min(resolution, 1000)).toString();
+                break;
+            case RFC_1123:
+                time = RFC_1123.format(Instant.ofEpochMilli(millis));
+                break;
+            case EPOCH_MILLIS:
+                time = Long.toString(millis);
+                break;
+            default:
+                time = new Date(millis).toString();
+                break;
+        }
+        return (prefix + time + suffix).getBytes(StandardCharsets.US_ASCII);
+    }
+}
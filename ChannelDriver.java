@@ -0,0 +1,288 @@
+package Server;
+
+import Server.interfaces.ChannelService;
+import Server.interfaces.ChannelSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This class runs a ChannelService over blocking channels, on the calling
+ * thread: it reads from the client into a direct buffer, the one the
+ * Listener borrowed for the connection if any, hands the buffer to the
+ * service, and writes whatever the service writes straight to the client.
+ * Nothing is queued: a slow client blocks the service's writes, which the
+ * Listener's write timeout bounds. While the service has suspended its
+ * input, the client is not read.
+ * The Listener uses it to serve a ChannelService on a Connection thread, a
+ * virtual thread or a pooled worker, without wrapping the socket in streams.
+ *
+ */
+public final class ChannelDriver implements ChannelSession {
+
+    public static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ChannelService service;
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final SocketAddress remote;
+    private final ServiceMetrics metrics;   // Where to count, or null
+    private final ConnectionInfo info;      // Where to record activity, or null
+    private volatile boolean closed = false;
+    private boolean suspended = false;      // Not reading, until the service resumes
+    private volatile Object attachment;
+
+    private ChannelDriver(ChannelService service, ReadableByteChannel in,
+            WritableByteChannel out, SocketAddress remote, ServiceMetrics metrics,
+            ConnectionInfo info) {
+        this.service = service;
+        this.in = in;
+        this.out = out;
+        this.remote = remote;
+        this.metrics = metrics;
+        this.info = info;
+    }
+
+    /**
+     * Serve a client connected through a blocking SocketChannel, until either
+     * side closes the connection.
+     *
+     * @param service
+     * @param channel
+     * @throws IOException
+     */
+    public static void serve(ChannelService service, SocketChannel channel)
+            throws IOException {
+        serve(service, channel, null);
+    }
+
+    /**
+     * Serve a client connected through a blocking SocketChannel, counting
+     * bytes and reads in the specified metrics.
+     *
+     * @param service
+     * @param channel
+     * @param metrics
+     * @throws IOException
+     */
+    public static void serve(ChannelService service, SocketChannel channel,
+            ServiceMetrics metrics) throws IOException {
+        serve(service, channel, metrics, null);
+    }
+
+    /**
+     * Serve a Listener's connection, counting in its metrics and recording
+     * the connection's activity for its timeouts.
+     */
+    static void serve(ChannelService service, SocketChannel channel,
+            ServiceMetrics metrics, ConnectionInfo info) throws IOException {
+        serve(service, channel, channel.getRemoteAddress(), metrics, info);
+    }
+
+    /**
+     * Serve a Listener's connection through the specified channel, a
+     * TlsChannel for instance.
+     */
+    static void serve(ChannelService service, ByteChannel channel, SocketAddress remote,
+            ServiceMetrics metrics, ConnectionInfo info) throws IOException {
+        new ChannelDriver(service, channel, channel, remote, metrics, info).run();
+    }
+
+    /**
+     * Serve a client through a pair of blocking channels, until either side
+     * closes the connection.
+     *
+     * @param service
+     * @param in
+     * @param out
+     * @param remote the client's address, or null
+     * @throws IOException
+     */
+    public static void serve(ChannelService service, ReadableByteChannel in,
+            WritableByteChannel out, SocketAddress remote) throws IOException {
+        new ChannelDriver(service, in, out, remote, null, null).run();
+    }
+
+    private void run() throws IOException {
+        // A Listener's connection comes with a buffer from the pool
+        ByteBuffer buffer = info != null ? info.takeBuffer() : null;
+        boolean pooled = buffer != null;
+        if (!pooled) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        try {
+            service.open(this);
+            while (!closed) {
+                if (!awaitInput()) {
+                    break;
+                }
+                int n;
+                if (info != null) {
+                    info.waiting();
+                }
+                try {
+                    n = in.read(buffer);
+                } catch (IOException e) {
+                    if (closed) {
+                        break;  // close() was called while we were reading
+                    }
+                    throw e;
+                } finally {
+                    if (info != null) {
+                        info.received();
+                    }
+                }
+                if (n < 0) {
+                    break;
+                }
+                buffer.flip();
+                if (metrics != null) {
+                    metrics.bytesIn.add(n);
+                    long start = System.nanoTime();
+                    service.read(this, buffer);
+                    metrics.read(start);
+                } else {
+                    service.read(this, buffer);
+                }
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    throw new IOException("Service " + service.getClass().getName()
+                            + " left its input buffer full");
+                }
+            }
+        } finally {
+            closed = true;
+            try {
+                service.close(this);
+                out.close();
+                in.close();
+            } finally {
+                if (pooled) {
+                    info.releaseBuffer();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait while the service has suspended its input.
+     *
+     * @return false if the session was closed meanwhile
+     */
+    private synchronized boolean awaitInput() throws InterruptedIOException {
+        while (suspended && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        return !closed;
+    }
+
+    @Override
+    public synchronized void suspendInput() {
+        suspended = true;
+    }
+
+    @Override
+    public synchronized void resumeInput() {
+        suspended = false;
+        notifyAll();
+    }
+
+    @Override
+    public void write(ByteBuffer... srcs) throws IOException {
+        if (metrics != null) {
+            for (ByteBuffer src : srcs) {
+                metrics.bytesOut.add(src.remaining());
+            }
+        }
+        if (info != null) {
+            info.writing();
+        }
+        try {
+            if (out instanceof GatheringByteChannel) {
+                GatheringByteChannel gather = (GatheringByteChannel) out;
+                for (int i = 0; i < srcs.length;) {
+                    gather.write(srcs, i, srcs.length - i);
+                    while (i < srcs.length && !srcs[i].hasRemaining()) {
+                        i++;
+                    }
+                }
+            } else {
+                for (ByteBuffer src : srcs) {
+                    while (src.hasRemaining()) {
+                        out.write(src);
+                    }
+                }
+            }
+        } finally {
+            if (info != null) {
+                info.written();
+            }
+        }
+    }
+
+    @Override
+    public void transfer(FileChannel file, long position, long count, Runnable done)
+            throws IOException {
+        if (metrics != null) {
+            metrics.bytesOut.add(count);
+        }
+        if (info != null) {
+            info.writing();
+        }
+        try {
+            while (count > 0) {
+                long n = file.transferTo(position, count, out);
+                if (n <= 0 && position >= file.size()) {
+                    throw new EOFException("File truncated during transfer");
+                }
+                position += n;
+                count -= n;
+            }
+        } finally {
+            if (info != null) {
+                info.written();
+            }
+        }
+        if (done != null) {
+            done.run();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Everything written has already been sent, so the channel can go
+        // now; this also wakes the driver if it is blocked reading
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        in.close();
+    }
+
+    @Override
+    public Object attachment() {
+        return attachment;
+    }
+
+    @Override
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remote;
+    }
+}
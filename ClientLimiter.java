@@ -0,0 +1,226 @@
+package Server;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class limits what each client address may take from the server: how
+ * many connections it may have open at once, and, with a token bucket, how
+ * fast it may open new ones. The Listeners check it as soon as a socket is
+ * accepted, and a client over its limits is closed there, before any
+ * Connection is made for it.
+ *
+ * The clients are kept in a fixed number of stripes, each a small map in
+ * least-recently-used order under a lock of its own, so accepts from
+ * different clients rarely wait for each other, and the number of clients
+ * remembered is bounded: when a stripe is full, it forgets a client with no
+ * connections open, or, failing that, its least recently seen one. An address
+ * scan can therefore not use up the server's memory, at worst making it
+ * forget a few clients' counts.
+ *
+ */
+public class ClientLimiter {
+
+    public static final int DEFAULT_CAPACITY = 65536;  // Clients remembered
+    private static final int STRIPES = 64;
+    private static final int EVICTION_SCAN = 8;
+
+    /**
+     * Why a client was turned away, or OK.
+     */
+    static final int OK = 0;
+    static final int OVER_CAP = 1;
+    static final int OVER_RATE = 2;
+
+    /**
+     * What is known of one address. Guarded by its stripe's lock.
+     */
+    private static final class Client {
+
+        int connections;
+        double tokens = Double.POSITIVE_INFINITY; // Full, whatever the burst
+        long refilled;      // System.nanoTime() of the last refill
+    }
+
+    /**
+     * A map of clients in access order, bounded.
+     */
+    @SuppressWarnings("serial")     // Never serialized
+    private static final class Stripe extends LinkedHashMap<InetAddress, Client> {
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        /**
+         * The client for the address, remembered if it wasn't.
+         */
+        Client get(InetAddress address, long now) {
+            Client c = super.get(address);
+            if (c == null) {
+                if (size() >= capacity) {
+                    evict();
+                }
+                c = new Client();
+                c.refilled = now;
+                put(address, c);
+            }
+            return c;
+        }
+
+        private void evict() {
+            Iterator<Map.Entry<InetAddress, Client>> i = entrySet().iterator();
+            for (int n = 0; i.hasNext() && n < EVICTION_SCAN; n++) {
+                if (i.next().getValue().connections == 0) {
+                    i.remove();
+                    return;
+                }
+            }
+            i = entrySet().iterator();
+            i.next();
+            i.remove();
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private volatile int maxPerClient;      // Connections open at once, 0 for no limit
+    private volatile double rate;           // New connections per second, 0 for no limit
+    private volatile double burst;          // Of the token bucket
+    final LongAdder overCap = new LongAdder();
+    final LongAdder overRate = new LongAdder();
+
+    public ClientLimiter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a limiter with no limits yet, remembering up to capacity
+     * clients.
+     *
+     * @param capacity
+     */
+    public ClientLimiter(int capacity) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(capacity / STRIPES, EVICTION_SCAN));
+        }
+    }
+
+    /**
+     * Change the limits. 0 means no limit. Turning both off forgets every
+     * client; turning them on only counts the connections opened from then
+     * on.
+     *
+     * @param maxPerClient connections open at once from one address
+     * @param rate new connections per second from one address
+     * @param burst new connections one address may open at once, if it has
+     * opened none for a while; at least 1 when there is a rate
+     */
+    public synchronized void setLimits(int maxPerClient, double rate, double burst) {
+        if (maxPerClient < 0 || rate < 0 || burst < 0) {
+            throw new IllegalArgumentException("Bad limits");
+        }
+        this.maxPerClient = maxPerClient;
+        this.rate = rate;
+        this.burst = Math.max(burst, rate > 0 ? 1 : 0);
+        if (!isEnabled()) {
+            for (Stripe s : stripes) {
+                synchronized (s) {
+                    s.clear();
+                }
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxPerClient > 0 || rate > 0;
+    }
+
+    /**
+     * Count a new connection from the address, if it is within its limits.
+     *
+     * @param address
+     * @return OK if it was admitted and must later be released, or why not
+     */
+    int admit(InetAddress address) {
+        int max = maxPerClient;
+        double r = rate;
+        double b = burst;
+        long now = System.nanoTime();
+        Stripe s = stripe(address);
+        synchronized (s) {
+            Client c = s.get(address, now);
+            if (max > 0 && c.connections >= max) {
+                overCap.increment();
+                return OVER_CAP;
+            }
+            if (r > 0) {
+                c.tokens = Math.min(b, c.tokens + (now - c.refilled) * r / 1e9);
+                c.refilled = now;
+                if (c.tokens < 1) {
+                    overRate.increment();
+                    return OVER_RATE;
+                }
+                c.tokens -= 1;
+            } else {
+                c.tokens = Double.POSITIVE_INFINITY;
+            }
+            c.connections++;
+            return OK;
+        }
+    }
+
+    /**
+     * A connection admitted from the address has ended.
+     *
+     * @param address
+     */
+    void release(InetAddress address) {
+        Stripe s = stripe(address);
+        synchronized (s) {
+            Client c = s.get(address);
+            if (c != null && c.connections > 0) {
+                c.connections--;
+            }
+        }
+    }
+
+    private Stripe stripe(InetAddress address) {
+        int h = address.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * The number of clients remembered.
+     *
+     * @return
+     */
+    public int getClients() {
+        int n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                n += s.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Display the limits and how often they were hit, in the style of
+     * Server.displayStatus().
+     *
+     * @param out
+     */
+    public void displayStatus(PrintWriter out) {
+        out.print("CLIENT LIMITS " + (maxPerClient > 0 ? maxPerClient : "NO") + " CONNECTIONS, "
+                + (rate > 0 ? rate + "/S BURST " + burst : "NO RATE") + ", "
+                + overCap.sum() + " OVER CAP, " + overRate.sum() + " OVER RATE, "
+                + getClients() + " CLIENTS\n");
+    }
+}
@@ -0,0 +1,139 @@
+package Server;
+
+import Server.interfaces.Service;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What a Listener keeps about each of its current connections, next to the
+ * Connection itself.
+ *
+ * The times of its last activity are kept here for the Listener's timeouts:
+ * whoever moves the connection's bytes, the streams, the ChannelDriver or the
+ * NioSession, records them as they go.
+ *
+ * The client's address is kept here too, as the status shows it and filters
+ * on it without going back to the socket, and its text form is only made
+ * the first time it is shown.
+ *
+ * A connection served from its channel gets its input buffer from the
+ * BufferPool when it is admitted. The Listener holds it until endConnection(),
+ * and whoever reads into it holds it too, from takeBuffer() to releaseBuffer(),
+ * as it may still be reading when the connection ends: the buffer goes back
+ * to the pool when both are done with it.
+ *
+ */
+final class ConnectionInfo {
+
+    final long id;                  // Unique for the life of the server
+    final long opened;              // When it was admitted, in milliseconds
+    final long start;               // When it was admitted, in System.nanoTime()
+    final Service service;          // The service it was accepted for
+    final InetAddress peer;         // The client's address
+    final int peerPort;
+    final int localPort;
+    private String host;            // peer as text, once shown
+    volatile NioSession session;    // The bridge, when served by the NioEngine
+    volatile long lastActive;       // When a byte last went in or out
+    volatile long waitingSince;     // Since when the service waits for input, or 0
+    volatile long writingSince;     // Since when the client holds up output, or 0
+    volatile int queued;            // Bytes of output waiting in the server
+    volatile TimingWheel.Timeout timeout; // The next check of its timeouts
+    private final ByteBuffer buffer;    // Borrowed input buffer, or null
+    private final AtomicInteger holders = new AtomicInteger(1); // The Listener, and the reader
+
+    ConnectionInfo(long id, Socket s, Service service, ByteBuffer buffer) {
+        this.id = id;
+        this.buffer = buffer;
+        this.service = service;
+        this.opened = System.currentTimeMillis();
+        this.start = System.nanoTime();
+        this.lastActive = start;
+        this.peer = s.getInetAddress();
+        this.peerPort = s.getPort();
+        this.localPort = s.getLocalPort();
+    }
+
+    /**
+     * The client's address as text. Racing callers may both make it, which
+     * is harmless.
+     */
+    String host() {
+        String h = host;
+        if (h == null) {
+            h = peer != null ? peer.getHostAddress() : "?";
+            host = h;
+        }
+        return h;
+    }
+
+    /**
+     * Take the input buffer, to read the connection into it.
+     *
+     * @return the buffer, or null if there is none, or the connection has
+     * ended already
+     */
+    ByteBuffer takeBuffer() {
+        if (buffer == null) {
+            return null;
+        }
+        for (;;) {
+            int n = holders.get();
+            if (n == 0) {
+                return null;
+            }
+            if (holders.compareAndSet(n, n + 1)) {
+                return buffer;
+            }
+        }
+    }
+
+    /**
+     * Let go of the input buffer, which goes back to the pool once nobody
+     * holds it.
+     */
+    void releaseBuffer() {
+        if (buffer != null && holders.decrementAndGet() == 0) {
+            BufferPool.getShared().release(buffer);
+        }
+    }
+
+    /**
+     * Bytes went in or out.
+     */
+    void active() {
+        lastActive = System.nanoTime();
+    }
+
+    /**
+     * The service starts waiting for the client's next bytes.
+     */
+    void waiting() {
+        waitingSince = System.nanoTime();
+    }
+
+    /**
+     * The service got the bytes it was waiting for, or gave up on them.
+     */
+    void received() {
+        waitingSince = 0;
+        lastActive = System.nanoTime();
+    }
+
+    /**
+     * A write starts, which the client may hold up.
+     */
+    void writing() {
+        writingSince = System.nanoTime();
+    }
+
+    /**
+     * The client has taken the output.
+     */
+    void written() {
+        writingSince = 0;
+        lastActive = System.nanoTime();
+    }
+}
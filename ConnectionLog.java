@@ -0,0 +1,217 @@
+package Server;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * This class logs the connections the Listeners accept, close and refuse.
+ * These are logged on the accepting thread, once per connection, so they are
+ * kept off it as much as the mode allows:
+ *
+ * ALL logs every event. With an AsyncLogHandler installed, the event is put in
+ * its ring as is, and the address is only resolved and the message only built
+ * by its writer; without one, it is logged to the Listener's Logger, as it
+ * always was.
+ * SAMPLED logs one event in every sample rate, picked at random.
+ * AGGREGATE logs nothing per event: every interval, the AsyncLogHandler's
+ * writer logs how many connections each service accepted, closed and refused,
+ * from its ServiceMetrics.
+ * OFF logs nothing.
+ *
+ */
+public final class ConnectionLog {
+
+    /**
+     * How connection events are logged.
+     */
+    public enum Mode {
+        ALL, SAMPLED, AGGREGATE, OFF
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Listener.class.getName());
+
+    private static volatile Mode mode = Mode.ALL;
+    private static volatile int sampleRate = 100;   // One event in so many
+    private static volatile long interval = 10000;  // Between reports, in milliseconds
+    private static volatile AsyncLogHandler handler;
+
+    // The Listeners whose counts are aggregated
+    private static final Set<Listener> listeners
+            = ConcurrentHashMap.<Listener>newKeySet();
+
+    private ConnectionLog() {
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    public static void setMode(Mode mode) {
+        ConnectionLog.mode = mode;
+    }
+
+    public static int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * In SAMPLED mode, log one event in the specified number.
+     *
+     * @param rate
+     */
+    public static void setSampleRate(int rate) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("Bad sample rate: " + rate);
+        }
+        sampleRate = rate;
+    }
+
+    public static long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Set how often the dropped records and, in AGGREGATE mode, the
+     * connection counts are logged.
+     *
+     * @param millis
+     */
+    public static void setInterval(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("Bad interval: " + millis);
+        }
+        interval = millis;
+    }
+
+    /**
+     * Hand the events to the specified handler, or, if null, log them to the
+     * Listener's Logger.
+     *
+     * @param handler
+     */
+    public static void setHandler(AsyncLogHandler handler) {
+        ConnectionLog.handler = handler;
+    }
+
+    static void register(Listener listener) {
+        listeners.add(listener);
+    }
+
+    static void unregister(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    static void connected(Listener listener, Socket s) {
+        log(AsyncLogHandler.CONNECTED, listener, s);
+    }
+
+    static void closed(Listener listener, Socket s) {
+        log(AsyncLogHandler.CLOSED, listener, s);
+    }
+
+    static void refused(Listener listener, Socket s) {
+        log(AsyncLogHandler.REFUSED, listener, s);
+    }
+
+    private static void log(int kind, Listener listener, Socket s) {
+        Mode m = mode;
+        if (m == Mode.OFF || m == Mode.AGGREGATE) {
+            return;
+        }
+        if (m == Mode.SAMPLED && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        if (!LOGGER.isLoggable(Level.INFO)) {
+            return;
+        }
+        AsyncLogHandler h = handler;
+        if (h != null) {
+            h.connection(kind, listener, s);
+        } else {
+            LOGGER.log(record(kind, listener, s, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Build the record of a connection event: the one the Listener used to
+     * log itself.
+     */
+    static LogRecord record(int kind, Listener listener, Socket s, long millis) {
+        InetAddress address = s.getInetAddress();
+        String host = address != null ? address.getHostAddress() : "?";
+        LogRecord record;
+        switch (kind) {
+            case AsyncLogHandler.CONNECTED:
+                record = new LogRecord(Level.INFO,
+                        "Connected to {0}:{1} on port {2} for service {3}");
+                record.setParameters(new Object[]{host, s.getPort(), listener.port,
+                    listener.service.getClass().getName()});
+                record.setSourceMethodName("open");
+                break;
+            case AsyncLogHandler.CLOSED:
+                record = new LogRecord(Level.INFO, "Connection to {0}:{1} closed.");
+                record.setParameters(new Object[]{host, s.getPort()});
+                record.setSourceMethodName("endConnection");
+                break;
+            default:
+                record = new LogRecord(Level.INFO,
+                        "Connection refused to {0}:{1}: max connections reached.");
+                record.setParameters(new Object[]{host, s.getPort()});
+                record.setSourceMethodName("refuse");
+                break;
+        }
+        record.setLoggerName(LOGGER.getName());
+        record.setSourceClassName(Listener.class.getName());
+        record.setInstant(Instant.ofEpochMilli(millis));
+        return record;
+    }
+
+    /**
+     * In AGGREGATE mode, the records of the connections each Listener
+     * accepted, closed and refused since the last call. The counts of the
+     * last call are kept in the specified map, by its one caller.
+     */
+    static List<LogRecord> aggregate(Map<Listener, long[]> last) {
+        List<LogRecord> records = new ArrayList<LogRecord>();
+        if (mode != Mode.AGGREGATE) {
+            last.clear();
+            return records;
+        }
+        for (Iterator<Listener> i = last.keySet().iterator(); i.hasNext();) {
+            if (!listeners.contains(i.next())) {
+                i.remove();
+            }
+        }
+        for (Listener listener : listeners) {
+            ServiceMetrics m = listener.metrics;
+            long[] now = {m.accepted.sum(), m.closed.sum(), m.refused.sum()};
+            long[] then = last.put(listener, now);
+            if (then == null) {
+                then = new long[3];
+            }
+            if (now[0] == then[0] && now[1] == then[1] && now[2] == then[2]) {
+                continue;
+            }
+            LogRecord record = new LogRecord(Level.INFO,
+                    "Port {0} ({1}): {2} connected, {3} closed, {4} refused in {5} ms");
+            record.setParameters(new Object[]{listener.port,
+                listener.service.getClass().getName(),
+                now[0] - then[0], now[1] - then[1], now[2] - then[2], interval});
+            record.setLoggerName(LOGGER.getName());
+            record.setSourceClassName(Listener.class.getName());
+            records.add(record);
+        }
+        return records;
+    }
+}
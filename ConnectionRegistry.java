@@ -0,0 +1,73 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the server-wide connection count that every Listener
+ * checks against the global connection limit, and hands out connection ids.
+ * Admission is a compare-and-set on a single counter, so accepts on different
+ * ports never wait for each other; the totals are striped LongAdders since
+ * they are only ever summed for display.
+ *
+ */
+public class ConnectionRegistry {
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong nextId = new AtomicLong();
+    private volatile int maxConnections;    // The global connection limit
+    final LongAdder accepted = new LongAdder();
+    final LongAdder refused = new LongAdder();
+
+    public ConnectionRegistry(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Take a connection slot, unless the global limit has been reached.
+     *
+     * @return whether a slot was taken
+     */
+    boolean acquire() {
+        for (;;) {
+            int n = active.get();
+            if (n >= maxConnections) {
+                return false;
+            }
+            if (active.compareAndSet(n, n + 1)) {
+                accepted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a slot taken by acquire().
+     */
+    void release() {
+        active.decrementAndGet();
+    }
+
+    long nextId() {
+        return nextId.incrementAndGet();
+    }
+
+    public int getConnections() {
+        return active.get();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Change the global connection limit. Connections already admitted are
+     * not affected.
+     *
+     * @param max
+     */
+    public void setMaxConnections(int max) {
+        maxConnections = max;
+    }
+}
@@ -0,0 +1,356 @@
+package Server;
+
+import Server.interfaces.DatagramService;
+import Server.interfaces.ManagedService;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This is the Listener of a UDP port. It serves a DatagramService: each
+ * datagram that arrives is a request, answered with one datagram, with no
+ * connection, no Connection thread and no slot in the connection limits, so
+ * that clients polling a stateless service at a high rate cost as little as
+ * possible.
+ *
+ * Each of its threads waits on a Selector for its channel to be readable and
+ * then works in batches: it receives every datagram waiting, up to BATCH,
+ * into buffers it borrowed from the BufferPool once and reuses, has the
+ * service answer them all, and sends the replies. The buffers have room for
+ * one byte more than MAX_DATAGRAM, so that a request too long to be answered
+ * fills one, and is dropped and counted rather than answered cut short. A reply the socket has no
+ * room for holds up the next batch until the channel is writable again, so a
+ * flood slows down rather than loses replies the kernel would have taken.
+ *
+ * Like a Listener, it binds the port once for each acceptor with
+ * SO_REUSEPORT where the platform supports it, so that the kernel spreads the
+ * datagrams over the threads; elsewhere the threads share one channel.
+ *
+ */
+public class DatagramListener extends Thread {
+
+    public static final int BATCH = 64;     // Datagrams per wakeup at most
+
+    final DatagramService service;
+    final int port;
+    final int acceptors;
+    private final DatagramChannel[] channels;
+    private final Selector[] selectors;     // One per thread, this one first
+    private final Thread[] threads;         // The acceptors other than this thread
+    private volatile boolean stop = false;
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder replies = new LongAdder();
+    final LongAdder ignored = new LongAdder();  // Requests the service didn't answer
+    final LongAdder failed = new LongAdder();   // Requests the service failed on
+    final LongAdder oversized = new LongAdder(); // Requests over MAX_DATAGRAM, dropped
+    final LongAdder batches = new LongAdder();  // Wakeups with requests
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LatencyHistogram respondTime = new LatencyHistogram();
+    private final long started = System.nanoTime();
+
+    private static final Logger LOGGER = Logger.getLogger(DatagramListener.class.getName());
+
+    /**
+     * Bind the port, for as many threads as the options have acceptors.
+     *
+     * @param group
+     * @param port
+     * @param service
+     * @param options
+     * @throws IOException
+     */
+    public DatagramListener(ThreadGroup group, int port, DatagramService service,
+            ServiceOptions options) throws IOException {
+        super(group, "DatagramListener:" + port);
+        // Not a daemon, even when bound by a daemon thread
+        setDaemon(false);
+        this.service = service;
+        this.acceptors = options.getAcceptors();
+        channels = new DatagramChannel[acceptors > 1 && reusePort() ? acceptors : 1];
+        selectors = new Selector[acceptors];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = DatagramChannel.open();
+                if (channels.length > 1) {
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channels[i].bind(new InetSocketAddress(port));
+                channels[i].configureBlocking(false);
+                // The others must bind the same port, even if it was 0
+                port = ((InetSocketAddress) channels[i].getLocalAddress()).getPort();
+            }
+            for (int i = 0; i < selectors.length; i++) {
+                selectors[i] = Selector.open();
+                channels[i % channels.length].register(selectors[i], SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            close();
+            for (Selector s : selectors) {
+                if (s != null) {
+                    s.close();
+                }
+            }
+            throw e;
+        }
+        this.port = port;
+        threads = new Thread[acceptors - 1];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i + 1;
+            threads[i] = new Thread(group, new Runnable() {
+                @Override
+                public void run() {
+                    serve(selectors[n], channels[n % channels.length]);
+                }
+            }, "DatagramListener:" + port + ":" + n);
+            threads[i].setDaemon(false);
+        }
+    }
+
+    /**
+     * Create a DatagramListener in the thread group of the specified Server.
+     * Datagrams are served by its own threads, whatever the Server's engine.
+     */
+    DatagramListener(Server server, int port, DatagramService service, ServiceOptions options)
+            throws IOException {
+        this(server.threadGroup, port, service, options);
+    }
+
+    private static boolean reusePort() {
+        try {
+            DatagramChannel c = DatagramChannel.open();
+            try {
+                return c.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } finally {
+                c.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Start the service, then this thread, and the other acceptors with it.
+     */
+    @Override
+    public synchronized void start() {
+        if (service instanceof ManagedService) {
+            ((ManagedService) service).start();
+        }
+        super.start();
+        for (Thread t : threads) {
+            t.start();
+        }
+    }
+
+    /**
+     * Stop serving, close the port, and stop the service.
+     */
+    public void pleaseStop() {
+        stop = true;
+        for (Selector s : selectors) {
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+        close();
+        if (service instanceof ManagedService) {
+            ((ManagedService) service).stop();
+        }
+    }
+
+    private void close() {
+        for (DatagramChannel c : channels) {
+            try {
+                if (c != null) {
+                    c.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        serve(selectors[0], channels[0]);
+    }
+
+    /**
+     * The body of each thread: receive, answer and send a batch at a time
+     * until asked to stop.
+     */
+    private void serve(Selector selector, DatagramChannel channel) {
+        BufferPool pool = BufferPool.getShared();
+        ByteBuffer[] in = new ByteBuffer[BATCH];
+        ByteBuffer[] out = new ByteBuffer[BATCH];
+        SocketAddress[] clients = new SocketAddress[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            in[i] = pool.borrow(DatagramService.MAX_DATAGRAM + 1);
+            out[i] = pool.borrow(DatagramService.MAX_DATAGRAM);
+        }
+        int sent = 0;       // Replies of the batch sent so far
+        int answered = 0;   // Replies of the batch
+        try {
+            SelectionKey key = channel.keyFor(selector);
+            while (!stop) {
+                selector.select();
+                selector.selectedKeys().clear();
+                if (sent < answered) {
+                    // The last batch is still going out
+                    sent = send(channel, out, clients, sent, answered);
+                    if (sent < answered) {
+                        continue;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                answered = answer(channel, in, out, clients);
+                sent = send(channel, out, clients, 0, answered);
+                if (sent < answered) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!stop) {
+                LOGGER.log(Level.WARNING, "Datagram service on port " + port + " failed", e);
+            }
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+            for (int i = 0; i < BATCH; i++) {
+                pool.release(in[i]);
+                pool.release(out[i]);
+            }
+        }
+    }
+
+    /**
+     * Receive the datagrams waiting, up to a batch of them, and have the
+     * service answer each.
+     *
+     * @return the number of replies, at the start of out and clients
+     */
+    private int answer(DatagramChannel channel, ByteBuffer[] in, ByteBuffer[] out,
+            SocketAddress[] clients) throws IOException {
+        int received = 0;
+        while (received < BATCH) {
+            // A byte more than a request may have, to tell one too long
+            in[received].clear().limit(DatagramService.MAX_DATAGRAM + 1);
+            if ((clients[received] = channel.receive(in[received])) == null) {
+                break;
+            }
+            received++;
+        }
+        if (received == 0) {
+            return 0;
+        }
+        batches.increment();
+        requests.add(received);
+        int answered = 0;
+        for (int i = 0; i < received; i++) {
+            ByteBuffer request = in[i];
+            request.flip();
+            bytesIn.add(request.remaining());
+            if (request.remaining() > DatagramService.MAX_DATAGRAM) {
+                oversized.increment();
+                continue;
+            }
+            ByteBuffer reply = out[answered];
+            reply.clear();
+            long start = System.nanoTime();
+            try {
+                if (!service.respond(clients[i], request, reply)) {
+                    ignored.increment();
+                    continue;
+                }
+            } catch (IOException | BufferOverflowException e) {
+                failed.increment();
+                LOGGER.log(Level.FINE, "Datagram service failed", e);
+                continue;
+            } finally {
+                respondTime.record(System.nanoTime() - start);
+            }
+            reply.flip();
+            // The reply goes where its request came from
+            clients[answered++] = clients[i];
+        }
+        return answered;
+    }
+
+    /**
+     * Send the replies from the first to the last, until the socket has no
+     * more room.
+     *
+     * @return the first reply not sent
+     */
+    private int send(DatagramChannel channel, ByteBuffer[] out, SocketAddress[] clients,
+            int first, int last) throws IOException {
+        for (int i = first; i < last; i++) {
+            int n = out[i].remaining();
+            try {
+                if (channel.send(out[i], clients[i]) == 0 && n > 0) {
+                    return i;
+                }
+            } catch (IOException e) {
+                if (!channel.isOpen()) {
+                    throw e;
+                }
+                // This client can't be sent to, the others may
+                failed.increment();
+                LOGGER.log(Level.FINE, "Cannot reply to " + clients[i], e);
+                continue;
+            }
+            replies.increment();
+            bytesOut.add(n);
+        }
+        return last;
+    }
+
+    /**
+     * Display the counters, in the style of ServiceMetrics.print().
+     *
+     * @param out
+     */
+    public void print(PrintWriter out) {
+        double seconds = Math.max((System.nanoTime() - started) / 1e9, 1e-9);
+        long b = batches.sum();
+        out.printf("  DATAGRAMS %d IN (%.1f/S), %d REPLIES, %d IGNORED, %d FAILED, "
+                + "%d OVERSIZED, %.1f PER WAKEUP%n",
+                requests.sum(), requests.sum() / seconds, replies.sum(), ignored.sum(),
+                failed.sum(), oversized.sum(), b > 0 ? (double) requests.sum() / b : 0);
+        out.printf("  BYTES %d IN, %d OUT%n", bytesIn.sum(), bytesOut.sum());
+        out.print("  RESPOND ");
+        respondTime.print(out);
+    }
+
+    /**
+     * Write the counters as the fields of a JSON object, without the braces.
+     *
+     * @param out
+     */
+    public void printJson(PrintWriter out) {
+        out.print("\"requests\":" + requests.sum()
+                + ",\"replies\":" + replies.sum()
+                + ",\"ignored\":" + ignored.sum()
+                + ",\"failed\":" + failed.sum()
+                + ",\"oversized\":" + oversized.sum()
+                + ",\"batches\":" + batches.sum()
+                + ",\"bytesIn\":" + bytesIn.sum()
+                + ",\"bytesOut\":" + bytesOut.sum()
+                + ",\"respond\":");
+        respondTime.printJson(out);
+    }
+}
@@ -0,0 +1,35 @@
+package Server;
+
+/**
+ * The ways a Server can run the services registered with it. The engine is
+ * chosen once, when the Server is constructed, and applies to every port
+ * opened through Server.addService().
+ *
+ */
+public enum Engine {
+
+    /**
+     * One Listener thread blocking in accept() for each port, and one
+     * Connection thread for each client.
+     */
+    BLOCKING,
+    /**
+     * A small fixed set of event-loop threads multiplexing accept, read and
+     * write for every port with a Selector. Services are bridged onto the
+     * event loops through streams, so existing Service implementations keep
+     * working unchanged.
+     */
+    NIO,
+    /**
+     * One Listener thread blocking in accept() for each port, and one virtual
+     * thread for each client, so that mostly-idle connections cost no more
+     * than a few kilobytes of heap. Requires Java 21 or later.
+     */
+    VIRTUAL,
+    /**
+     * One Listener thread blocking in accept() for each port, and a fixed pool
+     * of maxConnections reusable worker threads. Clients beyond that wait in a
+     * bounded queue instead of being refused outright.
+     */
+    POOLED
+}
@@ -0,0 +1,170 @@
+package Server;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records a distribution of latencies, in nanoseconds, the way
+ * HdrHistogram does: values are counted in buckets whose width doubles with
+ * each power of two, each split into SUB_BUCKETS linear sub-buckets, so any
+ * recorded value is known to within 1/SUB_BUCKETS of its magnitude, from
+ * nanoseconds up to MAX_VALUE, in a fixed array of counters.
+ *
+ * Recording is lock-free and allocates nothing: any number of threads may
+ * record at once, each doing an increment on one counter. Reading percentiles
+ * while others record gives a slightly fuzzy, but consistent enough, view.
+ *
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;    // 128
+    private static final int HALF = SUB_BUCKETS / 2;
+    /**
+     * The largest value told apart from larger ones: about 2.4 hours.
+     */
+    public static final long MAX_VALUE = (1L << 43) - 1;
+    private static final int BUCKETS = 43 - SUB_BUCKET_BITS + 1;
+    private static final int LENGTH = (BUCKETS + 1) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LENGTH);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one value, in nanoseconds. Negative values count as 0, values
+     * above MAX_VALUE as MAX_VALUE.
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        long v = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+        counts.incrementAndGet(index(v));
+        total.increment();
+        sum.add(v);
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+        }
+    }
+
+    /**
+     * Add the counts of another histogram to this one.
+     *
+     * @param other
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < LENGTH; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        long v = other.max.get();
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+        }
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < LENGTH; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * The value below which the specified percentage of the recorded values
+     * fall: the highest value of the bucket holding that rank, never above
+     * the largest value recorded.
+     *
+     * @param percentile from 0 to 100
+     * @return nanoseconds, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            n += counts.get(i);
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Print the count, mean, usual percentiles and maximum, in microseconds,
+     * on one line.
+     *
+     * @param out
+     */
+    public void print(PrintWriter out) {
+        out.printf("COUNT %d MEAN %.1f P50 %.1f P90 %.1f P99 %.1f P999 %.1f MAX %.1f (US)%n",
+                getCount(), getMean() / 1000,
+                getValueAtPercentile(50) / 1000.0, getValueAtPercentile(90) / 1000.0,
+                getValueAtPercentile(99) / 1000.0, getValueAtPercentile(99.9) / 1000.0,
+                getMax() / 1000.0);
+    }
+
+    /**
+     * Print the same as print(), in microseconds, as a JSON object.
+     *
+     * @param out
+     */
+    public void printJson(PrintWriter out) {
+        out.print("{\"count\":" + getCount()
+                + ",\"mean\":" + micros(getMean())
+                + ",\"p50\":" + micros(getValueAtPercentile(50))
+                + ",\"p90\":" + micros(getValueAtPercentile(90))
+                + ",\"p99\":" + micros(getValueAtPercentile(99))
+                + ",\"p999\":" + micros(getValueAtPercentile(99.9))
+                + ",\"max\":" + micros(getMax()) + "}");
+    }
+
+    private static double micros(double nanos) {
+        return Math.round(nanos / 100) / 10.0;
+    }
+
+    private static int index(long v) {
+        // The bucket is how many times the value must be halved to fit in
+        // the sub-buckets; values below SUB_BUCKETS are in bucket 0, exactly
+        int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - (SUB_BUCKET_BITS - 1));
+        return bucket * HALF + (int) (v >>> bucket);
+    }
+
+    private static long highestEquivalent(int index) {
+        int bucket = index < SUB_BUCKETS ? 0 : index / HALF - 1;
+        long sub = index - bucket * HALF;
+        return ((sub + 1) << bucket) - 1;
+    }
+}
@@ -0,0 +1,160 @@
+package Server;
+
+import Server.interfaces.ChannelSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class frames the bytes a ChannelService receives into lines, for the
+ * line-oriented services. It scans the input buffer for newlines and hands
+ * each line to a Handler as a view of the input buffer itself, along with an
+ * output buffer to append its reply to. The replies to all the lines of a read
+ * are written to the client at once, with a single write.
+ *
+ * Nothing is allocated per line: the lines are never copied out of the input
+ * buffer, and the output buffer comes from the BufferPool when the codec is
+ * created and goes back to it on release(). A line longer than the maximum length is
+ * not buffered: the Handler is told, and the rest of the line is discarded.
+ *
+ * A LineCodec holds the state of one connection; a service creates one in
+ * open() and keeps it as the session's attachment.
+ *
+ */
+public final class LineCodec {
+
+    public static final int DEFAULT_MAX_LINE_LENGTH = 4 * 1024;
+    /**
+     * How many bytes a reply may add to the length of its line.
+     */
+    public static final int RESERVE = 64;
+
+    private static final int OUTPUT_SIZE = 16 * 1024;
+
+    /**
+     * What a line-oriented service does with each line.
+     */
+    public interface Handler {
+
+        /**
+         * Handle one line. The line is the remaining bytes of the buffer,
+         * without the terminator; the buffer's position and limit must be left
+         * as they are. The reply goes into out, which has at least the length
+         * of the line plus RESERVE bytes free.
+         *
+         * @param line
+         * @param out
+         * @return false to close the connection after this line
+         * @throws IOException
+         */
+        public boolean line(ByteBuffer line, ByteBuffer out) throws IOException;
+
+        /**
+         * A line longer than the maximum length has arrived and is being
+         * discarded. At least RESERVE bytes of out are free.
+         *
+         * @param out
+         * @return false to close the connection
+         * @throws IOException
+         */
+        public boolean overflow(ByteBuffer out) throws IOException;
+    }
+
+    private final Handler handler;
+    private final int maxLineLength;
+    private ByteBuffer out;             // The replies of the current batch
+    private final ByteBuffer[] outs;    // out, to write without varargs
+    private boolean discarding = false; // Inside a line that is too long
+
+    /**
+     * Create the codec of one connection.
+     *
+     * @param handler
+     * @param maxLineLength
+     */
+    public LineCodec(Handler handler, int maxLineLength) {
+        this.handler = handler;
+        this.maxLineLength = maxLineLength;
+        int size = Math.max(OUTPUT_SIZE, 2 * (maxLineLength + RESERVE));
+        out = BufferPool.getShared().borrow(size);
+        outs = new ByteBuffer[]{out};
+    }
+
+    /**
+     * Frame the bytes that have arrived, handle every complete line, and write
+     * the replies. Bytes of an incomplete line are left in the buffer.
+     *
+     * @param session
+     * @param in
+     * @return false if the handler closed the connection
+     * @throws IOException
+     */
+    public boolean decode(ChannelSession session, ByteBuffer in) throws IOException {
+        int limit = in.limit();
+        int start = in.position();
+        boolean open = true;
+        for (int j = start; j < limit && open; j++) {
+            if (in.get(j) != '\n') {
+                continue;
+            }
+            if (discarding) {
+                // The end of the line that was too long
+                discarding = false;
+            } else {
+                int end = (j > start && in.get(j - 1) == '\r') ? j - 1 : j;
+                if (end - start > maxLineLength) {
+                    ensure(session, RESERVE);
+                    open = handler.overflow(out);
+                } else {
+                    ensure(session, end - start + RESERVE);
+                    in.limit(end).position(start);
+                    open = handler.line(in, out);
+                    in.limit(limit);
+                }
+            }
+            start = j + 1;
+        }
+        if (open && (discarding || limit - start > maxLineLength
+                || (start == 0 && limit == in.capacity()))) {
+            // Don't keep any of a line that is too long
+            if (!discarding) {
+                discarding = true;
+                ensure(session, RESERVE);
+                open = handler.overflow(out);
+            }
+            start = limit;
+        }
+        in.position(start);
+        flush(session);
+        if (!open) {
+            session.close();
+        }
+        return open;
+    }
+
+    private void ensure(ChannelSession session, int n) throws IOException {
+        if (out.remaining() < n) {
+            flush(session);
+        }
+    }
+
+    private void flush(ChannelSession session) throws IOException {
+        out.flip();
+        if (out.hasRemaining()) {
+            session.write(outs);
+        }
+        out.clear();
+    }
+
+    /**
+     * Give the output buffer back to the pool. The codec can't be used after
+     * this.
+     */
+    public void release() {
+        ByteBuffer b = out;
+        out = null;
+        outs[0] = null;
+        if (b != null) {
+            BufferPool.getShared().release(b);
+        }
+    }
+}
@@ -1,15 +1,33 @@
 package Server;
 
+import Server.interfaces.ChannelService;
+import Server.interfaces.ManagedService;
 import Server.interfaces.Service;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 /**
  * This nested Thread subclass is a "listener". It listens for connections on a
@@ -22,17 +40,41 @@ import java.util.logging.Logger;
  */
 public class Listener extends Thread implements Iterable<Connection> {
 
-    // The set of current connections
-    private final ArrayList<Connection> connections;
-    private static int numConnections;
-    private static int maxConnections;		// The concurrent connection limit
+    // The set of current connections. Iterating it is weakly consistent:
+    // it never blocks accept() and never fails while connections churn.
+    private final Map<Connection, ConnectionInfo> connections
+            = new ConcurrentHashMap<Connection, ConnectionInfo>();
+    private final AtomicInteger numConnections = new AtomicInteger();
+    private volatile int maxConnections;	// This service's limit, 0 for none
+    private volatile long idleTimeout;     // Nanoseconds without traffic, 0 for none
+    private volatile long readTimeout;     // Nanoseconds waiting for input, 0 for none
+    private volatile long sessionTimeout;  // Nanoseconds in all, 0 for none
+    private volatile long writeTimeout;    // Nanoseconds held up by the client, 0 for none
+    private volatile long drainTimeout;    // Milliseconds left to a replaced service, 0 for none
+    volatile int lowWaterMark;     // Bytes of output waiting, per connection
+    volatile int highWaterMark;
+    volatile Backpressure backpressure; // What to do with a client over the mark
+    final SSLContext tls;          // For a TLS port, or null
+    ConnectionRegistry registry;   // The server-wide count and limit
+    ClientLimiter limiter;         // The server-wide limits per client, if any
+    final ServiceMetrics metrics = new ServiceMetrics(); // This service's counters
     ServerSocket listen_socket;    		// The socket to listen for connections
+    ServerSocketChannel channel;   // The channel behind listen_socket
+    final ServerSocketChannel[] channels; // All the sockets bound to the port
+    final int acceptors;           // The number of threads or loops accepting
+    private final Thread[] threads; // The acceptors other than this thread
+    NioEngine engine;              // The engine serving the port, if not this thread
+    Executor executor;             // Runs Connections, if not their own threads
+    WorkerPool pool;               // Queues and runs Connections, if pooled
 
     int port;                      // The port we're listening on
-    Service service;               // The service to provide on that port
+    volatile Service service;      // The service to provide to new connections
+    // Replaced services to stop once their last connection ends
+    private final Set<ManagedService> retired = ConcurrentHashMap.newKeySet();
     volatile boolean stop = false; // Whether we've been asked to stop
 
     private static final Logger LOGGER = Logger.getLogger(Listener.class.getName());
+    private static final boolean REUSE_PORT = reusePort();
 
     /**
      * The Listener constructor creates a thread for itself in the threadgroup.
@@ -47,14 +89,115 @@ public class Listener extends Thread implements Iterable<Connection> {
      */
     public Listener(ThreadGroup group, int port, Service service)
             throws IOException {
+        this(group, port, service, new ServiceOptions());
+    }
+
+    /**
+     * Create a Listener with the specified options. When more than one
+     * acceptor is asked for, the port is bound once for each with
+     * SO_REUSEPORT, if the platform supports it, and each extra acceptor is a
+     * thread of its own, started with this one.
+     *
+     * @param group
+     * @param port
+     * @param service
+     * @param options
+     * @throws java.io.IOException
+     */
+    public Listener(ThreadGroup group, int port, Service service, ServiceOptions options)
+            throws IOException {
         super(group, "Listener:" + port);
+        // Not a daemon, even when bound by a daemon thread: the acceptors
+        // keep the server running
+        setDaemon(false);
 
-        this.port = port;
         this.service = service;
-        connections = new ArrayList<Connection>();
-        listen_socket = new ServerSocket(port);
+        this.registry = new ConnectionRegistry(Integer.MAX_VALUE);
+        this.maxConnections = options.getMaxConnections();
+        setIdleTimeout(options.getIdleTimeout());
+        setReadTimeout(options.getReadTimeout());
+        setSessionTimeout(options.getSessionTimeout());
+        setWriteTimeout(options.getWriteTimeout());
+        setDrainTimeout(options.getDrainTimeout());
+        this.lowWaterMark = options.getLowWaterMark();
+        this.highWaterMark = options.getHighWaterMark();
+        this.backpressure = options.getBackpressure();
+        this.tls = options.getTls();
+        this.acceptors = options.getAcceptors();
+        channels = new ServerSocketChannel[acceptors > 1 && REUSE_PORT ? acceptors : 1];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = ServerSocketChannel.open();
+                if (channels.length > 1) {
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channels[i].bind(new InetSocketAddress(port), options.getBacklog());
+                // The others must bind the same port, even if it was 0
+                port = channels[i].socket().getLocalPort();
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel c : channels) {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            throw e;
+        }
+        this.port = port;
+        channel = channels[0];
+        listen_socket = channel.socket();
         // give it a non-zero timeout so accept() can be interrupted
         //listen_socket.setSoTimeout(600000);
+        threads = new Thread[acceptors - 1];
+        for (int i = 0; i < threads.length; i++) {
+            final ServerSocket socket = channels[(i + 1) % channels.length].socket();
+            threads[i] = new Thread(group, new Runnable() {
+                @Override
+                public void run() {
+                    accept(socket);
+                }
+            }, "Listener:" + port + ":" + (i + 1));
+            threads[i].setDaemon(false);
+        }
+        ConnectionLog.register(this);
+    }
+
+    /**
+     * Create a Listener in the thread group of the specified Server. How its
+     * connections are run follows the Server's engine: by Connection threads,
+     * by the NioEngine (in which case the Listener is registered with the
+     * engine rather than started), on virtual threads, or by the WorkerPool.
+     *
+     * @param server
+     * @param port
+     * @param service
+     * @param options
+     * @throws java.io.IOException
+     */
+    Listener(Server server, int port, Service service, ServiceOptions options)
+            throws IOException {
+        this(server.threadGroup, port, service, options);
+        this.registry = server.registry;
+        this.limiter = server.limiter;
+        this.engine = server.nioEngine;
+        this.executor = server.executor;
+        this.pool = server.workerPool;
+    }
+
+    /**
+     * Whether the platform lets several sockets bind the same port.
+     */
+    private static boolean reusePort() {
+        try {
+            ServerSocketChannel c = ServerSocketChannel.open();
+            try {
+                return c.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } finally {
+                c.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
@@ -62,13 +205,69 @@ public class Listener extends Thread implements Iterable<Connection> {
      */
     public void pleaseStop() {
         this.stop = true;              // Set the stop flag
+        ConnectionLog.unregister(this);
         this.interrupt();              // Stop blocking in accept()
+        for (Thread t : threads) {
+            t.interrupt();
+        }
         try {
-            listen_socket.close();
+            for (ServerSocketChannel c : channels) {
+                c.close();
+            }
+            if (engine != null) {
+                engine.unregister(this);
+            }
             endAllConnection();
         } // Stop listening.
         catch (IOException e) {
         }
+        stopService(service);
+        for (ManagedService s : retired) {
+            if (retired.remove(s)) {
+                s.stop();
+            }
+        }
+    }
+
+    /**
+     * Start the service, if it has anything to start, before the first
+     * client is accepted.
+     */
+    void startService() {
+        if (service instanceof ManagedService) {
+            ((ManagedService) service).start();
+        }
+    }
+
+    private static void stopService(Service s) {
+        if (s instanceof ManagedService) {
+            ((ManagedService) s).stop();
+        }
+    }
+
+    /**
+     * Stop a replaced service, if no connection is left to it.
+     */
+    private void stopIfIdle(ManagedService s) {
+        for (ConnectionInfo info : connections.values()) {
+            if (info.service == s) {
+                return;
+            }
+        }
+        if (retired.remove(s)) {
+            s.stop();
+        }
+    }
+
+    /**
+     * Start this thread, and the other acceptors with it.
+     */
+    @Override
+    public synchronized void start() {
+        super.start();
+        for (Thread t : threads) {
+            t.start();
+        }
     }
 
     /**
@@ -79,9 +278,16 @@ public class Listener extends Thread implements Iterable<Connection> {
      */
     @Override
     public void run() {
+        accept(listen_socket);
+    }
+
+    /**
+     * The body of each acceptor: accept from the socket until asked to stop.
+     */
+    private void accept(ServerSocket socket) {
         while (!stop) {      // loop until we're asked to stop.
             try {
-                Socket client = listen_socket.accept();
+                Socket client = socket.accept();
                 addConnection(client, service);
             } catch (InterruptedIOException e) {
             } catch (IOException e) {
@@ -95,123 +301,583 @@ public class Listener extends Thread implements Iterable<Connection> {
      * connection from a client. It either creates a Connection object for the
      * connection and adds it to the list of current connections, or, if the
      * limit on connections has been reached, it closes the connection.
+     * Clients over their own limits are dropped first of all, before anything
+     * is made for them.
      *
      * @param s
      * @param service
      */
-    protected synchronized void addConnection(Socket s, Service service) {
-        // If the connection limit has been reached
-        if (numConnections >= maxConnections) {
+    protected void addConnection(Socket s, Service service) {
+        if (!admit(s)) {
+            return;
+        }
+        if (pool != null) {
+            // Let it wait in the pool's queue until a worker is free
+            pool.submit(this, s, service);
+        } else if (!acquire()) {
+            // If the connection limit has been reached
+            refuse(s);
+        } else if (engine != null) {
+            // Otherwise, if the limit has not been reached, let the engine
+            // bridge it onto its event loops
+            Connection c = open(s, service);
             try {
-                // Then tell the client it is being rejected.
-                PrintWriter out = new PrintWriter(s.getOutputStream());
-                out.print("Connection refused; "
-                        + "the server is busy; please try again later.\n");
-                out.flush();
-                // And close the connection to the rejected client.
-                s.close();
-                // And log it, of course
-                LOGGER.log(Level.INFO, "Connection refused to {0}:{1}: max connections reached.",
-                        new Object[]{s.getInetAddress().getHostAddress(), s.getPort()});
+                engine.open(this, c);
             } catch (IOException e) {
-
+                try {
+                    endConnection(c);
+                } catch (IOException ex) {
+                }
             }
         } else {
             // Otherwise, if the limit has not been reached
-            // Create a Connection thread to handle this connection
-            Connection c = new Connection(this, s, service);
-            numConnections++;
+            Connection c = open(s, service);
 
-            // Add it to the list of current connections
-            connections.add(c);
+            // And start the Connection thread to provide the service
+            if (executor != null) {
+                executor.execute(c);
+            } else {
+                c.start();
+            }
+        }
+    }
 
-            // Log this new connection
-            LOGGER.log(Level.INFO, "Connected to {0}:{1} on port {2} for service {3}",
-                    new Object[]{
-                        s.getInetAddress().getHostAddress(),
-                        s.getPort(), s.getLocalPort(),
-                        service.getClass().getName()
-                    });
+    /**
+     * Check the client against the ClientLimiter, and drop it at once if it
+     * is over its limits: no message, and a reset rather than a close, so
+     * that a flood costs as little as possible.
+     */
+    private boolean admit(Socket s) {
+        if (limiter == null || !limiter.isEnabled()
+                || limiter.admit(s.getInetAddress()) == ClientLimiter.OK) {
+            return true;
+        }
+        registry.refused.increment();
+        metrics.refused.increment();
+        metrics.limited.increment();
+        try {
+            s.setSoLinger(true, 0);
+            s.close();
+        } catch (IOException e) {
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Client " + s.getInetAddress().getHostAddress()
+                    + " over its limits on port " + port);
+        }
+        return false;
+    }
 
-            // And start the Connection thread to provide the service
-            c.start();
+    /**
+     * Give back the client's count in the ClientLimiter, once its socket is
+     * done with, whichever way.
+     */
+    private void release(Socket s) {
+        if (limiter != null && limiter.isEnabled()) {
+            limiter.release(s.getInetAddress());
+        }
+    }
+
+    /**
+     * Take a slot under both this service's limit and the global one.
+     */
+    private boolean acquire() {
+        for (;;) {
+            int n = numConnections.get();
+            int max = maxConnections;
+            if (max > 0 && n >= max) {
+                return false;
+            }
+            if (numConnections.compareAndSet(n, n + 1)) {
+                break;
+            }
+        }
+        if (!registry.acquire()) {
+            numConnections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Create a Connection to handle this socket and add it to the list of
+     * current connections. Called once a slot has been acquired.
+     */
+    private Connection open(Socket s, Service service) {
+        // A ChannelService reads into a pooled buffer; streams have their own
+        ConnectionInfo info = new ConnectionInfo(registry.nextId(), s, service,
+                service instanceof ChannelService && s.getChannel() != null
+                ? BufferPool.getShared().borrow(ChannelDriver.BUFFER_SIZE) : null);
+        Connection c = new Connection(this, s,
+                engine != null ? service : direct(s, service, info));
+
+        // Add it to the list of current connections
+        connections.put(c, info);
+        metrics.accepted.increment();
+
+        // Start watching its timeouts, if it has any
+        long first = earliest(earliest(idleTimeout, readTimeout),
+                earliest(sessionTimeout, writeTimeout));
+        if (first > 0) {
+            schedule(c, info, first);
+        }
+
+        // Log this new connection
+        ConnectionLog.connected(this, s);
+        return c;
+    }
+
+    /**
+     * Tell the client it is being rejected and close the socket.
+     *
+     * @param s
+     */
+    void refuse(Socket s) {
+        release(s);
+        registry.refused.increment();
+        metrics.refused.increment();
+        try {
+            // Then tell the client it is being rejected.
+            PrintWriter out = new PrintWriter(s.getOutputStream());
+            out.print("Connection refused; "
+                    + "the server is busy; please try again later.\n");
+            out.flush();
+            // And close the connection to the rejected client.
+            s.close();
+            // And log it, of course
+            ConnectionLog.refused(this, s);
+        } catch (IOException e) {
+
+        }
+    }
+
+    /**
+     * The WorkerPool calls this method on one of its workers once the socket
+     * has made it through the queue. It serves the connection on the calling
+     * thread.
+     *
+     * @param s
+     * @param service
+     */
+    void serve(Socket s, Service service) {
+        if (stop) {
+            // The service was removed while the socket was queued
+            release(s);
+            try {
+                s.close();
+            } catch (IOException e) {
+            }
+        } else if (!acquire()) {
+            refuse(s);
+        } else {
+            open(s, service).run();
+        }
+    }
+
+    /**
+     * A ChannelService is served straight from the socket's channel rather
+     * than through the streams the Connection hands it. Any other service is
+     * handed the streams through counters. On a TLS port, both go through a
+     * TlsChannel instead, once the handshake is done.
+     */
+    private Service direct(final Socket s, final Service service, final ConnectionInfo info) {
+        if (tls != null && s.getChannel() != null) {
+            return new Service() {
+                @Override
+                public void serve(InputStream in, OutputStream out) throws IOException {
+                    TlsChannel channel = tls(s.getChannel());
+                    // The read timeout covers a client stalling the handshake
+                    info.waiting();
+                    try {
+                        channel.handshake();
+                    } finally {
+                        info.received();
+                    }
+                    if (service instanceof ChannelService) {
+                        ChannelDriver.serve((ChannelService) service, channel,
+                                s.getRemoteSocketAddress(), metrics, info);
+                    } else {
+                        service.serve(metrics.count(Channels.newInputStream(channel), info),
+                                metrics.count(Channels.newOutputStream(channel), info));
+                    }
+                }
+            };
+        }
+        if (!(service instanceof ChannelService) || s.getChannel() == null) {
+            return new Service() {
+                @Override
+                public void serve(InputStream in, OutputStream out) throws IOException {
+                    service.serve(metrics.count(in, info), metrics.count(out, info));
+                }
+            };
+        }
+        return new Service() {
+            @Override
+            public void serve(InputStream in, OutputStream out) throws IOException {
+                ChannelDriver.serve((ChannelService) service, s.getChannel(), metrics, info);
+            }
+        };
+    }
+
+    /**
+     * The TLS side of a client's channel, or null if this port is plaintext.
+     */
+    TlsChannel tls(SocketChannel channel) {
+        if (tls == null) {
+            return null;
+        }
+        SSLEngine engine = tls.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(channel, engine, metrics);
+    }
+
+    /**
+     * The shorter of two timeouts, where 0 is none.
+     */
+    private static long earliest(long a, long b) {
+        return a <= 0 ? b : b <= 0 ? a : Math.min(a, b);
+    }
+
+    /**
+     * Check the connection's timeouts after the specified delay, in
+     * nanoseconds, on the shared TimingWheel.
+     */
+    private void schedule(final Connection c, final ConnectionInfo info, long delay) {
+        info.timeout = TimingWheel.getShared().schedule(new Runnable() {
+            @Override
+            public void run() {
+                check(c, info);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs on the TimingWheel: end the connection if it has been open, idle,
+     * waiting for input or held up by its client for too long, and otherwise
+     * check again when the first of its timeouts could be up.
+     */
+    private void check(Connection c, ConnectionInfo info) {
+        if (connections.get(c) != info) {
+            return;     // It has ended
+        }
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        LongAdder expired = null;
+        long session = sessionTimeout;
+        if (session > 0) {
+            if (now - info.start >= session) {
+                expired = metrics.sessionTimeouts;
+            }
+            next = Math.min(next, info.start + session);
+        }
+        long idle = idleTimeout;
+        if (idle > 0) {
+            long last = info.lastActive;
+            if (now - last >= idle) {
+                expired = metrics.idleTimeouts;
+            }
+            next = Math.min(next, last + idle);
+        }
+        long read = readTimeout;
+        if (read > 0) {
+            long waiting = info.waitingSince;
+            if (waiting != 0 && now - waiting >= read) {
+                expired = metrics.readTimeouts;
+            }
+            next = Math.min(next, (waiting != 0 ? waiting : now) + read);
+        }
+        long write = writeTimeout;
+        if (write > 0) {
+            long writing = info.writingSince;
+            if (writing != 0 && now - writing >= write) {
+                expired = metrics.writeTimeouts;
+            }
+            next = Math.min(next, (writing != 0 ? writing : now) + write);
+        }
+        if (expired != null) {
+            expired.increment();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Connection #" + info.id + " on port " + port + " timed out");
+            }
+            try {
+                endConnection(c);
+            } catch (IOException e) {
+            }
+        } else if (next != Long.MAX_VALUE) {
+            schedule(c, info, next - now);
         }
     }
 
     /**
      * A Connection thread calls this method just before it exits. It removes
-     * the specified Connection from the set of connections.
+     * the specified Connection from the set of connections. Calling it again
+     * for a Connection already removed does nothing.
      *
      * @param c
      * @throws java.io.IOException
      */
-    protected synchronized void endConnection(Connection c) throws IOException {
-        // Add it to the list of current connections
-        connections.remove(c);
-        numConnections--;
-        c.Close();
-        LOGGER.log(Level.INFO, "Connection to {0}:{1} closed.",
-                new Object[]{c.client.getInetAddress().getHostAddress(), c.client.getPort()});
+    protected void endConnection(Connection c) throws IOException {
+        // Remove it from the set of current connections
+        ConnectionInfo info = connections.remove(c);
+        if (info == null) {
+            return;
+        }
+        numConnections.decrementAndGet();
+        registry.release();
+        release(c.client);
+        TimingWheel.Timeout timeout = info.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        metrics.closed.increment();
+        metrics.duration.record(System.nanoTime() - info.start);
+        try {
+            c.Close();
+        } finally {
+            if (info.session != null) {
+                info.session.closed();
+            }
+            info.releaseBuffer();
+        }
+        ConnectionLog.closed(this, c.client);
+        if (retired.contains(info.service)) {
+            stopIfIdle((ManagedService) info.service);
+        }
     }
 
     /**
-     * A Connection thread calls this method just before it exits. It removes
-     * the specified Connection from the set of connections.
+     * Close every current connection of this service.
      *
      * @throws java.io.IOException
      */
-    protected synchronized void endAllConnection() throws IOException {
-        for (Connection c : connections) {
-            c.Close();
+    protected void endAllConnection() throws IOException {
+        for (Connection c : connections.keySet()) {
+            endConnection(c);
         }
-        numConnections -= connections.size();
-        connections.clear();
     }
 
     /**
-     * Change the current connection limit
+     * Change this service's connection limit. 0 leaves only the global limit.
      *
      * @param max
      */
-    public static void setMaxConnections(int max) {
+    public void setMaxConnections(int max) {
         maxConnections = max;
     }
 
-    @Override
-    public Iterator<Connection> iterator() {
-        return new ListnerIterator(connections);
+    public int getMaxConnections() {
+        return maxConnections;
     }
 
-    private class ListnerIterator implements Iterator<Connection> {
+    /**
+     * Close connections with no bytes in or out for this many milliseconds.
+     * 0 for no limit. Like the other timeouts, it only applies to the
+     * connections opened from then on.
+     *
+     * @param millis
+     */
+    public void setIdleTimeout(long millis) {
+        idleTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public long getIdleTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(idleTimeout);
+    }
 
-        ArrayList<Connection> connections;
-        int current;
+    /**
+     * Close connections whose service has been waiting this many
+     * milliseconds for the client's next bytes. 0 for no limit.
+     *
+     * @param millis
+     */
+    public void setReadTimeout(long millis) {
+        readTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
 
-        public ListnerIterator(ArrayList<Connection> con) {
-            connections = con;
-            current = 0;
+    public long getReadTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(readTimeout);
+    }
+
+    /**
+     * Close connections open for this many milliseconds, whatever they are
+     * doing. 0 for no limit.
+     *
+     * @param millis
+     */
+    public void setSessionTimeout(long millis) {
+        sessionTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public long getSessionTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(sessionTimeout);
+    }
+
+    /**
+     * Close connections whose client has held up their output for this many
+     * milliseconds. 0 for no limit.
+     *
+     * @param millis
+     */
+    public void setWriteTimeout(long millis) {
+        writeTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public long getWriteTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(writeTimeout);
+    }
+
+    /**
+     * When the service is replaced, close the connections still served by
+     * the old one after this many milliseconds. 0 for no limit.
+     *
+     * @param millis
+     */
+    public void setDrainTimeout(long millis) {
+        drainTimeout = millis;
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * Serve the connections accepted from now on with another service,
+     * without closing the port, so no client is refused in between. The
+     * current connections, and those already accepted and waiting for a
+     * worker, go on with the old service until they end, or until the drain
+     * timeout, if there is one, closes them. A ManagedService is started
+     * before it gets its first client, and the old one stopped after its last.
+     *
+     * @param next
+     * @return the old service
+     */
+    public Service replace(Service next) {
+        if (next instanceof ManagedService) {
+            ((ManagedService) next).start();
+        }
+        final Service old = service;
+        service = next;
+        if (old instanceof ManagedService && old != next) {
+            retired.add((ManagedService) old);
+            stopIfIdle((ManagedService) old);
+        }
+        long deadline = drainTimeout;
+        if (deadline > 0) {
+            TimingWheel.getShared().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drain(old);
+                }
+            }, deadline, TimeUnit.MILLISECONDS);
         }
+        return old;
+    }
 
-        @Override
-        public boolean hasNext() {
-            return current < connections.size();
+    /**
+     * Close the connections still served by a replaced service.
+     */
+    private void drain(Service old) {
+        int n = 0;
+        for (Map.Entry<Connection, ConnectionInfo> e : connections.entrySet()) {
+            if (e.getValue().service == old) {
+                try {
+                    endConnection(e.getKey());
+                    n++;
+                } catch (IOException x) {
+                }
+            }
         }
+        if (n > 0) {
+            LOGGER.log(Level.INFO, "Closed {0} connections of the replaced {1} on port {2}",
+                    new Object[]{n, old.getClass().getName(), port});
+        }
+    }
 
-        @Override
-        public Connection next() {
-            Connection c = connections.get(current);
-            current++;
-            return c;
+    /**
+     * Change the water marks and backpressure policy, for the connections
+     * opened from then on.
+     *
+     * @param low
+     * @param high
+     * @param policy
+     */
+    public void setBackpressure(int low, int high, Backpressure policy) {
+        if (low < 0 || high < 1 || low > high || policy == null) {
+            throw new IllegalArgumentException("Bad backpressure settings");
         }
+        lowWaterMark = low;
+        highWaterMark = high;
+        backpressure = policy;
+    }
 
-        @Override
-        public void remove() {
-            try {
-                endConnection(connections.get(current));
-            } catch (IOException ex) {
-                Logger.getLogger(Listener.class.getName()).log(Level.SEVERE, null, ex);
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * The number of current connections of this service.
+     *
+     * @return
+     */
+    public int getConnections() {
+        return numConnections.get();
+    }
+
+    /**
+     * The counters and latency histograms of this service.
+     *
+     * @return
+     */
+    public ServiceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The bookkeeping of the current connections, live: weakly consistent,
+     * like the iterator.
+     */
+    Collection<ConnectionInfo> infos() {
+        return connections.values();
+    }
+
+    /**
+     * The bookkeeping for a current connection, or null once it has ended.
+     */
+    ConnectionInfo info(Connection c) {
+        return connections.get(c);
+    }
+
+    /**
+     * Iterate over the current connections. The iteration is weakly
+     * consistent: it reflects the connections as they are at some point
+     * during the iteration, and removing through it ends the connection.
+     *
+     * @return
+     */
+    @Override
+    public Iterator<Connection> iterator() {
+        final Iterator<Connection> i = connections.keySet().iterator();
+        return new Iterator<Connection>() {
+            private Connection current;
+
+            @Override
+            public boolean hasNext() {
+                return i.hasNext();
             }
-        }
+
+            @Override
+            public Connection next() {
+                return current = i.next();
+            }
+
+            @Override
+            public void remove() {
+                try {
+                    endConnection(current);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        };
     }
 
 }
@@ -0,0 +1,91 @@
+package Server;
+
+import java.io.IOException;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * This class sets up the Server's logging. Everything is written to a log
+ * file by an AsyncLogHandler, so that no thread serving connections ever
+ * waits on the disk or the console; only warnings still go to the console.
+ *
+ * It is configured by system properties:
+ * server.log.file: the log file, "server.log" by default.
+ * server.log.level: the lowest level logged, INFO by default.
+ * server.log.capacity: the records the log buffer holds, 8192 by default.
+ * server.log.policy: DROP (the default) or BLOCK, for when the buffer is full.
+ * server.log.connections: ALL (the default), SAMPLED, AGGREGATE or OFF; see
+ * ConnectionLog.
+ * server.log.sample: in SAMPLED mode, log one connection in so many, 100 by
+ * default.
+ * server.log.interval: how often counts are logged, in milliseconds, 10000 by
+ * default.
+ *
+ */
+public class LoggerConfig {
+
+    public static final String FILE_PROPERTY = "server.log.file";
+    public static final String LEVEL_PROPERTY = "server.log.level";
+    public static final String CAPACITY_PROPERTY = "server.log.capacity";
+    public static final String POLICY_PROPERTY = "server.log.policy";
+    public static final String CONNECTIONS_PROPERTY = "server.log.connections";
+    public static final String SAMPLE_PROPERTY = "server.log.sample";
+    public static final String INTERVAL_PROPERTY = "server.log.interval";
+
+    private static AsyncLogHandler handler;
+
+    /**
+     * Replace the root logger's handlers with an AsyncLogHandler writing to
+     * the log file, and a console handler for warnings.
+     *
+     * @throws IOException if the log file cannot be opened, or a property is
+     * not valid
+     */
+    public static synchronized void setup() throws IOException {
+        AsyncLogHandler.Policy policy;
+        ConnectionLog.Mode mode;
+        Level level;
+        int capacity;
+        try {
+            level = Level.parse(System.getProperty(LEVEL_PROPERTY, "INFO"));
+            capacity = Integer.getInteger(CAPACITY_PROPERTY, AsyncLogHandler.DEFAULT_CAPACITY);
+            policy = AsyncLogHandler.Policy.valueOf(
+                    System.getProperty(POLICY_PROPERTY, "DROP").toUpperCase());
+            mode = ConnectionLog.Mode.valueOf(
+                    System.getProperty(CONNECTIONS_PROPERTY, "ALL").toUpperCase());
+            ConnectionLog.setSampleRate(Integer.getInteger(SAMPLE_PROPERTY, 100));
+            ConnectionLog.setInterval(Long.getLong(INTERVAL_PROPERTY, 10000L));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad logging configuration: " + e.getMessage(), e);
+        }
+
+        Logger root = LogManager.getLogManager().getLogger("");
+        for (Handler h : root.getHandlers()) {
+            root.removeHandler(h);
+            h.close();
+        }
+        handler = new AsyncLogHandler(
+                System.getProperty(FILE_PROPERTY, "server.log"), capacity, policy);
+        handler.setLevel(level);
+        ConsoleHandler console = new ConsoleHandler();
+        console.setLevel(Level.WARNING);
+        root.addHandler(handler);
+        root.addHandler(console);
+        root.setLevel(level);
+
+        ConnectionLog.setMode(mode);
+        ConnectionLog.setHandler(handler);
+    }
+
+    /**
+     * The handler installed by setup(), or null.
+     *
+     * @return
+     */
+    public static synchronized AsyncLogHandler getHandler() {
+        return handler;
+    }
+}
@@ -19,6 +19,13 @@ public class Main {
             LoggerConfig.setup();
             LOGGER.info("Init Application");
 
+            if (args.length > 0) {
+                // The services are declared in a file, checked as a whole
+                // before any port is opened
+                ServerConfig.load(args[0]).start().join();
+                return;
+            }
+
             // Create a Server object that uses standard out as its log and
             // has a limit of ten concurrent connections at once.
             Server s = new Server(10);
@@ -27,11 +34,14 @@ public class Main {
             s.addService(new Control(s, "1234"), 27000);
             s.addService((Service) new Reverse(), 23000);
 
-        } catch (IOException e) { // Display a message if anything goes wrong
+            // Serve until every service has been removed
+            s.join();
+        } catch (InterruptedException e) {
+            LOGGER.info("Interrupted, exiting");
+        } catch (IOException | IllegalArgumentException e) {
+            // Display a message if anything goes wrong
             System.err.println("Server: " + e);
-            System.err.println("Usage: java Server "
-                    + "[-control <password> <port>] "
-                    + "[<servicename> <port> ... ]");
+            System.err.println("Usage: java Server.Main [<config-file>]");
             System.exit(1);
         }
     }
@@ -0,0 +1,316 @@
+package Server;
+
+import Server.interfaces.ChannelService;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This is the selector-based engine of the Server. Instead of one Listener
+ * thread per port and one Connection thread per client, a small fixed set of
+ * event loops multiplexes accept, read and write for every port registered
+ * with it. Each Listener's ServerSocketChannel is registered with one of the
+ * loops; each accepted client is handed to the next loop in turn.
+ *
+ * A ChannelService is called by the event loops themselves. Any other Service
+ * only knows how to serve a pair of blocking streams, so each of its clients
+ * is bridged: its serve() method runs on a pooled worker thread against an
+ * NioSession, whose streams are filled and drained by the event loop. There
+ * are at most as many workers as the Server has connections; a client bridged
+ * while they are all busy waits for one, its input buffered by the loop.
+ *
+ * The slow steps of TLS handshakes, such as signing and checking
+ * certificates, run on a pool of their own, as many threads as loops, so
+ * that they hold up neither the loops nor wait behind the workers.
+ *
+ */
+public class NioEngine {
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ThreadPoolExecutor workers;
+    final ThreadPoolExecutor handshakers;   // Runs the SSLEngines' delegated tasks
+
+    private static final Logger LOGGER = Logger.getLogger(NioEngine.class.getName());
+
+    /**
+     * Create the engine and start its event loops in the specified thread
+     * group, with at most maxWorkers threads serving bridged clients.
+     *
+     * @param group
+     * @param numLoops
+     * @param maxWorkers
+     * @throws java.io.IOException
+     */
+    public NioEngine(final ThreadGroup group, int numLoops, int maxWorkers)
+            throws IOException {
+        loops = new EventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            loops[i] = new EventLoop(group, i);
+        }
+        workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(group, r, "NioWorker:" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // Idle workers go away, as they did when the pool was unbounded
+        workers.allowCoreThreadTimeOut(true);
+        handshakers = new ThreadPoolExecutor(numLoops, numLoops, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(group, r, "Handshaker:" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        handshakers.allowCoreThreadTimeOut(true);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Change the number of workers, that is the number of bridged clients
+     * served at once.
+     *
+     * @param maxWorkers
+     */
+    public void setWorkers(int maxWorkers) {
+        if (maxWorkers > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(maxWorkers);
+            workers.setCorePoolSize(maxWorkers);
+        } else {
+            workers.setCorePoolSize(maxWorkers);
+            workers.setMaximumPoolSize(maxWorkers);
+        }
+    }
+
+    /**
+     * Display the workers on the specified stream, in the style of
+     * WorkerPool.displayStatus().
+     *
+     * @param out
+     */
+    public void displayStatus(PrintWriter out) {
+        out.print("WORKERS " + workers.getActiveCount() + " BUSY OF "
+                + workers.getMaximumPoolSize() + ", " + workers.getQueue().size()
+                + " WAITING\n");
+    }
+
+    /**
+     * Start accepting connections for the Listener's port, on as many event
+     * loops as it has acceptors. When they share one socket, each loop is
+     * woken for each connection, and all but one find nothing to accept. Each
+     * socket bound with SO_REUSEPORT is registered, even if there are fewer
+     * loops, since the kernel hands connections to all of them.
+     *
+     * @param listener
+     * @throws java.io.IOException
+     */
+    public void register(final Listener listener) throws IOException {
+        for (ServerSocketChannel channel : listener.channels) {
+            channel.configureBlocking(false);
+        }
+        int n = Math.max(listener.channels.length, Math.min(listener.acceptors, loops.length));
+        for (int i = 0; i < n; i++) {
+            final ServerSocketChannel channel = listener.channels[i % listener.channels.length];
+            final EventLoop loop = nextLoop();
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        channel.register(loop.selector, SelectionKey.OP_ACCEPT, listener);
+                    } catch (ClosedChannelException e) {
+                        // The service was removed before it got registered
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Called by the Listener once it has closed its sockets. A socket
+     * registered with a Selector is only released once the Selector has
+     * dropped its key, on its next select, so every loop is woken to let go
+     * of the port now rather than on its next event.
+     *
+     * @param listener
+     */
+    void unregister(Listener listener) {
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Called by the Listener once it has admitted a Connection: register the
+     * client channel with an event loop and, unless the service is a
+     * ChannelService, run the service on a worker.
+     *
+     * @param listener
+     * @param c
+     * @throws java.io.IOException
+     */
+    void open(final Listener listener, final Connection c) throws IOException {
+        SocketChannel channel = c.client.getChannel();
+        channel.configureBlocking(false);
+        ConnectionInfo info = listener.info(c);
+        final NioSession session = c.service instanceof ChannelService
+                ? new NioSession(channel, nextLoop(), (ChannelService) c.service,
+                        listener, c, info)
+                : new NioSession(channel, nextLoop(), listener, c, info);
+        info.session = session;
+        session.loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                session.register();
+            }
+        });
+        if (c.service instanceof ChannelService) {
+            return;
+        }
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    c.service.serve(session.in, session.out);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Service failed", e);
+                } finally {
+                    try {
+                        listener.endConnection(c);
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the event loops, the workers and the handshakers.
+     */
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.pleaseStop();
+        }
+        workers.shutdownNow();
+        handshakers.shutdownNow();
+    }
+
+    private EventLoop nextLoop() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * An event loop: one thread and one Selector. Work for the loop that comes
+     * from other threads, such as registrations and interest changes, is
+     * queued with execute() and run between two selects.
+     */
+    static final class EventLoop extends Thread {
+
+        final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean stop = false;
+
+        EventLoop(ThreadGroup group, int index) throws IOException {
+            super(group, "EventLoop:" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void pleaseStop() {
+            stop = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!stop) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // Lost, but the loop goes on with the others
+                            LOGGER.log(Level.SEVERE, getName() + ": task failed", e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(key);
+                            continue;
+                        }
+                        NioSession session = (NioSession) key.attachment();
+                        try {
+                            session.ready(key);
+                        } catch (RuntimeException e) {
+                            // Only this session is dropped, not the loop
+                            session.abort(key, e);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, getName() + " failed", e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+
+        private void accept(SelectionKey key) {
+            Listener listener = (Listener) key.attachment();
+            ServerSocketChannel server = (ServerSocketChannel) key.channel();
+            try {
+                SocketChannel client;
+                while ((client = server.accept()) != null) {
+                    try {
+                        listener.addConnection(client.socket(), listener.service);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, "Cannot admit a client on port "
+                                + listener.port, e);
+                        client.close();
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Accept failed on port " + listener.port, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,1007 @@
+package Server;
+
+import Server.interfaces.ChannelService;
+import Server.interfaces.ChannelSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This is a client channel served by the NioEngine. For a Service that
+ * expects blocking streams it is a bridge: the event loop reads from the
+ * channel into the input stream's buffer and drains the output stream's
+ * buffer into the channel, while the service thread blocks on those buffers
+ * instead of the socket. When a buffer is full the loop stops reading (or the
+ * service stops writing) until the other side catches up.
+ *
+ * For a ChannelService there is no service thread and no stream: the loop
+ * reads into the direct buffer the Listener borrowed for the connection and
+ * calls the service with it, and writes go straight to the channel, with only
+ * what the channel doesn't take right away copied aside, into buffers from the
+ * BufferPool, until it becomes writable. The loop gives them all back once
+ * the connection is closed, as only it knows it is done with them. Files are
+ * sent with transferTo() the same way: what the channel doesn't take is
+ * queued as a file region, in order with the bytes, and never read into
+ * memory.
+ *
+ * Either way, the output waiting for a slow client is bounded by the
+ * Listener's high water mark: the stream's buffer grows up to it, and the
+ * bytes copied aside count against it. Over the mark, the Listener's
+ * Backpressure policy applies until the output is down to the low water
+ * mark: reading from the client stops, the service thread waits, or the
+ * connection is dropped. A ChannelService writing from a thread of its own,
+ * rather than from its calls on the loop, waits too while reading is paused.
+ * The service may also stop the reading itself, with suspendInput(), while
+ * it can't take more input, as a proxy does until its backend catches up.
+ *
+ * On a TLS port every byte goes through a TlsChannel, and nothing reaches the
+ * service until the handshake, which the loop drives, is done. The TLS layer
+ * may hold bytes the channel will not signal again, decrypted input or
+ * encrypted output, so the session reads on while there is input left, and
+ * keeps asking for writability until the output is all sent.
+ *
+ */
+final class NioSession implements ChannelSession {
+
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    final SocketChannel channel;
+    final NioEngine.EventLoop loop;
+    final ChannelInputStream in;
+    final ChannelOutputStream out;
+    private final ServiceMetrics metrics;
+    private final ConnectionInfo info;  // Where to record activity
+    private final TlsChannel tls;       // On a TLS port, or null
+    private final int lowWaterMark;     // Bytes of output waiting
+    private final int highWaterMark;
+    private final Backpressure backpressure;
+    private volatile SelectionKey key;
+
+    private final Listener listener;
+    private final Connection connection;
+
+    // For a ChannelService
+    private final ChannelService handler;
+    private ByteBuffer input;           // Read by the loop, in write mode
+    private boolean pooledInput;        // input is the connection's, from the pool
+    private final ArrayDeque<Object> pending
+            = new ArrayDeque<Object>();  // Buffers and FileRegions not yet written
+    private boolean closing = false;    // Close once pending is written
+    private boolean ended = false;      // handler.close() has been called
+    private int queued = 0;             // Bytes in pending
+    private boolean paused = false;     // Not reading, until pending drains
+    private boolean suspended = false;  // Not reading, until the service resumes
+    private volatile Object attachment;
+
+    private static final Logger LOGGER = Logger.getLogger(NioSession.class.getName());
+
+    /**
+     * Create the bridge for a stream Service.
+     */
+    NioSession(SocketChannel channel, NioEngine.EventLoop loop, Listener listener,
+            Connection connection, ConnectionInfo info) {
+        this.channel = channel;
+        this.loop = loop;
+        this.metrics = listener.metrics;
+        this.info = info;
+        this.lowWaterMark = listener.lowWaterMark;
+        this.highWaterMark = listener.highWaterMark;
+        this.backpressure = listener.backpressure;
+        this.tls = listener.tls(channel);
+        this.in = new ChannelInputStream();
+        this.out = new ChannelOutputStream();
+        this.handler = null;
+        this.listener = listener;
+        this.connection = connection;
+    }
+
+    /**
+     * Create the session of a ChannelService.
+     */
+    NioSession(SocketChannel channel, NioEngine.EventLoop loop, ChannelService handler,
+            Listener listener, Connection connection, ConnectionInfo info) {
+        this.channel = channel;
+        this.loop = loop;
+        this.in = null;
+        this.out = null;
+        this.handler = handler;
+        this.listener = listener;
+        this.connection = connection;
+        this.metrics = listener.metrics;
+        this.info = info;
+        this.lowWaterMark = listener.lowWaterMark;
+        this.highWaterMark = listener.highWaterMark;
+        this.backpressure = listener.backpressure;
+        this.tls = listener.tls(channel);
+        this.input = info.takeBuffer();
+        this.pooledInput = input != null;
+        if (input == null) {
+            this.input = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        // The service waits for input whenever it is not handling some
+        info.waiting();
+    }
+
+    /**
+     * Register the channel with the event loop. Runs on the loop.
+     */
+    void register() {
+        try {
+            key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            if (tls != null) {
+                offloadTasks();
+                handshake();
+            } else if (handler != null) {
+                handler.open(this);
+            } else if (out.pending()) {
+                // The service may have written before we got here
+                interest(SelectionKey.OP_WRITE, true);
+            }
+        } catch (IOException e) {
+            // Closed already, maybe: either way the Listener must hear of it
+            fail(e);
+        }
+    }
+
+    /**
+     * The channel is ready for reading or writing. Runs on the loop.
+     *
+     * @param key
+     */
+    void ready(SelectionKey key) {
+        try {
+            if (tls != null && !tls.isHandshaken()) {
+                handshake();
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            // What the TLS layer holds goes before anything else
+            if (key.isValid() && key.isWritable() && (tls == null || tls.flush())) {
+                if (handler != null) {
+                    flushPending();
+                } else {
+                    out.drain();
+                }
+            }
+        } catch (IOException e) {
+            key.cancel();
+            fail(e);
+        }
+    }
+
+    /**
+     * Read what has arrived, and on with what the TLS layer still holds.
+     * Runs on the loop.
+     */
+    private void read() throws IOException {
+        int n;
+        do {
+            n = handler != null ? fill() : in.fill();
+        } while (n > 0 && tls != null && tls.hasBufferedInput() && key.isValid()
+                && !isPaused());
+    }
+
+    /**
+     * Have the handshake's delegated tasks run by the engine's handshakers,
+     * and the handshake go on, on the loop, once they are done. Runs on the
+     * loop.
+     */
+    private void offloadTasks() {
+        NioEngine engine = listener.engine;
+        if (engine == null) {
+            return;
+        }
+        tls.offloadTasks(engine.handshakers, new Runnable() {
+            @Override
+            public void run() {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        SelectionKey k = key;
+                        if (k == null || !k.isValid()) {
+                            return;     // Ended meanwhile
+                        }
+                        interest(SelectionKey.OP_READ, true);
+                        try {
+                            handshake();
+                        } catch (IOException e) {
+                            k.cancel();
+                            fail(e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Go on with the TLS handshake and, once it is done, start serving: open
+     * the ChannelService, or let the streams through. While the delegated
+     * tasks run elsewhere, the channel is not read. Runs on the loop.
+     */
+    private void handshake() throws IOException {
+        boolean done = tls.handshake();
+        interest(SelectionKey.OP_WRITE, tls.hasPendingOutput());
+        if (!done) {
+            if (tls.isRunningTasks()) {
+                interest(SelectionKey.OP_READ, false);
+            }
+            return;
+        }
+        if (handler != null) {
+            handler.open(this);
+        } else if (out.pending()) {
+            interest(SelectionKey.OP_WRITE, true);
+        }
+        if (tls.hasBufferedInput()) {
+            read();
+        }
+    }
+
+    /**
+     * Read again after a pause. Input the TLS layer already holds will not
+     * make the channel readable, so it is read right away. Runs on the loop.
+     */
+    private void resumeReading() {
+        if (isSuspended()) {
+            return;
+        }
+        interest(SelectionKey.OP_READ, true);
+        SelectionKey k = key;
+        if (tls != null && k != null && k.isValid() && tls.hasBufferedInput()) {
+            try {
+                read();
+            } catch (IOException e) {
+                k.cancel();
+                fail(e);
+            }
+        }
+    }
+
+    private int receive(ByteBuffer dst) throws IOException {
+        return tls != null ? tls.read(dst) : channel.read(dst);
+    }
+
+    private long send(ByteBuffer... srcs) throws IOException {
+        return tls != null ? tls.write(srcs) : channel.write(srcs);
+    }
+
+    private WritableByteChannel output() {
+        return tls != null ? tls : channel;
+    }
+
+    /**
+     * Whether the TLS layer, if any, has sent everything it was given.
+     */
+    private boolean flushed() {
+        return tls == null || !tls.hasPendingOutput();
+    }
+
+    /**
+     * Read what has arrived and hand it to the ChannelService. Runs on the
+     * loop.
+     *
+     * @return the bytes read, or -1 at the end
+     */
+    private int fill() throws IOException {
+        if (input == null) {
+            return -1;      // Closed, and the buffer given back
+        }
+        int n = receive(input);
+        if (n > 0) {
+            metrics.bytesIn.add(n);
+            info.received();
+        }
+        if (isClosing() || isEnded()) {
+            // The service is done with this client, or about to be closed
+            input.clear();
+        } else if (input.position() > 0) {
+            input.flip();
+            long start = System.nanoTime();
+            handler.read(this, input);
+            metrics.read(start);
+            info.waiting();
+            input.compact();
+            if (!input.hasRemaining()) {
+                throw new IOException("Service " + handler.getClass().getName()
+                        + " left its input buffer full");
+            }
+        }
+        if (n < 0) {
+            end();
+        }
+        return n;
+    }
+
+    /**
+     * The service or the channel failed: drop the connection.
+     */
+    private void fail(IOException e) {
+        LOGGER.log(Level.FINE, "Session failed", e);
+        if (handler != null) {
+            end();
+        } else {
+            closed();
+        }
+    }
+
+    /**
+     * The service or the session threw what it should not have: drop the
+     * connection, and the loop goes on with the others. Runs on the loop.
+     *
+     * @param key
+     * @param e
+     */
+    void abort(SelectionKey key, RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Session failed on " + loop.getName(), e);
+        key.cancel();
+        try {
+            if (handler != null) {
+                end();
+            } else {
+                closed();
+            }
+        } catch (RuntimeException again) {
+            LOGGER.log(Level.SEVERE, "Cannot end a failed session", again);
+        }
+    }
+
+    /**
+     * End the connection through its Listener, which calls closed() in turn.
+     */
+    private void end() {
+        if (tls != null) {
+            tls.closeOutbound();
+        }
+        try {
+            listener.endConnection(connection);
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * The connection is gone: wake up the service if it is waiting, or tell
+     * the ChannelService.
+     */
+    void closed() {
+        if (handler != null) {
+            synchronized (this) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+                notifyAll();
+            }
+            // Whichever thread ended the connection, the service is closed
+            // on the loop, which may be in read() with its state and the
+            // buffers until it runs this
+            Runnable close = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.close(NioSession.this);
+                    } finally {
+                        releaseBuffers();
+                    }
+                }
+            };
+            if (loop.isAlive()) {
+                loop.execute(close);
+            } else {
+                close.run();    // The engine is shut down
+            }
+            return;
+        }
+        in.eof();
+        out.eof();
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer... srcs) throws IOException {
+        if (ended || closing) {
+            throw new IOException("Connection closed");
+        }
+        for (ByteBuffer src : srcs) {
+            metrics.bytesOut.add(src.remaining());
+        }
+        info.active();
+        if (pending.isEmpty()) {
+            // Nothing queued ahead of these bytes: try the channel first
+            send(srcs);
+        }
+        for (ByteBuffer src : srcs) {
+            if (src.hasRemaining()) {
+                queue(src);
+            }
+        }
+        if (!flushed()) {
+            requestInterest(SelectionKey.OP_WRITE, true);
+        }
+        if (!pending.isEmpty()) {
+            requestInterest(SelectionKey.OP_WRITE, true);
+            if (queued > highWaterMark) {
+                overflow();
+            }
+        }
+        if (paused && Thread.currentThread() != loop) {
+            // A thread of the service's own, such as a proxy's relay, can
+            // wait for the client, as a stream service does
+            while (paused && !ended && !closing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (ended || closing) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * More than the high water mark is copied aside: drop the client, or
+     * stop reading from it until it catches up. The loop can't wait for it,
+     * so BLOCK pauses too, with the write timeout as its deadline.
+     */
+    private void overflow() throws IOException {
+        if (backpressure == Backpressure.DISCONNECT) {
+            metrics.overflows.increment();
+            closing = true;
+            discardPending();
+            queued = 0;
+            info.queued = 0;
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    end();
+                }
+            });
+            throw new IOException("Client too slow");
+        }
+        if (!paused) {
+            paused = true;
+            metrics.pauses.increment();
+            if (backpressure == Backpressure.BLOCK) {
+                info.writing();
+            }
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Whatever the state is by now, as it may have drained
+                    synchronized (NioSession.this) {
+                        if (paused) {
+                            interest(SelectionKey.OP_READ, false);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Bytes copied aside have been written. Runs on the loop, locked.
+     */
+    private void sent(int n) {
+        queued -= n;
+        info.queued = queued;
+        if (paused && queued <= lowWaterMark) {
+            paused = false;
+            info.written();
+            notifyAll();
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resumeReading();
+                }
+            });
+        }
+    }
+
+    @Override
+    public synchronized void transfer(FileChannel file, long position, long count,
+            Runnable done) throws IOException {
+        if (ended || closing) {
+            throw new IOException("Connection closed");
+        }
+        metrics.bytesOut.add(count);
+        info.active();
+        FileRegion region = new FileRegion(file, position, count, done);
+        if (pending.isEmpty() && region.transferTo(output())) {
+            if (!flushed()) {
+                requestInterest(SelectionKey.OP_WRITE, true);
+            }
+            region.done();
+            return;
+        }
+        pending.add(region);
+        requestInterest(SelectionKey.OP_WRITE, true);
+    }
+
+    /**
+     * Copy what the channel didn't take aside, after the last queued buffer
+     * if it has room. Queued buffers are in read mode.
+     */
+    private void queue(ByteBuffer src) {
+        queued += src.remaining();
+        info.queued = queued;
+        Object last = pending.peekLast();
+        if (last instanceof ByteBuffer) {
+            ByteBuffer b = (ByteBuffer) last;
+            if (b.capacity() - b.limit() >= src.remaining()) {
+                int position = b.position();
+                b.position(b.limit()).limit(b.capacity());
+                b.put(src);
+                b.limit(b.position()).position(position);
+                return;
+            }
+        }
+        ByteBuffer b = BufferPool.getShared().borrow(Math.max(BUFFER_SIZE, src.remaining()));
+        b.put(src).flip();
+        pending.add(b);
+    }
+
+    /**
+     * Drop what is queued, giving its buffers back. Locked.
+     */
+    private void discardPending() {
+        Object head;
+        while ((head = pending.pollFirst()) != null) {
+            if (head instanceof ByteBuffer) {
+                BufferPool.getShared().release((ByteBuffer) head);
+            } else {
+                ((FileRegion) head).done();
+            }
+        }
+    }
+
+    /**
+     * Give the input buffer and the queued ones back to the pool, once the
+     * connection is closed. Runs on the loop.
+     */
+    private synchronized void releaseBuffers() {
+        discardPending();
+        if (pooledInput) {
+            pooledInput = false;
+            info.releaseBuffer();
+        }
+        input = null;
+    }
+
+    /**
+     * The channel is writable again: write what is queued, in order, until the
+     * channel stops taking it. Runs on the loop.
+     */
+    private synchronized void flushPending() throws IOException {
+        Object head;
+        while ((head = pending.peekFirst()) != null) {
+            if (head instanceof ByteBuffer) {
+                ByteBuffer b = (ByteBuffer) head;
+                int before = b.remaining();
+                send(b);
+                sent(before - b.remaining());
+                if (b.hasRemaining()) {
+                    return;
+                }
+            } else if (!((FileRegion) head).transferTo(output())) {
+                return;
+            }
+            pending.pollFirst();
+            if (head instanceof ByteBuffer) {
+                BufferPool.getShared().release((ByteBuffer) head);
+            } else {
+                ((FileRegion) head).done();
+            }
+        }
+        if (!flushed()) {
+            return;
+        }
+        interest(SelectionKey.OP_WRITE, false);
+        if (closing) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    end();
+                }
+            });
+        }
+    }
+
+    private synchronized boolean isClosing() {
+        return closing;
+    }
+
+    private synchronized boolean isPaused() {
+        return paused || suspended;
+    }
+
+    private synchronized boolean isEnded() {
+        return ended;
+    }
+
+    private synchronized boolean isSuspended() {
+        return suspended;
+    }
+
+    @Override
+    public void suspendInput() {
+        synchronized (this) {
+            if (suspended) {
+                return;
+            }
+            suspended = true;
+        }
+        if (Thread.currentThread() == loop) {
+            interest(SelectionKey.OP_READ, false);
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Unless resumed meanwhile
+                    if (isSuspended()) {
+                        interest(SelectionKey.OP_READ, false);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void resumeInput() {
+        synchronized (this) {
+            if (!suspended) {
+                return;
+            }
+            suspended = false;
+            if (paused) {
+                return;     // sent() resumes once the client catches up
+            }
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                resumeReading();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closing) {
+            return;
+        }
+        closing = true;
+        notifyAll();
+        if (pending.isEmpty() && flushed()) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    end();
+                }
+            });
+        }
+    }
+
+    @Override
+    public Object attachment() {
+        return attachment;
+    }
+
+    @Override
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * Turn an interest on or off. Runs on the loop.
+     */
+    private void interest(int op, boolean on) {
+        SelectionKey k = key;
+        if (k != null && k.isValid()) {
+            k.interestOps(on ? k.interestOps() | op : k.interestOps() & ~op);
+        }
+    }
+
+    /**
+     * Ask the loop to turn an interest on or off.
+     */
+    private void requestInterest(final int op, final boolean on) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                interest(op, on);
+            }
+        });
+    }
+
+    /**
+     * The part of a file that is still to be sent.
+     */
+    private static final class FileRegion {
+
+        private final FileChannel file;
+        private long position;
+        private long count;
+        private Runnable done;      // Until it has run
+
+        FileRegion(FileChannel file, long position, long count, Runnable done) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+            this.done = done;
+        }
+
+        /**
+         * Tell the service the file is no longer needed, once.
+         */
+        void done() {
+            Runnable d = done;
+            done = null;
+            if (d != null) {
+                d.run();
+            }
+        }
+
+        /**
+         * Send as much as the channel takes.
+         *
+         * @return whether the whole region has been sent
+         */
+        boolean transferTo(WritableByteChannel channel) throws IOException {
+            while (count > 0) {
+                long n = file.transferTo(position, count, channel);
+                if (n <= 0) {
+                    if (position >= file.size()) {
+                        throw new EOFException("File truncated during transfer");
+                    }
+                    return false;
+                }
+                position += n;
+                count -= n;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The stream the service reads from. The buffer is always in write mode:
+     * the loop appends at its position, the service takes from its start.
+     */
+    final class ChannelInputStream extends InputStream {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private boolean eof = false;
+
+        synchronized int fill() throws IOException {
+            if (eof || !buffer.hasRemaining()) {
+                return 0;
+            }
+            int n = receive(buffer);
+            if (n < 0) {
+                eof = true;
+            } else {
+                metrics.bytesIn.add(n);
+                info.active();
+            }
+            if (eof || !buffer.hasRemaining()) {
+                interest(SelectionKey.OP_READ, false);
+            }
+            notifyAll();
+            return n;
+        }
+
+        synchronized void eof() {
+            eof = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (buffer.position() == 0) {
+                info.waiting();
+            }
+            try {
+                while (buffer.position() == 0) {
+                    if (eof) {
+                        return -1;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                info.received();
+            }
+            boolean full = !buffer.hasRemaining();
+            buffer.flip();
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            buffer.compact();
+            if (full && !eof) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeReading();
+                    }
+                });
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffer.position();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The stream the service writes to. flush() writes as much as the channel
+     * takes right away and leaves the rest for the loop. The buffer starts
+     * small and grows up to the high water mark while the client is slow.
+     */
+    final class ChannelOutputStream extends OutputStream {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(Math.min(BUFFER_SIZE, highWaterMark));
+        private boolean eof = false;
+
+        synchronized boolean pending() {
+            return buffer.position() > 0;
+        }
+
+        synchronized void drain() throws IOException {
+            buffer.flip();
+            try {
+                send(buffer);
+            } finally {
+                buffer.compact();
+                info.queued = buffer.position();
+            }
+            if (buffer.position() == 0 && flushed()) {
+                interest(SelectionKey.OP_WRITE, false);
+            }
+            notifyAll();
+        }
+
+        synchronized void eof() {
+            eof = true;
+            notifyAll();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            metrics.bytesOut.add(len);
+            info.active();
+            while (len > 0) {
+                if (eof) {
+                    throw new IOException("Connection closed");
+                }
+                if (!buffer.hasRemaining()) {
+                    flush();
+                    if (!buffer.hasRemaining()) {
+                        full();
+                    }
+                    continue;
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+            info.queued = buffer.position();
+        }
+
+        /**
+         * The buffer is full and the channel takes no more: grow the buffer
+         * up to the high water mark, and past it apply the policy.
+         */
+        private void full() throws IOException {
+            if (buffer.capacity() < highWaterMark) {
+                ByteBuffer b = ByteBuffer.allocate(
+                        (int) Math.min(2L * buffer.capacity(), highWaterMark));
+                buffer.flip();
+                buffer = b.put(buffer);
+                return;
+            }
+            if (backpressure == Backpressure.DISCONNECT) {
+                // Services may swallow the exception, so end it for them
+                metrics.overflows.increment();
+                eof = true;
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        end();
+                    }
+                });
+                throw new IOException("Client too slow");
+            }
+            metrics.pauses.increment();
+            if (backpressure == Backpressure.BLOCK) {
+                info.writing();
+            }
+            try {
+                while (!eof && buffer.position() > lowWaterMark) {
+                    await();
+                }
+            } finally {
+                if (backpressure == Backpressure.BLOCK) {
+                    info.written();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (eof || buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            try {
+                send(buffer);
+            } finally {
+                buffer.compact();
+                info.queued = buffer.position();
+            }
+            if (buffer.position() > 0 || !flushed()) {
+                requestInterest(SelectionKey.OP_WRITE, true);
+            }
+        }
+
+        /**
+         * Wait until everything written has reached the channel.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            flush();
+            while (!eof && (buffer.position() > 0 || !flushed())) {
+                await();
+            }
+            if (!eof && tls != null) {
+                tls.closeOutbound();
+            }
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
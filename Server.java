@@ -2,7 +2,19 @@ package Server;
 
 import Server.interfaces.*;
 import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,10 +29,24 @@ import java.util.logging.Logger;
 public class Server {
 
     // This is the state for the server
-    private Map<Integer, Listener> services;    // Hashtable mapping ports to Listeners
-    private ThreadGroup threadGroup;            // The threadgroup for all our threads
+    // Maps ports to Listeners, in port order. Changed under the Server's
+    // lock, read without it, so status and stats never hold up the changes.
+    private Map<Integer, Listener> services;
+    private Map<Integer, DatagramListener> datagrams; // UDP ports, the same way
+    ThreadGroup threadGroup;                    // The threadgroup for all our threads
     private int maxConnections;
+    private final Engine engine;                // How connections are served
+    NioEngine nioEngine;                        // The event loops, for Engine.NIO
+    ExecutorService executor;                   // Runs Connections, for Engine.VIRTUAL
+    WorkerPool workerPool;                      // Queues Connections, for Engine.POOLED
+    ConnectionRegistry registry;                // Global connection count and limit
+    final ClientLimiter limiter = new ClientLimiter(); // Limits per client address
+    private int queueCapacity = WorkerPool.DEFAULT_QUEUE_CAPACITY;
+    private long queueTimeout = WorkerPool.DEFAULT_QUEUE_TIMEOUT;
+    private ScheduledExecutorService statsDumper; // Appends stats to a file, if any
 
+    private static final int STATUS_FLUSH = 256;   // Lines of status per flush
+    private static final int BINDERS = 16;         // Threads binding ports at startup
     private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
 
     /**
@@ -29,18 +55,80 @@ public class Server {
      * connections.
      *
      * @param maxConnections
+     * @throws java.io.IOException
+     */
+    public Server(int maxConnections) throws IOException {
+        this(maxConnections, Engine.BLOCKING);
+    }
+
+    /**
+     * Create a Server that serves its connections with the specified engine.
+     *
+     * @param maxConnections
+     * @param engine
+     * @throws java.io.IOException
      */
-    public Server(int maxConnections) {
-        LOGGER.info("Starting server");
+    public Server(int maxConnections, Engine engine) throws IOException {
+        LOGGER.log(Level.INFO, "Starting server with {0} engine", engine);
+        this.engine = engine;
         initServer(maxConnections);
     }
 
-    private void initServer(int maxConnections) {
+    /**
+     * Create a Server with the POOLED engine: maxConnections workers, in front
+     * of which at most queueCapacity clients wait at most queueTimeoutMillis
+     * for a worker before being refused.
+     *
+     * @param maxConnections
+     * @param queueCapacity
+     * @param queueTimeoutMillis
+     * @throws java.io.IOException
+     */
+    public Server(int maxConnections, int queueCapacity, long queueTimeoutMillis)
+            throws IOException {
+        LOGGER.log(Level.INFO, "Starting server with {0} engine", Engine.POOLED);
+        this.engine = Engine.POOLED;
+        this.queueCapacity = queueCapacity;
+        this.queueTimeout = queueTimeoutMillis;
+        initServer(maxConnections);
+    }
+
+    private void initServer(int maxConnections) throws IOException {
         threadGroup = new ThreadGroup(Server.class.getName());
         threadGroup.setDaemon(true);
         this.maxConnections = maxConnections;
-        services = new HashMap<Integer, Listener>();
-        Listener.setMaxConnections(maxConnections);
+        services = new ConcurrentSkipListMap<Integer, Listener>();
+        datagrams = new ConcurrentSkipListMap<Integer, DatagramListener>();
+        registry = new ConnectionRegistry(maxConnections);
+        if (engine == Engine.NIO) {
+            nioEngine = new NioEngine(threadGroup,
+                    Runtime.getRuntime().availableProcessors(), maxConnections);
+        } else if (engine == Engine.VIRTUAL) {
+            executor = newVirtualThreadExecutor();
+        } else if (engine == Engine.POOLED) {
+            workerPool = new WorkerPool(threadGroup, maxConnections,
+                    queueCapacity, queueTimeout);
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() only exists from Java 21, so
+     * it is looked up rather than linked against.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            MethodHandle factory = MethodHandles.publicLookup().findStatic(
+                    Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+            return (ExecutorService) factory.invoke();
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(
+                    "The VIRTUAL engine requires Java 21 or later", e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
@@ -53,6 +141,16 @@ public class Server {
     protected void closeServer() throws Throwable {
         LOGGER.info("Closing Server");
         removeAllServices();
+        if (nioEngine != null) {
+            nioEngine.shutdown();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (workerPool != null) {
+            workerPool.shutdown();
+        }
+        stopStatsDump();
     }
 
     /**
@@ -65,34 +163,220 @@ public class Server {
      */
     public synchronized void addService(Service service, int port)
             throws IOException {
+        addService(service, port, 0);
+    }
+
+    /**
+     * This method makes the server start providing a new service on the
+     * specified port, with at most maxConnections concurrent connections for
+     * that service on top of the global limit. 0 means no limit of its own.
+     *
+     * @param service
+     * @param port
+     * @param maxConnections
+     * @throws java.io.IOException
+     */
+    public synchronized void addService(Service service, int port,
+            int maxConnections) throws IOException {
+        ServiceOptions options = new ServiceOptions();
+        options.setMaxConnections(maxConnections);
+        addService(service, port, options);
+    }
+
+    /**
+     * This method makes the server start providing a new service on the
+     * specified port, over the specified transport. Over UDP, the service
+     * must be a DatagramService.
+     *
+     * @param service
+     * @param port
+     * @param transport
+     * @throws java.io.IOException
+     */
+    public synchronized void addService(Service service, int port,
+            Transport transport) throws IOException {
+        ServiceOptions options = new ServiceOptions();
+        options.setTransport(transport);
+        addService(service, port, options);
+    }
+
+    /**
+     * This method makes the server start providing a new service on the
+     * specified port, with the specified options: its connection limit, how
+     * many acceptors take its connections, and their backlog.
+     *
+     * @param service
+     * @param port
+     * @param options
+     * @throws java.io.IOException
+     */
+    public synchronized void addService(Service service, int port,
+            ServiceOptions options) throws IOException {
         Integer key = new Integer(port);  // the hashtable key
         // Check whether a service is already on that port
-        if (services.get(key) != null) {
+        checkFree(key, options);
+        // Create a Listener object to listen for connections on the port
+        start(key, bind(port, service, options));
+    }
+
+    /**
+     * Fail unless the port is free for the transport of the options.
+     */
+    private void checkFree(Integer port, ServiceOptions options) {
+        Map<Integer, ?> bound = options != null && options.getTransport() == Transport.UDP
+                ? datagrams : services;
+        if (bound.get(port) != null) {
             throw new IllegalArgumentException("Port " + port
                     + " already in use.");
         }
-        // Create a Listener object to listen for connections on the port
-        Listener listener = new Listener(threadGroup, port, service);
+    }
+
+    /**
+     * Bind the port for the service, over the transport of the options: a
+     * Listener for TCP, a DatagramListener for UDP.
+     */
+    private Thread bind(int port, Service service, ServiceOptions options)
+            throws IOException {
+        if (options.getTransport() == Transport.UDP) {
+            if (!(service instanceof DatagramService)) {
+                throw new IllegalArgumentException("Service "
+                        + service.getClass().getName() + " does not serve datagrams");
+            }
+            return new DatagramListener(this, port, (DatagramService) service, options);
+        }
+        return new Listener(this, port, service, options);
+    }
+
+    /**
+     * Start providing several services at once, binding their ports in
+     * parallel, as a node with many services would otherwise bind them one
+     * after the other. Either all of them start or, if a port cannot be
+     * bound, none does, and the ports already bound are closed again.
+     *
+     * @param services the services by port
+     * @param options the options by port; a port without any gets the
+     * defaults
+     * @throws java.io.IOException
+     */
+    public synchronized void addServices(Map<Integer, Service> services,
+            final Map<Integer, ServiceOptions> options) throws IOException {
+        for (Integer port : services.keySet()) {
+            checkFree(port, options.get(port));
+        }
+        if (services.isEmpty()) {
+            return;
+        }
+        ExecutorService binders = Executors.newFixedThreadPool(
+                Math.min(services.size(), BINDERS), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(threadGroup, r, "Binder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            Map<Integer, Future<Thread>> binding = new TreeMap<Integer, Future<Thread>>();
+            for (final Map.Entry<Integer, Service> e : services.entrySet()) {
+                binding.put(e.getKey(), binders.submit(new Callable<Thread>() {
+                    @Override
+                    public Thread call() throws IOException {
+                        ServiceOptions o = options.get(e.getKey());
+                        return bind(e.getKey(), e.getValue(),
+                                o != null ? o : new ServiceOptions());
+                    }
+                }));
+            }
+            Map<Integer, Thread> bound = new TreeMap<Integer, Thread>();
+            Throwable failure = null;
+            for (Map.Entry<Integer, Future<Thread>> e : binding.entrySet()) {
+                try {
+                    bound.put(e.getKey(), e.getValue().get());
+                } catch (ExecutionException x) {
+                    if (failure == null) {
+                        failure = x.getCause() instanceof IOException
+                                ? new IOException("Cannot bind port " + e.getKey()
+                                        + ": " + x.getCause().getMessage(), x.getCause())
+                                : x.getCause();
+                    }
+                } catch (InterruptedException x) {
+                    if (failure == null) {
+                        failure = new InterruptedIOException("Interrupted while binding");
+                    }
+                }
+            }
+            if (failure != null) {
+                for (Thread listener : bound.values()) {
+                    if (listener instanceof DatagramListener) {
+                        ((DatagramListener) listener).pleaseStop();
+                    } else {
+                        ((Listener) listener).pleaseStop();
+                    }
+                }
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                }
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                throw new IOException(failure);
+            }
+            for (Map.Entry<Integer, Thread> e : bound.entrySet()) {
+                start(e.getKey(), e.getValue());
+            }
+        } finally {
+            binders.shutdown();
+        }
+    }
+
+    /**
+     * Make a bound Listener or DatagramListener one of the services, and set
+     * it going.
+     */
+    private void start(Integer port, Thread bound) throws IOException {
+        if (bound instanceof DatagramListener) {
+            DatagramListener datagram = (DatagramListener) bound;
+            datagrams.put(port, datagram);
+            LOGGER.log(Level.INFO, "Starting datagram service {0} on port {1} with {2} threads",
+                    new Object[]{datagram.service.getClass().getName(), port, datagram.acceptors});
+            datagram.start();
+            return;
+        }
+        Listener listener = (Listener) bound;
         // Store it in the hashtable
-        services.put(key, listener);
+        services.put(port, listener);
 
-        LOGGER.log(Level.INFO, "Starting service {0} on port {1}",
-                new Object[]{service.getClass().getName(), port});
+        LOGGER.log(Level.INFO, "Starting service {0} on port {1} with {2} acceptors",
+                new Object[]{listener.service.getClass().getName(), port, listener.acceptors});
 
-        // Start the listener running.
-        listener.start();
+        // Start the service and the listener running, or hand its port to
+        // the event loops.
+        listener.startService();
+        if (nioEngine != null) {
+            nioEngine.register(listener);
+        } else {
+            listener.start();
+        }
     }
 
     /**
      * This method makes the server stop providing a service on a port. It does
      * not terminate any pending connections to that service, merely causes the
-     * server to stop accepting new connections
+     * server to stop accepting new connections. A datagram service on the port
+     * stops too.
      *
      * @param port
      * @throws java.io.IOException
      */
     public synchronized void removeService(int port) throws IOException {
         Integer key = new Integer(port);  // hashtable key
+        notifyAll();    // join() looks again once this is done
+        DatagramListener datagram = datagrams.remove(key);
+        if (datagram != null) {
+            datagram.pleaseStop();
+            LOGGER.log(Level.INFO, "Stopping datagram service {0} on port {1}",
+                    new Object[]{datagram.service.getClass().getName(), port});
+        }
         // Look up the Listener object for the porportt in the hashtable
         final Listener listener = (Listener) services.get(key);
         if (listener == null) {
@@ -108,6 +392,41 @@ public class Server {
         services.remove(key);
     }
 
+    /**
+     * Wait until the server provides no service any more, every port having
+     * been removed, through the Control service for instance. A program that
+     * starts a server and has nothing else to do calls this: with the NIO
+     * engine the ports are served by the event loops, which do not keep the
+     * JVM running.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void join() throws InterruptedException {
+        while (!services.isEmpty() || !datagrams.isEmpty()) {
+            wait();
+        }
+    }
+
+    /**
+     * Serve the connections to a port from now on with another service,
+     * keeping the port bound, so that no client is refused while a service
+     * is redeployed. The connections of the old service drain: they go on
+     * until they end, or until the port's drain timeout closes them.
+     *
+     * @param service
+     * @param port
+     */
+    public synchronized void replaceService(Service service, int port) {
+        Listener listener = services.get(port);
+        if (listener == null) {
+            throw new IllegalArgumentException("No service on port " + port);
+        }
+        Service old = listener.replace(service);
+        LOGGER.log(Level.INFO, "Replacing service {0} on port {1} with {2}, draining for {3} ms",
+                new Object[]{old.getClass().getName(), port,
+                    service.getClass().getName(), listener.getDrainTimeout()});
+    }
+
     /**
      * This method makes the server stop providing a service on a port. It does
      * not terminate any pending connections to that service, merely causes the
@@ -116,14 +435,11 @@ public class Server {
      * @throws java.io.IOException
      */
     public synchronized void removeAllServices() throws IOException {
-        // Look up the Listener object for the porportt in the hashtable
         for (Integer key : services.keySet()) {
-            // Ask the listener to stop
-            Listener listener = services.get(key);
-            listener.pleaseStop();
             removeService(key);
-            // Remove it from the hashtable
-            services.remove(key);
+        }
+        for (Integer key : datagrams.keySet()) {
+            removeService(key);
         }
     }
 
@@ -134,7 +450,80 @@ public class Server {
      */
     public synchronized void setMaxConnections(int max) {
         maxConnections = max;
-        Listener.setMaxConnections(max);
+        registry.setMaxConnections(max);
+        if (workerPool != null) {
+            workerPool.setWorkers(max);
+        }
+        if (nioEngine != null) {
+            nioEngine.setWorkers(max);
+        }
+    }
+
+    /**
+     * Change the connection limit of the service on the specified port. 0
+     * leaves only the global limit.
+     *
+     * @param port
+     * @param max
+     */
+    public synchronized void setMaxConnections(int port, int max) {
+        Listener listener = services.get(port);
+        if (listener == null) {
+            throw new IllegalArgumentException("No service on port " + port);
+        }
+        listener.setMaxConnections(max);
+    }
+
+    /**
+     * Change the limits on each client address, across all services: how
+     * many connections it may have open at once, and how many it may open
+     * per second, with a burst of how many at once. 0 means no limit. Clients
+     * over their limits are dropped as soon as they are accepted.
+     *
+     * @param maxPerClient
+     * @param rate
+     * @param burst
+     */
+    public void setClientLimits(int maxPerClient, double rate, double burst) {
+        limiter.setLimits(maxPerClient, rate, burst);
+        LOGGER.log(Level.INFO, "Client limits set to {0} connections, {1}/s, burst {2}",
+                new Object[]{maxPerClient, rate, burst});
+    }
+
+    public ClientLimiter getClientLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Change a timeout of the service on the specified port, for the
+     * connections it opens from then on. 0 means none.
+     *
+     * @param port
+     * @param kind idle, read, session, write, or drain, for the connections
+     * of the service replaced next
+     * @param millis
+     */
+    public synchronized void setTimeout(int port, String kind, long millis) {
+        Listener listener = services.get(port);
+        if (listener == null) {
+            throw new IllegalArgumentException("No service on port " + port);
+        }
+        if (millis < 0) {
+            throw new IllegalArgumentException("Bad timeout: " + millis);
+        }
+        if (kind.equals("idle")) {
+            listener.setIdleTimeout(millis);
+        } else if (kind.equals("read")) {
+            listener.setReadTimeout(millis);
+        } else if (kind.equals("session")) {
+            listener.setSessionTimeout(millis);
+        } else if (kind.equals("write")) {
+            listener.setWriteTimeout(millis);
+        } else if (kind.equals("drain")) {
+            listener.setDrainTimeout(millis);
+        } else {
+            throw new IllegalArgumentException("Unknown timeout " + kind);
+        }
     }
 
     /**
@@ -144,18 +533,275 @@ public class Server {
      *
      * @param out
      */
-    public synchronized void displayStatus(PrintWriter out) {
-        for (Integer port : services.keySet()) {
-            Listener listener = (Listener) services.get(port);
+    public void displayStatus(PrintWriter out) {
+        displayStatus(out, new StatusFilter());
+    }
+
+    /**
+     * Display the services and connections the filter selects. This takes no
+     * lock and copies nothing: it walks the live sets of services and
+     * connections, which never stop changing, and streams the lines as it
+     * goes, flushing them every few hundred, so a large status neither holds
+     * up the server nor piles up in memory.
+     *
+     * @param out
+     * @param filter
+     */
+    public void displayStatus(PrintWriter out, StatusFilter filter) {
+        boolean json = filter.isJson();
+        if (json) {
+            out.print("{\"type\":\"server\",\"time\":" + System.currentTimeMillis()
+                    + ",\"engine\":\"" + engine
+                    + "\",\"connections\":" + registry.getConnections()
+                    + ",\"maxConnections\":" + registry.getMaxConnections()
+                    + ",\"accepted\":" + registry.accepted.sum()
+                    + ",\"refused\":" + registry.refused.sum() + "}\n");
+        } else {
+            out.print("CONNECTIONS " + registry.getConnections() + " OF "
+                    + registry.getMaxConnections() + ", "
+                    + registry.accepted.sum() + " ACCEPTED, "
+                    + registry.refused.sum() + " REFUSED\n");
+            if (limiter.isEnabled()) {
+                limiter.displayStatus(out);
+            }
+            if (workerPool != null) {
+                workerPool.displayStatus(out);
+            }
+            if (nioEngine != null) {
+                nioEngine.displayStatus(out);
+            }
+        }
+        // Datagram services have no connections to page through
+        for (Map.Entry<Integer, DatagramListener> e : datagrams.entrySet()) {
+            int port = e.getKey();
+            DatagramListener datagram = e.getValue();
+            if (!filter.matches(port, datagram.service)) {
+                continue;
+            }
+            String name = datagram.service.getClass().getName();
+            if (json) {
+                out.print("{\"type\":\"service\",\"port\":" + port
+                        + ",\"service\":\"" + name
+                        + "\",\"transport\":\"UDP\",\"requests\":" + datagram.requests.sum()
+                        + ",\"replies\":" + datagram.replies.sum()
+                        + ",\"acceptors\":" + datagram.acceptors + "}\n");
+            } else {
+                out.print("DATAGRAM SERVICE " + name + " ON PORT " + port + " WITH "
+                        + datagram.requests.sum() + " REQUESTS, "
+                        + datagram.replies.sum() + " REPLIES"
+                        + (datagram.acceptors > 1 ? ", " + datagram.acceptors + " ACCEPTORS" : "")
+                        + "\n");
+            }
+        }
+        long skip = filter.getOffset();
+        long left = filter.getLimit() > 0 ? filter.getLimit() : Long.MAX_VALUE;
+        long shown = 0;
+        for (Map.Entry<Integer, Listener> e : services.entrySet()) {
+            int port = e.getKey();
+            Listener listener = e.getValue();
+            if (!filter.matches(port, listener)) {
+                continue;
+            }
+            String name = listener.service.getClass().getName();
+            int max = listener.getMaxConnections();
+            if (json) {
+                out.print("{\"type\":\"service\",\"port\":" + port
+                        + ",\"service\":\"" + name
+                        + "\",\"transport\":\"TCP\",\"connections\":" + listener.getConnections()
+                        + ",\"maxConnections\":" + max
+                        + ",\"acceptors\":" + listener.acceptors
+                        + ",\"tls\":" + (listener.tls != null) + "}\n");
+            } else {
+                out.print("SERVICE " + name
+                        + " ON PORT " + port + " WITH " + listener.getConnections()
+                        + (max > 0 ? " OF " + max : "") + " CONNECTIONS"
+                        + (listener.acceptors > 1 ? ", " + listener.acceptors + " ACCEPTORS" : "")
+                        + (listener.tls != null ? ", TLS" : "")
+                        + "\n");
+            }
+            for (ConnectionInfo info : listener.infos()) {
+                if (!filter.matches(info)) {
+                    continue;
+                }
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                if (left == 0) {
+                    // One more than the page: say where the next one starts
+                    long next = filter.getOffset() + shown;
+                    out.print(json ? "{\"type\":\"more\",\"offset\":" + next + "}\n"
+                            : "MORE FROM OFFSET " + next + "\n");
+                    out.flush();
+                    return;
+                }
+                left--;
+                printConnection(out, info, port, json);
+                if (++shown % STATUS_FLUSH == 0) {
+                    out.flush();
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * One line of status for one connection, printed piece by piece.
+     */
+    private static void printConnection(PrintWriter out, ConnectionInfo info,
+            int port, boolean json) {
+        // Its own service, which is not the port's while it drains
+        String name = info.service.getClass().getName();
+        long now = System.nanoTime();
+        long writing = info.writingSince;
+        if (json) {
+            out.print("{\"type\":\"connection\",\"id\":");
+            out.print(info.id);
+            out.print(",\"peer\":\"");
+            out.print(info.host());
+            out.print("\",\"peerPort\":");
+            out.print(info.peerPort);
+            out.print(",\"port\":");
+            out.print(port);
+            out.print(",\"service\":\"");
+            out.print(name);
+            out.print("\",\"ageMs\":");
+            out.print((now - info.start) / 1000000);
+            out.print(",\"idleMs\":");
+            out.print((now - info.lastActive) / 1000000);
+            out.print(",\"queued\":");
+            out.print(info.queued);
+            out.print(",\"writeBlockedMs\":");
+            out.print(writing != 0 ? (now - writing) / 1000000 : 0);
+            out.print("}\n");
+            return;
+        }
+        out.print("CONNECTION #");
+        out.print(info.id);
+        out.print(" TO ");
+        out.print(info.host());
+        out.print(':');
+        out.print(info.peerPort);
+        out.print(" ON PORT ");
+        out.print(info.localPort);
+        out.print(" FOR SERVICE ");
+        out.print(name);
+        out.print(", ");
+        out.print(info.queued);
+        out.print(" BYTES QUEUED");
+        if (writing != 0) {
+            out.print(", WRITE BLOCKED ");
+            out.print((now - writing) / 1000000);
+            out.print(" MS");
+        }
+        out.print('\n');
+    }
+
+    /**
+     * Display the counters and latency histograms of every service on the
+     * specified stream, as text in the style of displayStatus(), or as one
+     * line of JSON. The metrics are read without stopping anyone from
+     * recording into them.
+     *
+     * @param out
+     * @param json
+     */
+    public void displayStats(PrintWriter out, boolean json) {
+        if (json) {
+            out.print("{\"time\":" + System.currentTimeMillis()
+                    + ",\"connections\":" + registry.getConnections()
+                    + ",\"maxConnections\":" + registry.getMaxConnections()
+                    + ",\"accepted\":" + registry.accepted.sum()
+                    + ",\"refused\":" + registry.refused.sum()
+                    + ",\"overCap\":" + limiter.overCap.sum()
+                    + ",\"overRate\":" + limiter.overRate.sum()
+                    + (workerPool != null ? ",\"queued\":" + workerPool.getQueueDepth() : "")
+                    + ",\"buffers\":{");
+            BufferPool.getShared().printJson(out);
+            out.print("},\"services\":[");
+            String separator = "";
+            for (Map.Entry<Integer, Listener> e : services.entrySet()) {
+                Listener listener = e.getValue();
+                out.print(separator + "{\"port\":" + e.getKey() + ",\"service\":\""
+                        + listener.service.getClass().getName() + "\",\"connections\":"
+                        + listener.getConnections() + ",");
+                listener.getMetrics().printJson(out);
+                out.print("}");
+                separator = ",";
+            }
+            out.print("],\"datagrams\":[");
+            separator = "";
+            for (Map.Entry<Integer, DatagramListener> e : datagrams.entrySet()) {
+                out.print(separator + "{\"port\":" + e.getKey() + ",\"service\":\""
+                        + e.getValue().service.getClass().getName() + "\",");
+                e.getValue().printJson(out);
+                out.print("}");
+                separator = ",";
+            }
+            out.print("]}\n");
+            return;
+        }
+        out.print("CONNECTIONS " + registry.getConnections() + " OF "
+                + registry.getMaxConnections() + ", "
+                + registry.accepted.sum() + " ACCEPTED, "
+                + registry.refused.sum() + " REFUSED\n");
+        if (limiter.isEnabled()) {
+            limiter.displayStatus(out);
+        }
+        BufferPool.getShared().displayStatus(out);
+        for (Map.Entry<Integer, Listener> e : services.entrySet()) {
+            Listener listener = e.getValue();
             out.print("SERVICE " + listener.service.getClass().getName()
-                    + " ON PORT " + port + "\n");
-            for (Connection c : listener) {
-                out.print("CONNECTED TO "
-                        + c.client.getInetAddress().getHostAddress()
-                        + ":" + c.client.getPort() + " ON PORT "
-                        + c.client.getLocalPort() + " FOR SERVICE "
-                        + c.service.getClass().getName() + "\n");
+                    + " ON PORT " + e.getKey() + " WITH " + listener.getConnections()
+                    + " CONNECTIONS\n");
+            listener.getMetrics().print(out);
+        }
+        for (Map.Entry<Integer, DatagramListener> e : datagrams.entrySet()) {
+            out.print("DATAGRAM SERVICE " + e.getValue().service.getClass().getName()
+                    + " ON PORT " + e.getKey() + "\n");
+            e.getValue().print(out);
+        }
+    }
+
+    /**
+     * Append the stats, as a line of JSON, to the specified file every
+     * periodMillis milliseconds, until stopStatsDump() is called. This
+     * replaces any dump already running.
+     *
+     * @param file
+     * @param periodMillis
+     */
+    public synchronized void startStatsDump(final String file, long periodMillis) {
+        stopStatsDump();
+        statsDumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(threadGroup, r, "StatsDump");
+                t.setDaemon(true);
+                return t;
             }
+        });
+        statsDumper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+                    displayStats(out, true);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Cannot dump stats to " + file, e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        LOGGER.log(Level.INFO, "Dumping stats to {0} every {1} ms",
+                new Object[]{file, periodMillis});
+    }
+
+    /**
+     * Stop dumping the stats to a file.
+     */
+    public synchronized void stopStatsDump() {
+        if (statsDumper != null) {
+            statsDumper.shutdownNow();
+            statsDumper = null;
         }
     }
 }
@@ -0,0 +1,294 @@
+package Server;
+
+import Server.Services.Control;
+import Server.interfaces.DatagramService;
+import Server.interfaces.Service;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A server declared in a properties file: its engine and limits, the Control
+ * service, and the services on their ports, each with its options. For
+ * example:
+ *
+ * <pre>
+ * engine = NIO
+ * maxConnections = 1000
+ * clientLimits = 20,10,20
+ * control.port = 27000
+ * control.password = secret
+ * service.23000 = Server.Services.Reverse
+ * service.8080 = Server.Services.FileService
+ * service.8080.argument = /var/www
+ * service.8080.maxConnections = 500
+ * service.8080.acceptors = 2
+ * service.8080.idleTimeout = 30000
+ * service.8443 = Server.Services.HTTPMirror
+ * service.8443.idleTimeout = 15000
+ * service.8443.keystore = server.p12
+ * service.8443.keystorePassword = secret
+ * service.37 = Server.Services.Time
+ * service.37.transport = UDP
+ * </pre>
+ *
+ * The engine is one of BLOCKING, NIO, VIRTUAL and POOLED; POOLED also takes
+ * queueCapacity and queueTimeout. clientLimits are the connections each
+ * client address may have open, and optionally how many it may open per
+ * second, and how many at once. A service takes an argument, passed to its
+ * String constructor, and any of the options of ServiceOptions: maxConnections,
+ * acceptors, backlog, idleTimeout, readTimeout, sessionTimeout, writeTimeout,
+ * drainTimeout (in milliseconds), waterMarks (low,high bytes), backpressure, and a keystore
+ * with its password for TLS. Its transport is TCP, or UDP for a service that
+ * answers datagrams.
+ *
+ * The whole file is checked, and every service made, when it is loaded: an
+ * unknown setting, a bad value, a class that is not a Service, or not a
+ * DatagramService over UDP, or a keystore that can't be read fails with an
+ * IllegalArgumentException before any port is opened. start() then binds all
+ * the ports at once.
+ *
+ */
+public class ServerConfig {
+
+    private static final Set<String> SETTINGS = new HashSet<String>(Arrays.asList(
+            "engine", "maxConnections", "queueCapacity", "queueTimeout",
+            "clientLimits", "control.port", "control.password"));
+    private static final Set<String> SERVICE_SETTINGS = new HashSet<String>(Arrays.asList(
+            "argument", "maxConnections", "acceptors", "backlog", "idleTimeout",
+            "readTimeout", "sessionTimeout", "writeTimeout", "drainTimeout", "waterMarks",
+            "backpressure", "keystore", "keystorePassword", "transport"));
+
+    private Engine engine = Engine.BLOCKING;
+    private int maxConnections = 10;
+    private int queueCapacity = WorkerPool.DEFAULT_QUEUE_CAPACITY;
+    private long queueTimeout = WorkerPool.DEFAULT_QUEUE_TIMEOUT;
+    private int maxPerClient = 0;       // Client limits, 0 for none
+    private double rate = 0;
+    private double burst = 0;
+    private int controlPort = 0;        // 0 for no Control service
+    private String controlPassword;
+    private final Map<Integer, Service> services = new TreeMap<Integer, Service>();
+    private final Map<Integer, ServiceOptions> options = new TreeMap<Integer, ServiceOptions>();
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Read and check the configuration in the file, and make its services.
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file can't be read
+     */
+    public static ServerConfig load(String file) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        }
+        return parse(p);
+    }
+
+    /**
+     * Check the configuration and make its services.
+     *
+     * @param p
+     * @return
+     */
+    public static ServerConfig parse(Properties p) {
+        ServerConfig config = new ServerConfig();
+        // Every key must be known, so that a typo is not silently ignored
+        for (String key : p.stringPropertyNames()) {
+            if (SETTINGS.contains(key)) {
+                continue;
+            }
+            if (!key.startsWith("service.")) {
+                throw new IllegalArgumentException("Unknown setting " + key);
+            }
+            int dot = key.indexOf('.', 8);
+            int port = port(key, key.substring(8, dot < 0 ? key.length() : dot));
+            if (dot >= 0) {
+                if (!SERVICE_SETTINGS.contains(key.substring(dot + 1))) {
+                    throw new IllegalArgumentException("Unknown setting " + key);
+                }
+                if (p.getProperty("service." + port) == null) {
+                    throw new IllegalArgumentException("No service on port " + port
+                            + " for " + key);
+                }
+            }
+        }
+        if (p.getProperty("engine") != null) {
+            try {
+                config.engine = Engine.valueOf(p.getProperty("engine").trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown engine " + p.getProperty("engine")
+                        + ", use one of " + Arrays.toString(Engine.values()));
+            }
+        }
+        config.maxConnections = (int) number(p, "maxConnections", config.maxConnections, 1);
+        config.queueCapacity = (int) number(p, "queueCapacity", config.queueCapacity, 0);
+        config.queueTimeout = number(p, "queueTimeout", config.queueTimeout, 0);
+        if (p.getProperty("clientLimits") != null) {
+            double[] limits = numbers(p, "clientLimits", 1, 3);
+            config.maxPerClient = (int) limits[0];
+            config.rate = limits.length > 1 ? limits[1] : 0;
+            config.burst = limits.length > 2 ? limits[2] : config.rate;
+            if (config.maxPerClient < 0 || config.rate < 0 || config.burst < 0) {
+                throw new IllegalArgumentException("Bad value for clientLimits: "
+                        + p.getProperty("clientLimits"));
+            }
+        }
+        if (p.getProperty("control.port") != null) {
+            config.controlPort = port("control.port", p.getProperty("control.port"));
+            config.controlPassword = p.getProperty("control.password");
+            if (config.controlPassword == null || config.controlPassword.isEmpty()) {
+                throw new IllegalArgumentException("The Control service needs a control.password");
+            }
+        }
+        ServiceRegistry registry = ServiceRegistry.getShared();
+        for (String key : p.stringPropertyNames()) {
+            if (!key.startsWith("service.") || key.indexOf('.', 8) >= 0) {
+                continue;
+            }
+            int port = port(key, key.substring(8));
+            if (port == config.controlPort) {
+                throw new IllegalArgumentException("Port " + port
+                        + " is the Control service's");
+            }
+            String prefix = key + ".";
+            ServiceOptions o = options(p, prefix);
+            Service service = registry.create(p.getProperty(key).trim(),
+                    p.getProperty(prefix + "argument"));
+            if (o.getTransport() == Transport.UDP && !(service instanceof DatagramService)) {
+                throw new IllegalArgumentException("Service " + p.getProperty(key).trim()
+                        + " on port " + port + " does not serve datagrams");
+            }
+            config.options.put(port, o);
+            config.services.put(port, service);
+        }
+        return config;
+    }
+
+    /**
+     * The options of the service whose settings start with prefix.
+     */
+    private static ServiceOptions options(Properties p, String prefix) {
+        ServiceOptions o = new ServiceOptions();
+        o.setMaxConnections((int) number(p, prefix + "maxConnections", o.getMaxConnections(), 0));
+        o.setAcceptors((int) number(p, prefix + "acceptors", o.getAcceptors(), 1));
+        o.setBacklog((int) number(p, prefix + "backlog", o.getBacklog(), 0));
+        o.setIdleTimeout(number(p, prefix + "idleTimeout", o.getIdleTimeout(), 0));
+        o.setReadTimeout(number(p, prefix + "readTimeout", o.getReadTimeout(), 0));
+        o.setSessionTimeout(number(p, prefix + "sessionTimeout", o.getSessionTimeout(), 0));
+        o.setWriteTimeout(number(p, prefix + "writeTimeout", o.getWriteTimeout(), 0));
+        o.setDrainTimeout(number(p, prefix + "drainTimeout", o.getDrainTimeout(), 0));
+        if (p.getProperty(prefix + "waterMarks") != null) {
+            double[] marks = numbers(p, prefix + "waterMarks", 2, 2);
+            o.setWaterMarks((int) marks[0], (int) marks[1]);
+        }
+        String backpressure = p.getProperty(prefix + "backpressure");
+        if (backpressure != null) {
+            try {
+                o.setBackpressure(Backpressure.valueOf(backpressure.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown backpressure " + backpressure
+                        + ", use one of " + Arrays.toString(Backpressure.values()));
+            }
+        }
+        String transport = p.getProperty(prefix + "transport");
+        if (transport != null) {
+            try {
+                o.setTransport(Transport.valueOf(transport.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown transport " + transport
+                        + ", use one of " + Arrays.toString(Transport.values()));
+            }
+        }
+        String keystore = p.getProperty(prefix + "keystore");
+        if (keystore != null) {
+            String password = p.getProperty(prefix + "keystorePassword");
+            if (password == null) {
+                throw new IllegalArgumentException("No " + prefix + "keystorePassword");
+            }
+            o.setTls(Tls.context(keystore.trim(), password));
+        }
+        return o;
+    }
+
+    private static int port(String key, String value) {
+        int port = (int) parse(key, value);
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Bad port for " + key + ": " + value);
+        }
+        return port;
+    }
+
+    private static long number(Properties p, String key, long otherwise, long min) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            return otherwise;
+        }
+        long n = parse(key, value);
+        if (n < min) {
+            throw new IllegalArgumentException("Bad value for " + key + ": " + value);
+        }
+        return n;
+    }
+
+    private static long parse(String key, String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad value for " + key + ": " + value);
+        }
+    }
+
+    /**
+     * A list of min to max numbers separated by commas.
+     */
+    private static double[] numbers(Properties p, String key, int min, int max) {
+        String[] values = p.getProperty(key).split(",");
+        if (values.length < min || values.length > max) {
+            throw new IllegalArgumentException("Bad value for " + key + ": "
+                    + p.getProperty(key));
+        }
+        double[] numbers = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                numbers[i] = Double.parseDouble(values[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + key + ": "
+                        + p.getProperty(key));
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * Create the server and start all its services, binding their ports in
+     * parallel.
+     *
+     * @return
+     * @throws IOException if a port can't be bound, in which case none is
+     */
+    public Server start() throws IOException {
+        Server server = engine == Engine.POOLED
+                ? new Server(maxConnections, queueCapacity, queueTimeout)
+                : new Server(maxConnections, engine);
+        if (maxPerClient > 0 || rate > 0) {
+            server.setClientLimits(maxPerClient, rate, burst);
+        }
+        Map<Integer, Service> all = new TreeMap<Integer, Service>(services);
+        if (controlPort != 0) {
+            all.put(controlPort, new Control(server, controlPassword));
+        }
+        server.addServices(all, options);
+        return server;
+    }
+}
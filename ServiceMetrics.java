@@ -0,0 +1,202 @@
+package Server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and latency histograms of one service on one port. There is
+ * one for each Listener; the Listener, the engines and the WorkerPool record
+ * into it as connections come and go, and the Server reads it for the Control
+ * service's stats command.
+ *
+ * Everything is recorded with LongAdders and LatencyHistograms, so recording
+ * never takes a lock: not the Listener's, and not each other's.
+ *
+ */
+public final class ServiceMetrics {
+
+    final LongAdder accepted = new LongAdder();     // Connections admitted
+    final LongAdder refused = new LongAdder();      // Connections turned away
+    final LongAdder limited = new LongAdder();      // Of those, by the ClientLimiter
+    final LongAdder closed = new LongAdder();       // Connections ended
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder reads = new LongAdder();        // ChannelService.read() calls
+    final LongAdder idleTimeouts = new LongAdder(); // Connections expired, by timeout
+    final LongAdder readTimeouts = new LongAdder();
+    final LongAdder sessionTimeouts = new LongAdder();
+    final LongAdder writeTimeouts = new LongAdder();
+    final LongAdder pauses = new LongAdder();       // Slow clients paused
+    final LongAdder overflows = new LongAdder();    // Slow clients disconnected
+    final LongAdder handshakes = new LongAdder();   // TLS handshakes done
+    final LongAdder resumed = new LongAdder();      // Of those, resuming a session
+    final LongAdder handshakeFailures = new LongAdder();
+    final LatencyHistogram handshakeTime = new LatencyHistogram();
+    final LatencyHistogram duration = new LatencyHistogram();   // Of connections
+    final LatencyHistogram readTime = new LatencyHistogram();   // Of read() calls
+    final LatencyHistogram queueWait = new LatencyHistogram();  // In the WorkerPool
+    private final long started = System.nanoTime();
+
+    /**
+     * Record a call to ChannelService.read() that started at the specified
+     * System.nanoTime().
+     *
+     * @param start
+     */
+    void read(long start) {
+        reads.increment();
+        readTime.record(System.nanoTime() - start);
+    }
+
+    /**
+     * A stream that counts the bytes read through it as bytes in, and
+     * records in the connection's info when it waits for them.
+     *
+     * @param in
+     * @param info
+     * @return
+     */
+    InputStream count(InputStream in, final ConnectionInfo info) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                info.waiting();
+                int b;
+                try {
+                    b = super.read();
+                } finally {
+                    info.received();
+                }
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                info.waiting();
+                int n;
+                try {
+                    n = super.read(b, off, len);
+                } finally {
+                    info.received();
+                }
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * A stream that counts the bytes written through it as bytes out, and
+     * records in the connection's info when the client holds them up.
+     *
+     * @param out
+     * @param info
+     * @return
+     */
+    OutputStream count(OutputStream out, final ConnectionInfo info) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                info.writing();
+                try {
+                    out.write(b);
+                } finally {
+                    info.written();
+                }
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                info.writing();
+                try {
+                    out.write(b, off, len);
+                } finally {
+                    info.written();
+                }
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    /**
+     * Display the metrics in the style of Server.displayStatus().
+     *
+     * @param out
+     */
+    public void print(PrintWriter out) {
+        double seconds = uptime();
+        out.printf("  CONNECTIONS %d ACCEPTED (%.1f/S), %d REFUSED (%d CLIENT LIMITED), %d CLOSED%n",
+                accepted.sum(), accepted.sum() / seconds, refused.sum(), limited.sum(),
+                closed.sum());
+        out.printf("  BYTES %d IN, %d OUT, %d READS (%.1f/S)%n",
+                bytesIn.sum(), bytesOut.sum(), reads.sum(), reads.sum() / seconds);
+        out.printf("  TIMEOUTS %d IDLE, %d READ, %d SESSION, %d WRITE%n",
+                idleTimeouts.sum(), readTimeouts.sum(), sessionTimeouts.sum(),
+                writeTimeouts.sum());
+        out.printf("  SLOW CLIENTS %d PAUSED, %d DISCONNECTED%n",
+                pauses.sum(), overflows.sum());
+        out.print("  DURATION ");
+        duration.print(out);
+        out.print("  READ ");
+        readTime.print(out);
+        out.print("  QUEUE WAIT ");
+        queueWait.print(out);
+        if (handshakes.sum() + handshakeFailures.sum() > 0) {
+            out.printf("  TLS %d HANDSHAKES, %d RESUMED, %d FAILED%n",
+                    handshakes.sum(), resumed.sum(), handshakeFailures.sum());
+            out.print("  HANDSHAKE ");
+            handshakeTime.print(out);
+        }
+    }
+
+    /**
+     * Write the metrics as the fields of a JSON object, without the braces.
+     *
+     * @param out
+     */
+    public void printJson(PrintWriter out) {
+        out.print("\"uptime\":" + Math.round(uptime() * 1000) / 1000.0
+                + ",\"accepted\":" + accepted.sum()
+                + ",\"refused\":" + refused.sum()
+                + ",\"limited\":" + limited.sum()
+                + ",\"closed\":" + closed.sum()
+                + ",\"bytesIn\":" + bytesIn.sum()
+                + ",\"bytesOut\":" + bytesOut.sum()
+                + ",\"reads\":" + reads.sum()
+                + ",\"idleTimeouts\":" + idleTimeouts.sum()
+                + ",\"readTimeouts\":" + readTimeouts.sum()
+                + ",\"sessionTimeouts\":" + sessionTimeouts.sum()
+                + ",\"writeTimeouts\":" + writeTimeouts.sum()
+                + ",\"pauses\":" + pauses.sum()
+                + ",\"overflows\":" + overflows.sum()
+                + ",\"duration\":");
+        duration.printJson(out);
+        out.print(",\"read\":");
+        readTime.printJson(out);
+        out.print(",\"queueWait\":");
+        queueWait.printJson(out);
+        out.print(",\"handshakes\":" + handshakes.sum()
+                + ",\"resumed\":" + resumed.sum()
+                + ",\"handshakeFailures\":" + handshakeFailures.sum()
+                + ",\"handshake\":");
+        handshakeTime.printJson(out);
+    }
+
+    /**
+     * Seconds since the service started, never 0.
+     */
+    private double uptime() {
+        return Math.max(System.nanoTime() - started, 1) / 1e9;
+    }
+}
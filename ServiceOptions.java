@@ -0,0 +1,234 @@
+package Server;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * The settings of one service on one port, passed to Server.addService().
+ * The defaults of the acceptor count and the backlog can be changed with the
+ * server.acceptors and server.backlog system properties.
+ *
+ */
+public class ServiceOptions {
+
+    public static final String ACCEPTORS_PROPERTY = "server.acceptors";
+    public static final String BACKLOG_PROPERTY = "server.backlog";
+
+    private int maxConnections = 0;     // This service's limit, 0 for none
+    private int acceptors = Integer.getInteger(ACCEPTORS_PROPERTY, 1);
+    private int backlog = Integer.getInteger(BACKLOG_PROPERTY, 0);
+    private long idleTimeout = 0;       // milliseconds, 0 for none
+    private long readTimeout = 0;
+    private long sessionTimeout = 0;
+    private long writeTimeout = 0;
+    private long drainTimeout = 0;
+    private int lowWaterMark = 64 * 1024;     // bytes of output waiting
+    private int highWaterMark = 256 * 1024;
+    private Backpressure backpressure = Backpressure.PAUSE_READ;
+    private SSLContext tls;             // null for plaintext
+    private Transport transport = Transport.TCP;
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Limit the service to max concurrent connections, on top of the global
+     * limit. 0 means no limit of its own.
+     *
+     * @param max
+     */
+    public void setMaxConnections(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Bad connection limit: " + max);
+        }
+        this.maxConnections = max;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Accept the port's connections on this many threads, or, with the NIO
+     * engine, event loops. Where the platform supports SO_REUSEPORT (Linux),
+     * each acceptor binds a socket of its own to the port, and the kernel
+     * spreads the incoming connections over them; elsewhere they share one
+     * socket.
+     *
+     * @param acceptors
+     */
+    public void setAcceptors(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("Bad acceptor count: " + acceptors);
+        }
+        this.acceptors = acceptors;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * The length of the queue of connections not yet accepted, for each
+     * socket bound to the port. 0 leaves the platform's default.
+     *
+     * @param backlog
+     */
+    public void setBacklog(int backlog) {
+        if (backlog < 0) {
+            throw new IllegalArgumentException("Bad backlog: " + backlog);
+        }
+        this.backlog = backlog;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Close the connections that have had no bytes in or out for this many
+     * milliseconds. 0 means never.
+     *
+     * @param millis
+     */
+    public void setIdleTimeout(long millis) {
+        this.idleTimeout = timeout(millis);
+    }
+
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Close the connections whose service has waited this many milliseconds
+     * for the client's next bytes: slow or silent clients. 0 means never.
+     *
+     * @param millis
+     */
+    public void setReadTimeout(long millis) {
+        this.readTimeout = timeout(millis);
+    }
+
+    public long getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Close the connections that have been open for this many milliseconds,
+     * active or not. 0 means never.
+     *
+     * @param millis
+     */
+    public void setSessionTimeout(long millis) {
+        this.sessionTimeout = timeout(millis);
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Close the connections whose client has not taken their output for this
+     * many milliseconds: a write blocked that long, or, with the NIO engine
+     * and the BLOCK policy, output over the high water mark for that long. 0
+     * means never.
+     *
+     * @param millis
+     */
+    public void setWriteTimeout(long millis) {
+        this.writeTimeout = timeout(millis);
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * When the service is replaced on its port, close the connections still
+     * served by the old service after this many milliseconds. 0 means they
+     * run until they end.
+     *
+     * @param millis
+     */
+    public void setDrainTimeout(long millis) {
+        this.drainTimeout = timeout(millis);
+    }
+
+    public int getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Bound the output waiting for each slow client: over high bytes, the
+     * backpressure policy applies, until the output is back to low bytes.
+     *
+     * @param low
+     * @param high
+     */
+    public void setWaterMarks(int low, int high) {
+        if (low < 0 || high < 1 || low > high) {
+            throw new IllegalArgumentException("Bad water marks: " + low + ", " + high);
+        }
+        this.lowWaterMark = low;
+        this.highWaterMark = high;
+    }
+
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * What to do with a client over the high water mark.
+     *
+     * @param backpressure
+     */
+    public void setBackpressure(Backpressure backpressure) {
+        if (backpressure == null) {
+            throw new IllegalArgumentException("No backpressure policy");
+        }
+        this.backpressure = backpressure;
+    }
+
+    public SSLContext getTls() {
+        return tls;
+    }
+
+    /**
+     * Serve the port over TLS, with the certificate and session cache of the
+     * specified context, which Tls.context() makes from a keystore. null
+     * means plaintext.
+     *
+     * @param context
+     */
+    public void setTls(SSLContext context) {
+        this.tls = context;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Serve the port over TCP, or over UDP for a DatagramService, in which
+     * case only the acceptors count among the other options.
+     *
+     * @param transport
+     */
+    public void setTransport(Transport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("No transport");
+        }
+        this.transport = transport;
+    }
+
+    private static long timeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Bad timeout: " + millis);
+        }
+        return millis;
+    }
+}
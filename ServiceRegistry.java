@@ -0,0 +1,142 @@
+package Server;
+
+import Server.interfaces.Service;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes Services from their class names, for the startup configuration and
+ * the Control service's add command. Each class is looked up, checked to be
+ * a Service, and its constructors resolved into MethodHandles once; after
+ * that, making a service is a map lookup and a direct constructor call,
+ * without reflection.
+ *
+ * A service is made with its no-argument constructor, or, when it is given
+ * an argument, with its String constructor. Resolving a class fails with an
+ * IllegalArgumentException naming what is wrong, so that a bad name is
+ * caught before anything starts.
+ *
+ */
+public final class ServiceRegistry {
+
+    private static final MethodType NO_ARGUMENT = MethodType.methodType(Service.class);
+    private static final MethodType ARGUMENT
+            = MethodType.methodType(Service.class, String.class);
+    private static ServiceRegistry shared;
+
+    /**
+     * The constructors of one Service class, either of which may be missing.
+     */
+    private static final class Factory {
+
+        final MethodHandle noArgument;      // () -> Service, or null
+        final MethodHandle argument;        // (String) -> Service, or null
+
+        Factory(MethodHandle noArgument, MethodHandle argument) {
+            this.noArgument = noArgument;
+            this.argument = argument;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Factory> factories
+            = new ConcurrentHashMap<String, Factory>();
+
+    /**
+     * The registry shared by the whole process.
+     *
+     * @return
+     */
+    public static synchronized ServiceRegistry getShared() {
+        if (shared == null) {
+            shared = new ServiceRegistry();
+        }
+        return shared;
+    }
+
+    /**
+     * Check that the class is a Service that can be made with, or without,
+     * an argument, and remember its constructors.
+     *
+     * @param className
+     * @param withArgument
+     */
+    public void resolve(String className, boolean withArgument) {
+        Factory f = factory(className);
+        if (withArgument ? f.argument == null : f.noArgument == null) {
+            throw new IllegalArgumentException("Service " + className + " must have a "
+                    + (withArgument ? "String" : "no-argument") + " constructor");
+        }
+    }
+
+    /**
+     * Make a service of the class, with its String constructor if there is an
+     * argument, or else with its no-argument constructor.
+     *
+     * @param className
+     * @param argument or null
+     * @return
+     */
+    public Service create(String className, String argument) {
+        resolve(className, argument != null);
+        Factory f = factories.get(className);
+        try {
+            if (argument != null) {
+                return (Service) f.argument.invokeExact(argument);
+            }
+            return (Service) f.noArgument.invokeExact();
+        } catch (IllegalArgumentException e) {
+            // The service refused the argument
+            throw e;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Cannot create " + className + ": " + e, e);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalArgumentException("Cannot create " + className + ": " + e, e);
+        }
+    }
+
+    private Factory factory(String className) {
+        Factory f = factories.get(className);
+        if (f == null) {
+            f = lookup(className);
+            Factory raced = factories.putIfAbsent(className, f);
+            if (raced != null) {
+                f = raced;
+            }
+        }
+        return f;
+    }
+
+    private static Factory lookup(String className) {
+        Class<?> c;
+        try {
+            c = Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("No service class " + className);
+        }
+        if (!Service.class.isAssignableFrom(c)) {
+            throw new IllegalArgumentException(className + " is not a Service");
+        }
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodHandle noArgument = null;
+        MethodHandle argument = null;
+        try {
+            noArgument = lookup.findConstructor(c, MethodType.methodType(void.class))
+                    .asType(NO_ARGUMENT);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+        }
+        try {
+            argument = lookup.findConstructor(c, MethodType.methodType(void.class, String.class))
+                    .asType(ARGUMENT);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+        }
+        if (noArgument == null && argument == null) {
+            throw new IllegalArgumentException("Service " + className
+                    + " must have a public no-argument or String constructor");
+        }
+        return new Factory(noArgument, argument);
+    }
+}
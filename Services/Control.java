@@ -1,9 +1,13 @@
 package Server.Services;
 
 import Server.Server;
+import Server.ServiceRegistry;
+import Server.StatusFilter;
+import Server.Transport;
 import Server.interfaces.Service;
 import java.io.*;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This is a non-trivial service. It implements a command-based protocol that
@@ -12,9 +16,17 @@ import java.util.StringTokenizer;
  *
  * The recognized commands are: password: give password; authorization is
  * required for most commands add: dynamically add a named service on a
- * specified port remove: dynamically remove the service running on a specified
- * port max: change the current maximum connection limit. status: display
- * current services, connections, and connection limit help: display a help
+ * specified port, over TCP or UDP, passing it an optional argument remove:
+ * dynamically remove the services running on a specified port max: change the current maximum
+ * connection limit, globally or for the service on a specified port.
+ * replace: serve new connections to a port with another service, letting the
+ * old one's connections drain, without closing the port.
+ * timeout: change the idle, read, session, write or drain timeout of the service on a
+ * specified port. limit: change how many connections each client address may
+ * have open, and how many it may open per second. status: display current services, connections, and
+ * connection limit, filtered by port, service or client address, a page at a
+ * time, as text or JSON lines stats: display the counters and latencies of each service,
+ * as text or JSON, or dump them to a file periodically help: display a help
  * message quit: disconnect
  *
  * This service displays a prompt, and sends all of its output to the user in
@@ -26,7 +38,7 @@ public class Control implements Service {
 
     Server server;             // The server we control
     String password;           // The password we require
-    boolean connected = false; // Whether a client is already connected
+    final AtomicBoolean connected = new AtomicBoolean(); // Whether a client is already connected
 
     /**
      * Create a new Control service. It will control the specified Server
@@ -62,17 +74,13 @@ public class Control implements Service {
         boolean authorized = false;
 
         // If there is already a client connected to this service, display
-        // a message to this client and close the connection.  We use a
-        // synchronized block to prevent a race condition.
-        synchronized (this) {
-            if (connected) {
-                out.print("ONLY ONE CONTROL CONNECTION ALLOWED.\n");
-                out.close();
-                in.close();
-                return;
-            } else {
-                connected = true;
-            }
+        // a message to this client and close the connection.  We use an
+        // atomic compare-and-set to prevent a race condition.
+        if (!connected.compareAndSet(false, true)) {
+            out.print("ONLY ONE CONTROL CONNECTION ALLOWED.\n");
+            out.close();
+            in.close();
+            return;
         }
 
         try {
@@ -105,42 +113,117 @@ public class Control implements Service {
                         // Display command syntax.  Password not required
                         out.print("COMMANDS:\n"
                                 + "\tpassword <password>\n"
-                                + "\tadd <service> <port>\n"
+                                + "\tadd [tcp|udp] <service> <port> [<argument>]\n"
                                 + "\tremove <port>\n"
-                                + "\tmax <max-connections>\n"
-                                + "\tstatus\n"
+                                + "\tmax <max-connections> [<port>]\n"
+                                + "\treplace <service> <port> [<argument>]\n"
+                                + "\ttimeout idle|read|session|write|drain <milliseconds> <port>\n"
+                                + "\tlimit <connections-per-client> [<per-second> [<burst>]]\n"
+                                + "\tstatus [json] [port <port>] [service <name>] [peer <address>[/<bits>]]\n"
+                                + "\t       [offset <n>] [limit <n>]\n"
+                                + "\tstats [json | dump <file> <seconds> | dump off]\n"
                                 + "\thelp\n"
                                 + "\tquit\n");
                     } else if (authorized) {
                         // Check whether password has been given
                         if (command.equals("add")) {  // Add Service command
-                            // Get the name of the service and try to
-                            // dynamically load and instantiate it.
-                            // Exceptions will be handled below
+                            // Get the name of the service and make it
+                            // through the registry, which resolves each
+                            // class's constructors once. Exceptions will
+                            // be handled below
                             String serviceName = t.nextToken();
-                            Class serviceClass = Class.forName(serviceName);
-                            Service service;
-                            try {
-                                service = (Service) serviceClass.newInstance();
-                            } catch (InstantiationException e) {
-                                throw new IllegalArgumentException(
-                                        "Service must have a "
-                                        + "no-argument constructor");
+                            // Over TCP unless it says otherwise
+                            Transport transport = Transport.TCP;
+                            if (serviceName.equalsIgnoreCase("tcp")
+                                    || serviceName.equalsIgnoreCase("udp")) {
+                                transport = Transport.valueOf(serviceName.toUpperCase());
+                                serviceName = t.nextToken();
                             }
                             int port = Integer.parseInt(t.nextToken());
+                            // An argument for the service, such as the
+                            // root directory of a FileService
+                            String argument = t.hasMoreTokens() ? t.nextToken() : null;
+                            Service service = ServiceRegistry.getShared()
+                                    .create(serviceName, argument);
                             // If no exceptions occurred, add the service
-                            server.addService(service, port);
+                            server.addService(service, port, transport);
                             out.print("SERVICE ADDED\n");    // acknowledge
+                        } else if (command.equals("replace")) { // Swap service
+                            String serviceName = t.nextToken();
+                            int port = Integer.parseInt(t.nextToken());
+                            String argument = t.hasMoreTokens() ? t.nextToken() : null;
+                            Service service = ServiceRegistry.getShared()
+                                    .create(serviceName, argument);
+                            server.replaceService(service, port);
+                            out.print("SERVICE REPLACED\n");
                         } else if (command.equals("remove")) { // Remove service
                             int port = Integer.parseInt(t.nextToken());
                             server.removeService(port); // remove the service
                             out.print("SERVICE REMOVED\n"); // acknowledge
                         } else if (command.equals("max")) { // Set connection limit
                             int max = Integer.parseInt(t.nextToken());
-                            server.setMaxConnections(max);
+                            if (t.hasMoreTokens()) {
+                                // Set the limit of the service on that port
+                                int port = Integer.parseInt(t.nextToken());
+                                server.setMaxConnections(port, max);
+                            } else {
+                                server.setMaxConnections(max);
+                            }
                             out.print("MAX CONNECTIONS CHANGED\n");
+                        } else if (command.equals("timeout")) { // Set a timeout
+                            String kind = t.nextToken();
+                            long millis = Long.parseLong(t.nextToken());
+                            int port = Integer.parseInt(t.nextToken());
+                            server.setTimeout(port, kind, millis);
+                            out.print("TIMEOUT CHANGED\n");
+                        } else if (command.equals("limit")) { // Limit each client
+                            int max = Integer.parseInt(t.nextToken());
+                            double rate = t.hasMoreTokens()
+                                    ? Double.parseDouble(t.nextToken()) : 0;
+                            double burst = t.hasMoreTokens()
+                                    ? Double.parseDouble(t.nextToken()) : rate;
+                            server.setClientLimits(max, rate, burst);
+                            out.print("CLIENT LIMITS CHANGED\n");
                         } else if (command.equals("status")) { // Status Display
-                            server.displayStatus(out);
+                            StatusFilter filter = new StatusFilter();
+                            long offset = 0;
+                            long limit = 0;
+                            while (t.hasMoreTokens()) {
+                                String option = t.nextToken().toLowerCase();
+                                if (option.equals("json")) {
+                                    filter.setJson(true);
+                                } else if (option.equals("port")) {
+                                    filter.setPort(Integer.parseInt(t.nextToken()));
+                                } else if (option.equals("service")) {
+                                    filter.setService(t.nextToken());
+                                } else if (option.equals("peer")) {
+                                    filter.setPeer(t.nextToken());
+                                } else if (option.equals("offset")) {
+                                    offset = Long.parseLong(t.nextToken());
+                                } else if (option.equals("limit")) {
+                                    limit = Long.parseLong(t.nextToken());
+                                } else {
+                                    throw new IllegalArgumentException(
+                                            "Unknown status option " + option);
+                                }
+                            }
+                            filter.setPage(offset, limit);
+                            server.displayStatus(out, filter);
+                        } else if (command.equals("stats")) { // Metrics
+                            String format = t.hasMoreTokens() ? t.nextToken() : "";
+                            if (format.equals("dump")) {
+                                String file = t.nextToken();
+                                if (file.equals("off")) {
+                                    server.stopStatsDump();
+                                    out.print("STATS DUMP STOPPED\n");
+                                } else {
+                                    long seconds = Long.parseLong(t.nextToken());
+                                    server.startStatsDump(file, seconds * 1000);
+                                    out.print("STATS DUMP STARTED\n");
+                                }
+                            } else {
+                                server.displayStats(out, format.equals("json"));
+                            }
                         } else if (command.equals("quit")) {
                             break; // Quit command.
                         } else {
@@ -154,16 +237,6 @@ public class Control implements Service {
                     // error message, then output details of the exception.
                     out.print("ERROR WHILE PARSING OR EXECUTING COMMAND:\n"
                             + e + "\n");
-                } catch (ClassNotFoundException e) {
-                    // If an exception occurred during the command, print an
-                    // error message, then output details of the exception.
-                    out.print("ERROR WHILE PARSING OR EXECUTING COMMAND:\n"
-                            + e + "\n");
-                } catch (IllegalAccessException e) {
-                    // If an exception occurred during the command, print an
-                    // error message, then output details of the exception.
-                    out.print("ERROR WHILE PARSING OR EXECUTING COMMAND:\n"
-                            + e + "\n");
                 } catch (IllegalArgumentException e) {
                     // If an exception occurred during the command, print an
                     // error message, then output details of the exception.
@@ -180,7 +253,7 @@ public class Control implements Service {
             // Finally, when the loop command loop ends, close the streams
             // and set our connected flag to false so that other clients can
             // now connect.
-            connected = false;
+            connected.set(false);
             out.close();
             in.close();
         }
@@ -1,16 +1,46 @@
 package Server.Services;
 
-import Server.interfaces.Service;
+import Server.LineCodec;
+import Server.interfaces.ChannelService;
+import Server.interfaces.ChannelSession;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This is another example service. It reads lines of input from the client, and
- * sends them back, reversed. It also displays a welcome message and
- * instructions, and closes the connection when the user enters a '.' on a line
- * by itself.
+ * sends them back. It also displays a welcome message and instructions, and
+ * closes the connection when the user enters a '.' on a line by itself.
+ *
+ * It is also a ChannelService: served by the Listener it uses a LineCodec to
+ * copy each line from the input buffer into a pooled output buffer, writing
+ * the replies to all the lines of a read at once, without allocating anything
+ * per line. serve() keeps the stream-based implementation, so the two can be
+ * compared.
  *
  */
-public class Echo implements Service {
+public class Echo implements ChannelService, LineCodec.Handler {
+
+    private static final byte[] WELCOME = ("Welcome to the Echo server.\n"
+            + "Enter lines.  End with a '.' on a line by itself.\n> ")
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEWLINE_PROMPT = "\n> ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TOO_LONG = "Line too long.\n> ".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxLineLength;
+
+    public Echo() {
+        this(LineCodec.DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    /**
+     * Create the service, discarding lines longer than maxLineLength bytes.
+     *
+     * @param maxLineLength
+     */
+    public Echo(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
 
     @Override
     public void serve(InputStream i, OutputStream o) throws IOException {
@@ -27,9 +57,48 @@ public class Echo implements Service {
             if ((line == null) || line.equals(".")) {
                 break;
             }
+            out.print(line);
             out.print("\n");
         }
         out.close();
         in.close();
     }
+
+    @Override
+    public void open(ChannelSession session) throws IOException {
+        session.attach(new LineCodec(this, maxLineLength));
+        session.write(ByteBuffer.wrap(WELCOME));
+    }
+
+    @Override
+    public void read(ChannelSession session, ByteBuffer in) throws IOException {
+        ((LineCodec) session.attachment()).decode(session, in);
+    }
+
+    @Override
+    public boolean line(ByteBuffer line, ByteBuffer out) {
+        int start = line.position();
+        if (line.limit() - start == 1 && line.get(start) == '.') {
+            return false;
+        }
+        out.put(line);
+        line.position(start);
+        out.put(NEWLINE_PROMPT);
+        return true;
+    }
+
+    @Override
+    public boolean overflow(ByteBuffer out) {
+        out.put(TOO_LONG);
+        return true;
+    }
+
+    @Override
+    public void close(ChannelSession session) {
+        LineCodec codec = (LineCodec) session.attachment();
+        if (codec != null) {
+            codec.release();
+            session.attach(null);
+        }
+    }
 }
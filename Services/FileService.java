@@ -0,0 +1,623 @@
+package Server.Services;
+
+import Server.BufferPool;
+import Server.interfaces.ChannelService;
+import Server.interfaces.ChannelSession;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This service serves the files under a root directory over HTTP/1.1, for
+ * GET and HEAD requests, so that large artifacts can be downloaded from the
+ * same process as the other services. Connections are persistent and
+ * pipelined requests are answered in order, as with the HTTPMirror. A single
+ * byte range ("Range: bytes=first-last", "first-" or "-suffix") is answered
+ * with 206 Partial Content.
+ *
+ * File contents never pass through the Java heap: they are sent with
+ * FileChannel.transferTo(), which the kernel does with sendfile, or, for
+ * small files that are asked for often, written from a read-only memory
+ * mapping of the file. Open files, and their mappings, are kept in a
+ * least-recently-used cache shared by all connections, so a popular file is
+ * not opened again for every request. A response holds its file only until
+ * it has been sent, so a connection asking for many files holds at most
+ * those still being sent.
+ *
+ */
+public class FileService implements ChannelService {
+
+    public static final String ROOT_PROPERTY = "server.files.root";
+    public static final int DEFAULT_MAX_REQUESTS = 100;
+    public static final int DEFAULT_CACHE_SIZE = 256;       // open files
+    public static final long MAP_THRESHOLD = 64 * 1024;     // largest mapped file
+    public static final int MAP_HITS = 8;                   // requests before mapping
+    public static final long REVALIDATE_INTERVAL = 1000;    // milliseconds
+    private static final int HEAD_SIZE = 512;               // Bytes of response head at most
+
+    private static final byte[] STATUS_OK = Http.ascii("HTTP/1.1 200 OK\r\n");
+    private static final byte[] STATUS_PARTIAL = Http.ascii("HTTP/1.1 206 Partial Content\r\n");
+    private static final byte[] CONTENT_LENGTH = Http.ascii("Content-Length: ");
+    private static final byte[] CONTENT_RANGE = Http.ascii("Content-Range: bytes ");
+    private static final byte[] ACCEPT_RANGES = Http.ascii("Accept-Ranges: bytes\r\n");
+    private static final byte[] CLOSE = Http.ascii("Connection: close\r\n");
+    private static final byte[] KEEP_ALIVE = Http.ascii("Connection: keep-alive\r\n");
+    private static final byte[] CRLF = Http.ascii("\r\n");
+    private static final byte[] OCTET_STREAM = Http.ascii(
+            "Content-Type: application/octet-stream\r\n");
+    private static final Map<String, byte[]> CONTENT_TYPES = new HashMap<String, byte[]>();
+
+    static {
+        String[] types = {
+            "html", "text/html", "htm", "text/html", "txt", "text/plain",
+            "css", "text/css", "js", "application/javascript",
+            "json", "application/json", "xml", "application/xml",
+            "png", "image/png", "jpg", "image/jpeg", "jpeg", "image/jpeg",
+            "gif", "image/gif", "svg", "image/svg+xml", "pdf", "application/pdf",
+            "zip", "application/zip", "gz", "application/gzip",
+            "jar", "application/java-archive"};
+        for (int i = 0; i < types.length; i += 2) {
+            CONTENT_TYPES.put(types[i], Http.ascii("Content-Type: " + types[i + 1] + "\r\n"));
+        }
+    }
+
+    // The states of a connection
+    private static final int HEAD = 0;          // Reading request line and headers
+    private static final int DONE = 1;          // Closing; ignore the rest
+
+    private final Path root;
+    private final int maxRequests;
+    private final HandleCache cache;
+
+    /**
+     * Serve the directory named by the server.files.root system property, or
+     * the current directory.
+     */
+    public FileService() {
+        this(System.getProperty(ROOT_PROPERTY, "."));
+    }
+
+    /**
+     * Serve the files under the specified directory. This is the constructor
+     * the Control service's add command uses when given an argument.
+     *
+     * @param root
+     */
+    public FileService(String root) {
+        this(root, DEFAULT_MAX_REQUESTS, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Serve the files under the specified directory, closing connections
+     * that have made maxRequests requests, and keeping up to cacheSize files
+     * open.
+     *
+     * @param root
+     * @param maxRequests
+     * @param cacheSize
+     */
+    public FileService(String root, int maxRequests, int cacheSize) {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        if (!Files.isDirectory(this.root)) {
+            throw new IllegalArgumentException(root + " is not a directory");
+        }
+        this.maxRequests = maxRequests;
+        this.cache = new HandleCache(cacheSize);
+    }
+
+    /**
+     * The state of one connection.
+     */
+    private static final class Exchange {
+
+        final ByteBuffer head = BufferPool.getShared().borrow(HEAD_SIZE); // Response head
+        int state = HEAD;
+        int requests = 0;
+        boolean close;              // Close once this response has been sent
+        long rangeFirst, rangeLast; // The requested range, -1 where absent
+        boolean ranged;             // Whether a range was requested
+    }
+
+    /**
+     * An open file, shared by all the connections sending it. The channel is
+     * closed once the file has left the cache and no response being sent
+     * holds it any more.
+     */
+    private static final class Handle {
+
+        final Path path;
+        final FileChannel channel;
+        final long size;
+        final long modified;
+        final byte[] contentType;
+        volatile MappedByteBuffer mapped;   // The whole file, once it is hot
+        long checked;                       // When size and time were last checked
+        int hits = 0;
+        int refs = 0;
+        boolean retired = false;
+
+        Handle(Path path, FileChannel channel, BasicFileAttributes attributes) {
+            this.path = path;
+            this.channel = channel;
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.checked = System.currentTimeMillis();
+            String name = path.getFileName().toString();
+            byte[] type = CONTENT_TYPES.get(
+                    name.substring(name.lastIndexOf('.') + 1).toLowerCase());
+            this.contentType = type != null ? type : OCTET_STREAM;
+        }
+
+        /**
+         * Whether the file on disk is still the one that was opened.
+         */
+        boolean current() {
+            try {
+                BasicFileAttributes a = Files.readAttributes(path, BasicFileAttributes.class);
+                return a.size() == size && a.lastModifiedTime().toMillis() == modified;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The open files, least recently used first. The lock is only held to
+     * look up and count: files are opened, checked and mapped outside of it.
+     */
+    @SuppressWarnings("serial")     // Never serialized
+    private static final class HandleCache extends LinkedHashMap<Path, Handle> {
+
+        private final int capacity;
+
+        HandleCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        Handle acquire(Path path) throws IOException {
+            Handle h;
+            int hits = 0;
+            boolean check = false;
+            synchronized (this) {
+                h = get(path);
+                if (h != null) {
+                    h.refs++;
+                    hits = ++h.hits;
+                    long now = System.currentTimeMillis();
+                    if (now - h.checked > REVALIDATE_INTERVAL) {
+                        // This caller checks it, the others go on meanwhile
+                        h.checked = now;
+                        check = true;
+                    }
+                }
+            }
+            if (check && !h.current()) {
+                synchronized (this) {
+                    if (get(path) == h) {
+                        retire(remove(path));
+                    }
+                    release(h);
+                }
+                h = null;
+            }
+            if (h == null) {
+                h = open(path);
+                if (h == null) {
+                    return null;
+                }
+                synchronized (this) {
+                    Handle other = get(path);
+                    if (other != null) {
+                        // Somebody opened it meanwhile
+                        h.channel.close();
+                        h = other;
+                    } else {
+                        put(path, h);
+                    }
+                    h.refs++;
+                    hits = ++h.hits;
+                }
+            }
+            if (h.mapped == null && hits >= MAP_HITS && h.size <= MAP_THRESHOLD
+                    && h.size > 0) {
+                h.mapped = h.channel.map(FileChannel.MapMode.READ_ONLY, 0, h.size);
+            }
+            return h;
+        }
+
+        /**
+         * Open a regular file, or return null if it is something else.
+         */
+        private static Handle open(Path path) throws IOException {
+            BasicFileAttributes attributes
+                    = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            return new Handle(path, FileChannel.open(path, StandardOpenOption.READ),
+                    attributes);
+        }
+
+        synchronized void release(Handle h) {
+            if (--h.refs == 0 && h.retired) {
+                close(h);
+            }
+        }
+
+        private void retire(Handle h) {
+            h.retired = true;
+            if (h.refs == 0) {
+                close(h);
+            }
+        }
+
+        private static void close(Handle h) {
+            try {
+                h.channel.close();
+            } catch (IOException e) {
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Handle> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            retire(eldest.getValue());
+            return true;
+        }
+    }
+
+    @Override
+    public void open(ChannelSession session) throws IOException {
+        session.attach(new Exchange());
+    }
+
+    @Override
+    public void close(ChannelSession session) {
+        Exchange x = (Exchange) session.attachment();
+        session.attach(null);
+        if (x != null) {
+            BufferPool.getShared().release(x.head);
+        }
+    }
+
+    @Override
+    public void read(ChannelSession session, ByteBuffer in) throws IOException {
+        Exchange x = (Exchange) session.attachment();
+        while (in.hasRemaining()) {
+            if (x.state != HEAD) {
+                in.position(in.limit());
+                return;
+            }
+            Http.skipEmptyLines(in);
+            int end = Http.endOfHead(in);
+            if (end < 0) {
+                if (in.position() == 0 && in.limit() == in.capacity()) {
+                    error(session, x, "431 Request Header Fields Too Large");
+                }
+                return;
+            }
+            request(session, x, in, end);
+            in.position(end);
+        }
+    }
+
+    /**
+     * Answer the request whose head is [in.position(), end).
+     */
+    private void request(ChannelSession session, Exchange x, ByteBuffer in, int end)
+            throws IOException {
+        int start = in.position();
+        // The request line: method, target and version
+        int sp1 = Http.indexOf(in, start, end, (byte) ' ');
+        int eol = Http.indexOf(in, start, end, (byte) '\n');
+        int sp2 = sp1 < 0 ? -1 : Http.indexOf(in, sp1 + 1, eol, (byte) ' ');
+        if (sp1 <= start || sp2 < 0) {
+            error(session, x, "400 Bad Request");
+            return;
+        }
+        boolean http11;
+        if (Http.regionEquals(in, sp2 + 1, "HTTP/1.1")) {
+            http11 = true;
+        } else if (Http.regionEquals(in, sp2 + 1, "HTTP/1.0")) {
+            http11 = false;
+        } else {
+            error(session, x, "505 HTTP Version Not Supported");
+            return;
+        }
+        boolean head = Http.regionEquals(in, start, "HEAD ");
+        if (!head && !Http.regionEquals(in, start, "GET ")) {
+            error(session, x, "405 Method Not Allowed");
+            return;
+        }
+        boolean keepAlive = http11;
+        x.ranged = false;
+        // The headers we care about
+        for (int line = eol + 1; line < end;) {
+            int next = Http.indexOf(in, line, end, (byte) '\n') + 1;
+            int colon = Http.indexOf(in, line, next, (byte) ':');
+            if (colon > 0) {
+                int value = colon + 1;
+                if (Http.nameEquals(in, line, colon, "range")) {
+                    range(in, value, next, x);
+                } else if (Http.nameEquals(in, line, colon, "content-length")) {
+                    if (Http.parseLength(in, value, next) != 0) {
+                        error(session, x, "400 Bad Request");
+                        return;
+                    }
+                } else if (Http.nameEquals(in, line, colon, "transfer-encoding")) {
+                    error(session, x, "400 Bad Request");
+                    return;
+                } else if (Http.nameEquals(in, line, colon, "connection")) {
+                    if (Http.valueContains(in, value, next, "close")) {
+                        keepAlive = false;
+                    } else if (Http.valueContains(in, value, next, "keep-alive")) {
+                        keepAlive = true;
+                    }
+                }
+            }
+            line = next;
+        }
+        x.requests++;
+        x.close = !keepAlive || x.requests >= maxRequests;
+
+        Path path = resolve(in, sp1 + 1, sp2);
+        if (path == null) {
+            respond(session, x, "400 Bad Request", http11, null);
+            return;
+        }
+        Handle h;
+        try {
+            h = cache.acquire(path);
+        } catch (NoSuchFileException e) {
+            h = null;
+        } catch (AccessDeniedException e) {
+            respond(session, x, "403 Forbidden", http11, null);
+            return;
+        }
+        if (h == null) {
+            respond(session, x, "404 Not Found", http11, null);
+            return;
+        }
+        // Held until the response is written, or its transfer done
+        boolean transferring = false;
+        try {
+            transferring = send(session, x, h, head, http11);
+        } finally {
+            if (!transferring) {
+                cache.release(h);
+            }
+        }
+        complete(session, x);
+    }
+
+    /**
+     * Send the file, or the requested range of it, after the response head.
+     *
+     * @return whether the body is being transferred, and the handle released
+     * once it has been
+     */
+    private boolean send(ChannelSession session, Exchange x, final Handle h, boolean head,
+            boolean http11) throws IOException {
+        // The bytes to send: the whole file or the requested range
+        long first = 0;
+        long last = h.size - 1;
+        if (x.ranged) {
+            if (x.rangeFirst < 0) {
+                first = Math.max(0, h.size - x.rangeLast);
+            } else {
+                first = x.rangeFirst;
+                if (x.rangeLast >= 0 && x.rangeLast < last) {
+                    last = x.rangeLast;
+                }
+            }
+            if (first >= h.size || (x.rangeFirst < 0 && x.rangeLast == 0)) {
+                status(session, x, "416 Range Not Satisfiable", http11, h);
+                return false;
+            }
+        }
+        long length = last - first + 1;
+
+        ByteBuffer out = x.head;
+        out.clear();
+        out.put(x.ranged ? STATUS_PARTIAL : STATUS_OK);
+        out.put(Http.DATE.bytes());
+        out.put(h.contentType);
+        out.put(CONTENT_LENGTH);
+        Http.putDecimal(out, length);
+        out.put(CRLF);
+        out.put(ACCEPT_RANGES);
+        if (x.ranged) {
+            out.put(CONTENT_RANGE);
+            Http.putDecimal(out, first);
+            out.put((byte) '-');
+            Http.putDecimal(out, last);
+            out.put((byte) '/');
+            Http.putDecimal(out, h.size);
+            out.put(CRLF);
+        }
+        connection(out, x, http11);
+        out.put(CRLF);
+        out.flip();
+        MappedByteBuffer mapped = h.mapped;
+        boolean transferring = false;
+        if (head || length == 0) {
+            session.write(out);
+        } else if (mapped != null) {
+            // What the socket doesn't take is copied aside
+            ByteBuffer body = mapped.duplicate();
+            body.limit((int) (last + 1)).position((int) first);
+            session.write(out, body);
+        } else {
+            session.write(out);
+            session.transfer(h.channel, first, length, new Runnable() {
+                @Override
+                public void run() {
+                    cache.release(h);
+                }
+            });
+            transferring = true;
+        }
+        return transferring;
+    }
+
+    /**
+     * The file named by the request target in [from, to), or null if the
+     * target is not a path under the root. The query is ignored.
+     */
+    private Path resolve(ByteBuffer in, int from, int to) {
+        if (from >= to || in.get(from) != '/') {
+            return null;
+        }
+        ByteArrayOutputStream name = new ByteArrayOutputStream(to - from);
+        for (int j = from + 1; j < to; j++) {
+            byte b = in.get(j);
+            if (b == '?' || b == '#') {
+                break;
+            }
+            if (b == '%') {
+                int hi = j + 2 < to ? Character.digit((char) in.get(j + 1), 16) : -1;
+                int lo = hi >= 0 ? Character.digit((char) in.get(j + 2), 16) : -1;
+                if (lo < 0) {
+                    return null;
+                }
+                b = (byte) (hi * 16 + lo);
+                j += 2;
+            }
+            name.write(b);
+        }
+        try {
+            Path path = root.resolve(
+                    new String(name.toByteArray(), StandardCharsets.UTF_8)).normalize();
+            return path.startsWith(root) ? path : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse a Range header value in [from, to). Only a single byte range is
+     * honored: anything else leaves the request unranged, and the whole file
+     * is sent.
+     */
+    private static void range(ByteBuffer in, int from, int to, Exchange x) {
+        x.ranged = false;
+        int j = from;
+        while (j < to && in.get(j) == ' ') {
+            j++;
+        }
+        if (!Http.regionEquals(in, j, "bytes=")) {
+            return;
+        }
+        j += "bytes=".length();
+        long first = -1;
+        long last = -1;
+        for (; j < to && Character.isDigit((char) in.get(j)); j++) {
+            first = (first < 0 ? 0 : first) * 10 + (in.get(j) - '0');
+            if (first > Long.MAX_VALUE / 10) {
+                return;
+            }
+        }
+        if (j >= to || in.get(j) != '-') {
+            return;
+        }
+        for (j++; j < to && Character.isDigit((char) in.get(j)); j++) {
+            last = (last < 0 ? 0 : last) * 10 + (in.get(j) - '0');
+            if (last > Long.MAX_VALUE / 10) {
+                return;
+            }
+        }
+        for (; j < to; j++) {
+            byte b = in.get(j);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return;     // A list of ranges, or garbage
+            }
+        }
+        if ((first < 0 && last < 0) || (last >= 0 && first > last)) {
+            return;
+        }
+        x.rangeFirst = first;
+        x.rangeLast = last;
+        x.ranged = true;
+    }
+
+    private static void connection(ByteBuffer out, Exchange x, boolean http11) {
+        if (x.close) {
+            out.put(CLOSE);
+        } else if (!http11) {
+            out.put(KEEP_ALIVE);
+        }
+    }
+
+    /**
+     * Answer with a status and no body, keeping the connection open if the
+     * client asked for it.
+     */
+    private static void respond(ChannelSession session, Exchange x, String status,
+            boolean http11, Handle h) throws IOException {
+        status(session, x, status, http11, h);
+        complete(session, x);
+    }
+
+    /**
+     * Send a status and no body. The handle is given for 416, to tell the
+     * size.
+     */
+    private static void status(ChannelSession session, Exchange x, String status,
+            boolean http11, Handle h) throws IOException {
+        ByteBuffer out = x.head;
+        out.clear();
+        out.put(Http.ascii("HTTP/1.1 " + status + "\r\n"));
+        out.put(Http.DATE.bytes());
+        out.put(CONTENT_LENGTH);
+        out.put((byte) '0');
+        out.put(CRLF);
+        if (h != null) {
+            out.put(CONTENT_RANGE);
+            out.put((byte) '*');
+            out.put((byte) '/');
+            Http.putDecimal(out, h.size);
+            out.put(CRLF);
+        }
+        connection(out, x, http11);
+        out.put(CRLF);
+        out.flip();
+        session.write(out);
+    }
+
+    /**
+     * The request has been answered: close, or wait for the next one.
+     */
+    private static void complete(ChannelSession session, Exchange x) throws IOException {
+        if (x.close) {
+            x.state = DONE;
+            session.close();
+        }
+    }
+
+    /**
+     * Answer with an error status and close the connection.
+     */
+    private static void error(ChannelSession session, Exchange x, String status)
+            throws IOException {
+        x.state = DONE;
+        session.write(ByteBuffer.wrap(Http.ascii("HTTP/1.1 " + status + "\r\n"
+                + "Content-Length: 0\r\n" + "Connection: close\r\n\r\n")));
+        session.close();
+    }
+}
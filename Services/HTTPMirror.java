@@ -1,29 +1,334 @@
 package Server.Services;
 
-import Server.interfaces.Service;
+import Server.BufferPool;
+import Server.interfaces.ChannelService;
+import Server.interfaces.ChannelSession;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * This service is an HTTP mirror, just like the HttpMirror class implemented
- * earlier in this chapter. It echos back the client's HTTP request
+ * earlier in this chapter. It echos back the client's HTTP request: the
+ * request line, the headers and the body, as the body of a text/plain
+ * response.
+ *
+ * It speaks HTTP/1.1, so that load balancers using it as a health or echo
+ * endpoint don't pay a new connection per request: connections are persistent
+ * unless the client asks otherwise, pipelined requests are answered in order,
+ * and request bodies may come with a Content-Length or chunked. A request
+ * whose body length is ambiguous, with differing Content-Lengths or with
+ * both a Content-Length and a Transfer-Encoding, is answered 400 and the
+ * connection closed, as a proxy in front may have read it otherwise. A
+ * connection is closed after maxRequests requests. Give its port an idleTimeout, so that
+ * kept-alive sockets don't hold on to the server's connection slots.
+ *
+ * Request bodies are never buffered: they are sent back from the input buffer
+ * as they arrive, and a chunked body is sent back chunked, as it came. Each
+ * response head is built in a buffer borrowed from the BufferPool while the
+ * connection is open.
  *
  */
-public class HTTPMirror implements Service {
+public class HTTPMirror implements ChannelService {
+
+    public static final int DEFAULT_MAX_REQUESTS = 100;
+    private static final int HEAD_SIZE = 256;   // Bytes of response head at most
+
+    private static final byte[] STATUS_OK = Http.ascii("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: text/plain\r\n");
+    private static final byte[] CONTENT_LENGTH = Http.ascii("Content-Length: ");
+    private static final byte[] CHUNKED = Http.ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] CLOSE = Http.ascii("Connection: close\r\n");
+    private static final byte[] KEEP_ALIVE = Http.ascii("Connection: keep-alive\r\n");
+    private static final byte[] CRLF = Http.ascii("\r\n");
+
+    // The states of a connection
+    private static final int HEAD = 0;          // Reading request line and headers
+    private static final int BODY = 1;          // Reading a Content-Length body
+    private static final int CHUNK_SIZE = 2;    // Reading a chunk-size line
+    private static final int CHUNK_DATA = 3;    // Reading chunk data
+    private static final int CHUNK_END = 4;     // Reading the CRLF after chunk data
+    private static final int TRAILER = 5;       // Reading trailer lines
+    private static final int DONE = 6;          // Closing; ignore the rest
+
+    private final int maxRequests;
+
+    public HTTPMirror() {
+        this(DEFAULT_MAX_REQUESTS);
+    }
+
+    /**
+     * Create the mirror, closing connections that have made maxRequests
+     * requests.
+     *
+     * @param maxRequests
+     */
+    public HTTPMirror(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * The state of one connection.
+     */
+    private static final class Exchange {
+
+        final ByteBuffer head = BufferPool.getShared().borrow(HEAD_SIZE); // Response head
+        int state = HEAD;
+        int requests = 0;
+        boolean close;          // Close once this response has been sent
+        boolean mirrorBody;     // Whether the body is sent back (not for HEAD)
+        long remaining;         // Bytes left in the body or the chunk
+    }
 
     @Override
-    public void serve(InputStream i, OutputStream o) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(i));
-        PrintWriter out = new PrintWriter(o);
-        out.print("HTTP/1.0 200 \n");
-        out.print("Content-Type: text/plain\n\n");
-        String line;
-        while ((line = in.readLine()) != null) {
-            if (line.length() == 0) {
-                break;
+    public void open(ChannelSession session) throws IOException {
+        session.attach(new Exchange());
+    }
+
+    @Override
+    public void close(ChannelSession session) {
+        Exchange x = (Exchange) session.attachment();
+        if (x != null) {
+            BufferPool.getShared().release(x.head);
+        }
+        session.attach(null);
+    }
+
+    @Override
+    public void read(ChannelSession session, ByteBuffer in) throws IOException {
+        Exchange x = (Exchange) session.attachment();
+        while (in.hasRemaining()) {
+            switch (x.state) {
+                case HEAD: {
+                    Http.skipEmptyLines(in);
+                    int end = Http.endOfHead(in);
+                    if (end < 0) {
+                        if (in.position() == 0 && in.limit() == in.capacity()) {
+                            error(session, x, "431 Request Header Fields Too Large");
+                        }
+                        return;
+                    }
+                    request(session, x, in, end);
+                    break;
+                }
+                case BODY: {
+                    int n = (int) Math.min(x.remaining, in.remaining());
+                    relay(session, x, in, n);
+                    x.remaining -= n;
+                    if (x.remaining == 0) {
+                        complete(session, x);
+                    }
+                    break;
+                }
+                case CHUNK_DATA: {
+                    int n = (int) Math.min(x.remaining, in.remaining());
+                    relay(session, x, in, n);
+                    x.remaining -= n;
+                    if (x.remaining == 0) {
+                        x.state = CHUNK_END;
+                    }
+                    break;
+                }
+                case CHUNK_SIZE:
+                case CHUNK_END:
+                case TRAILER: {
+                    int eol = Http.endOfLine(in);
+                    if (eol < 0) {
+                        if (in.position() == 0 && in.limit() == in.capacity()) {
+                            error(session, x, "400 Bad Request");
+                        }
+                        return;
+                    }
+                    chunkLine(session, x, in, eol);
+                    break;
+                }
+                default:
+                    in.position(in.limit());
+                    return;
             }
-            out.print(line + "\n");
         }
-        out.close();
-        in.close();
+    }
+
+    /**
+     * Answer the request whose head is [in.position(), end): send the status
+     * and headers, then the request head itself.
+     */
+    private void request(ChannelSession session, Exchange x, ByteBuffer in, int end)
+            throws IOException {
+        int start = in.position();
+        // The request line: method, target and version
+        int sp1 = Http.indexOf(in, start, end, (byte) ' ');
+        int eol = Http.indexOf(in, start, end, (byte) '\n');
+        int sp2 = sp1 < 0 ? -1 : Http.indexOf(in, sp1 + 1, eol, (byte) ' ');
+        if (sp1 <= start || sp2 < 0) {
+            error(session, x, "400 Bad Request");
+            return;
+        }
+        boolean http11;
+        if (Http.regionEquals(in, sp2 + 1, "HTTP/1.1")) {
+            http11 = true;
+        } else if (Http.regionEquals(in, sp2 + 1, "HTTP/1.0")) {
+            http11 = false;
+        } else {
+            error(session, x, "505 HTTP Version Not Supported");
+            return;
+        }
+        boolean keepAlive = http11;
+        boolean encoded = false;    // Whether there is a Transfer-Encoding
+        boolean chunked = false;
+        long length = -1;           // None given
+        // The headers we care about
+        for (int line = eol + 1; line < end;) {
+            int next = Http.indexOf(in, line, end, (byte) '\n') + 1;
+            int colon = Http.indexOf(in, line, next, (byte) ':');
+            if (colon > 0) {
+                int value = colon + 1;
+                if (Http.nameEquals(in, line, colon, "content-length")) {
+                    long n = Http.parseLength(in, value, next);
+                    // A proxy in front may have taken another length: only
+                    // the same one again is allowed
+                    if (n < 0 || (length >= 0 && n != length)) {
+                        error(session, x, "400 Bad Request");
+                        return;
+                    }
+                    length = n;
+                } else if (Http.nameEquals(in, line, colon, "transfer-encoding")) {
+                    encoded = true;
+                    chunked |= Http.valueContains(in, value, next, "chunked");
+                } else if (Http.nameEquals(in, line, colon, "connection")) {
+                    if (Http.valueContains(in, value, next, "close")) {
+                        keepAlive = false;
+                    } else if (Http.valueContains(in, value, next, "keep-alive")) {
+                        keepAlive = true;
+                    }
+                }
+            }
+            line = next;
+        }
+        // A body framed both ways is read one way here and maybe the other
+        // by a proxy in front, so it is refused rather than guessed at
+        if ((chunked && !http11) || (encoded && length >= 0)) {
+            error(session, x, "400 Bad Request");
+            return;
+        }
+        if (encoded && !chunked) {
+            error(session, x, "501 Not Implemented");
+            return;
+        }
+        if (length < 0) {
+            length = 0;
+        }
+        x.requests++;
+        x.close = !keepAlive || x.requests >= maxRequests;
+        x.mirrorBody = !Http.regionEquals(in, start, "HEAD ");
+        int headLength = end - start;
+
+        ByteBuffer head = x.head;
+        head.clear();
+        head.put(STATUS_OK);
+        head.put(Http.DATE.bytes());
+        if (chunked) {
+            head.put(CHUNKED);
+        } else {
+            head.put(CONTENT_LENGTH);
+            Http.putDecimal(head, headLength + length);
+            head.put(CRLF);
+        }
+        if (x.close) {
+            head.put(CLOSE);
+        } else if (!http11) {
+            head.put(KEEP_ALIVE);
+        }
+        head.put(CRLF);
+        if (chunked && x.mirrorBody) {
+            // The request head goes out as the first chunk
+            Http.putHex(head, headLength);
+            head.put(CRLF);
+        }
+        head.flip();
+        int limit = in.limit();
+        in.limit(end);
+        if (!x.mirrorBody) {
+            session.write(head);
+        } else if (chunked) {
+            session.write(head, in, ByteBuffer.wrap(CRLF));
+        } else {
+            session.write(head, in);
+        }
+        in.limit(limit).position(end);
+
+        if (chunked) {
+            x.state = CHUNK_SIZE;
+        } else if (length > 0) {
+            x.state = BODY;
+            x.remaining = length;
+        } else {
+            complete(session, x);
+        }
+    }
+
+    /**
+     * Send back the next n bytes, if the body is being mirrored, and consume
+     * them.
+     */
+    private static void relay(ChannelSession session, Exchange x, ByteBuffer in, int n)
+            throws IOException {
+        int limit = in.limit();
+        int end = in.position() + n;
+        if (x.mirrorBody) {
+            in.limit(end);
+            session.write(in);
+            in.limit(limit);
+        }
+        in.position(end);
+    }
+
+    /**
+     * Handle one line of the chunked framing, [in.position(), eol], sending it
+     * back as it is.
+     */
+    private static void chunkLine(ChannelSession session, Exchange x, ByteBuffer in, int eol)
+            throws IOException {
+        int start = in.position();
+        if (x.state == CHUNK_SIZE) {
+            long size = Http.parseHex(in, start, eol);
+            if (size < 0) {
+                error(session, x, "400 Bad Request");
+                return;
+            }
+            x.remaining = size;
+            x.state = size == 0 ? TRAILER : CHUNK_DATA;
+            relay(session, x, in, eol + 1 - start);
+        } else if (x.state == CHUNK_END) {
+            x.state = CHUNK_SIZE;
+            relay(session, x, in, eol + 1 - start);
+        } else {
+            relay(session, x, in, eol + 1 - start);
+            if (Http.isEmptyLine(in, start, eol)) {
+                complete(session, x);
+            }
+        }
+    }
+
+    /**
+     * The request has been answered: close, or wait for the next one.
+     */
+    private static void complete(ChannelSession session, Exchange x) throws IOException {
+        if (x.close) {
+            x.state = DONE;
+            session.close();
+        } else {
+            x.state = HEAD;
+        }
+    }
+
+    /**
+     * Answer with an error status and close the connection.
+     */
+    private static void error(ChannelSession session, Exchange x, String status)
+            throws IOException {
+        x.state = DONE;
+        session.write(ByteBuffer.wrap(Http.ascii("HTTP/1.1 " + status + "\r\n"
+                + "Content-Length: 0\r\n" + "Connection: close\r\n\r\n")));
+        session.close();
     }
 }
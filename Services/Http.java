@@ -0,0 +1,183 @@
+package Server.Services;
+
+import Server.CachedClock;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for the HTTP services to parse requests and build responses
+ * straight in ByteBuffers. They work on absolute indexes into the buffer and
+ * allocate nothing.
+ *
+ */
+final class Http {
+
+    /**
+     * The Date header, as HTTP/1.1 origin servers must send it, shared by
+     * every response of every service.
+     */
+    static final CachedClock DATE = new CachedClock(CachedClock.Format.RFC_1123,
+            CachedClock.DEFAULT_RESOLUTION, "Date: ", "\r\n");
+
+    private Http() {
+    }
+
+    static void skipEmptyLines(ByteBuffer in) {
+        int p = in.position();
+        while (p < in.limit() && (in.get(p) == '\r' || in.get(p) == '\n')) {
+            p++;
+        }
+        in.position(p);
+    }
+
+    /**
+     * The index just past the empty line that ends the request head, or -1.
+     */
+    static int endOfHead(ByteBuffer in) {
+        for (int j = in.position(); j < in.limit(); j++) {
+            if (in.get(j) != '\n') {
+                continue;
+            }
+            int k = j + 1;
+            if (k < in.limit() && in.get(k) == '\r') {
+                k++;
+            }
+            if (k < in.limit() && in.get(k) == '\n') {
+                return k + 1;
+            }
+        }
+        return -1;
+    }
+
+    static int endOfLine(ByteBuffer in) {
+        return indexOf(in, in.position(), in.limit(), (byte) '\n');
+    }
+
+    static int indexOf(ByteBuffer in, int from, int to, byte b) {
+        for (int j = from; j < to; j++) {
+            if (in.get(j) == b) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    static boolean regionEquals(ByteBuffer in, int from, String s) {
+        if (from + s.length() > in.limit()) {
+            return false;
+        }
+        for (int j = 0; j < s.length(); j++) {
+            if (in.get(from + j) != s.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the header name in [from, to) is the lower case name, ignoring
+     * case.
+     */
+    static boolean nameEquals(ByteBuffer in, int from, int to, String name) {
+        if (to - from != name.length()) {
+            return false;
+        }
+        for (int j = 0; j < name.length(); j++) {
+            if (Character.toLowerCase((char) in.get(from + j)) != name.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the header value in [from, to) contains the lower case token,
+     * ignoring case.
+     */
+    static boolean valueContains(ByteBuffer in, int from, int to, String token) {
+        for (int j = from; j + token.length() <= to; j++) {
+            int k = 0;
+            while (k < token.length()
+                    && Character.toLowerCase((char) in.get(j + k)) == token.charAt(k)) {
+                k++;
+            }
+            if (k == token.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isEmptyLine(ByteBuffer in, int from, int eol) {
+        return eol == from || (eol == from + 1 && in.get(from) == '\r');
+    }
+
+    /**
+     * The decimal value in [from, to), one run of digits surrounded by
+     * optional white space, or -1 if it isn't one: "1 2" is not 12.
+     */
+    static long parseLength(ByteBuffer in, int from, int to) {
+        while (from < to && isWhiteSpace(in.get(from))) {
+            from++;
+        }
+        while (to > from && isWhiteSpace(in.get(to - 1))) {
+            to--;
+        }
+        if (from == to) {
+            return -1;
+        }
+        long n = 0;
+        for (int j = from; j < to; j++) {
+            byte b = in.get(j);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            n = n * 10 + (b - '0');
+            if (n > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+    private static boolean isWhiteSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * The hexadecimal chunk size at the start of [from, to), before any chunk
+     * extension, or -1 if there isn't one.
+     */
+    static long parseHex(ByteBuffer in, int from, int to) {
+        long n = -1;
+        for (int j = from; j < to; j++) {
+            int d = Character.digit((char) in.get(j), 16);
+            if (d < 0) {
+                break;
+            }
+            n = (n < 0 ? 0 : n) * 16 + d;
+            if (n > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+    static void putDecimal(ByteBuffer out, long n) {
+        if (n >= 10) {
+            putDecimal(out, n / 10);
+        }
+        out.put((byte) ('0' + n % 10));
+    }
+
+    static void putHex(ByteBuffer out, long n) {
+        if (n >= 16) {
+            putHex(out, n / 16);
+        }
+        out.put((byte) Character.forDigit((int) (n % 16), 16));
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
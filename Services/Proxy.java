@@ -0,0 +1,1021 @@
+package Server.Services;
+
+import Server.BufferPool;
+import Server.interfaces.ChannelService;
+import Server.interfaces.ChannelSession;
+import Server.interfaces.ManagedService;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This service puts the server in front of other servers: it forwards each
+ * client to one of a set of upstream host:port backends, and relays the bytes
+ * both ways until either side closes. The backend is picked by a Strategy,
+ * among those that passed their last health check.
+ *
+ * It is a ChannelService, so the client's bytes come in the direct buffer
+ * the engine read them into. The upstream connections are served by one I/O
+ * thread of the proxy, with a Selector: it connects to the backends, giving
+ * up on one after CONNECT_TIMEOUT, writes the client's bytes to them and
+ * reads their answers, without blocking, so that neither an event loop nor a
+ * thread per client waits for a backend. An answer is read into a direct
+ * buffer borrowed from the BufferPool for the life of the connection, and
+ * written to the client through the session by one of RELAY_THREADS relay
+ * threads, as the session applies the port's backpressure to it; the backend
+ * is not read again until it has been. Nothing is allocated per chunk either
+ * way.
+ *
+ * A health checker connects to every backend at a fixed interval. A backend
+ * it cannot reach is skipped until it can again; the connections it makes are
+ * kept, up to a few per backend, as a warm pool that new clients take their
+ * upstream connection from before connecting anew. A pooled connection is
+ * only used once, and one idle for too long is closed instead, as backends
+ * may time idle connections out.
+ *
+ * It is a ManagedService: the I/O thread and the health checker start with
+ * the port, or with the first client if the proxy is used outside a Server,
+ * and stop() ends the checks and closes the pool once the port is closed or
+ * the proxy replaced and done with its last client.
+ *
+ * The client's bytes are copied into pooled buffers for the I/O thread to
+ * write. Once more than OUTBOUND_HIGH bytes wait for a backend, the client's
+ * input is suspended until they are down to OUTBOUND_LOW.
+ *
+ */
+public class Proxy implements ChannelService, ManagedService {
+
+    /**
+     * How a backend is picked for a new client.
+     */
+    public enum Strategy {
+        /**
+         * Each backend in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The backend with the fewest clients being relayed.
+         */
+        LEAST_CONNECTIONS,
+        /**
+         * The same backend for every connection from one client address, as
+         * long as it is up, moving as few clients as possible when backends
+         * come and go.
+         */
+        CONSISTENT_HASH
+    }
+
+    public static final int DEFAULT_POOL_SIZE = 4;          // Warm connections per backend
+    public static final long DEFAULT_CHECK_INTERVAL = 2000; // milliseconds
+    public static final int CONNECT_TIMEOUT = 1000;         // milliseconds
+    public static final long MAX_IDLE = 30000;              // milliseconds, in the pool
+    private static final int REPLICAS = 160;                // Points of a backend on the ring
+    private static final int BUFFER_SIZE = 16 * 1024;
+    public static final int OUTBOUND_HIGH = 64 * 1024;     // Bytes waiting for a backend
+    public static final int OUTBOUND_LOW = 16 * 1024;
+    public static final int RELAY_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final Logger LOGGER = Logger.getLogger(Proxy.class.getName());
+
+    /**
+     * An upstream connection made ahead of time.
+     */
+    private static final class Idle {
+
+        final SocketChannel channel;
+        final long since = System.currentTimeMillis();
+
+        Idle(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * One upstream server.
+     */
+    public static final class Backend {
+
+        final InetSocketAddress address;
+        volatile boolean up = true;             // Until a check says otherwise
+        final AtomicInteger active = new AtomicInteger();   // Clients being relayed
+        final LongAdder connections = new LongAdder();      // Clients relayed in all
+        final LongAdder failures = new LongAdder();         // Failed connects
+        final Deque<Idle> pool = new ConcurrentLinkedDeque<Idle>();
+        final AtomicInteger pooled = new AtomicInteger();
+
+        Backend(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public boolean isUp() {
+            return up;
+        }
+
+        public int getActive() {
+            return active.get();
+        }
+
+        public long getConnections() {
+            return connections.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public int getPooled() {
+            return pooled.get();
+        }
+    }
+
+    /**
+     * The state of one client's connection, attached to its session. Its
+     * upstream side is served by the proxy's I/O thread, which connects,
+     * writes what the client sent and reads what the backend answers, all
+     * without blocking. The answer is written to the client by a relay
+     * thread, as the session may hold it back while the client is slow, and
+     * the backend is not read meanwhile.
+     */
+    private final class Relay {
+
+        final ChannelSession session;
+        private final List<Backend> tried = new ArrayList<Backend>(2);
+        private Backend target;         // Being connected to
+        private Backend backend;        // Once connected
+        private SocketChannel upstream; // Once connecting
+        private SelectionKey key;       // Of upstream, on the proxy's selector
+        private long deadline;          // Of the connect under way
+        private boolean delivering = false; // A relay thread is writing buffer
+        private boolean finished = false;   // The upstream side is closed
+        // The fields above belong to the I/O thread, the ones below are locked
+        ByteBuffer buffer;      // Upstream to client, in write mode
+        // Client to upstream, in read mode
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+        private int waiting = 0;            // Bytes in outbound
+        private boolean flushing = false;   // A flush is queued for the I/O thread
+        private boolean suspended = false;  // The client's input is
+        private boolean closed = false;     // The client is gone
+
+        Relay(ChannelSession session, ByteBuffer buffer) {
+            this.session = session;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Queue the client's bytes for the backend, and have the I/O thread
+         * write them. Runs on the engine's thread, which must not wait for
+         * the backend.
+         */
+        synchronized void forward(ByteBuffer in) {
+            if (closed) {
+                in.position(in.limit());
+                return;
+            }
+            while (in.hasRemaining()) {
+                ByteBuffer b = BufferPool.getShared().borrow(Math.min(in.remaining(), BUFFER_SIZE));
+                int n = Math.min(in.remaining(), b.capacity());
+                int limit = in.limit();
+                in.limit(in.position() + n);
+                b.put(in);
+                in.limit(limit);
+                b.flip();
+                outbound.addLast(b);
+                waiting += n;
+            }
+            if (waiting > OUTBOUND_HIGH && !suspended) {
+                suspended = true;
+                session.suspendInput();
+            }
+            if (!flushing) {
+                flushing = true;
+                if (!submit(flusher)) {
+                    // Stopped, and the I/O thread gone with it
+                    discard();
+                }
+            }
+        }
+
+        private final Runnable flusher = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        };
+
+        /**
+         * Connect to the next backend, from its pool if it has a live
+         * connection, or else without waiting for the connect to complete.
+         * Runs on the I/O thread.
+         */
+        void connect() {
+            while (!finished) {
+                Backend b = select(session.getRemoteAddress(), tried);
+                if (b == null) {
+                    LOGGER.log(Level.FINE, "No backend reachable for {0}",
+                            session.getRemoteAddress());
+                    closeClient();
+                    return;
+                }
+                tried.add(b);
+                target = b;
+                try {
+                    upstream = pooled(b, buffer);
+                    if (upstream != null) {
+                        connected();
+                        return;
+                    }
+                    upstream = SocketChannel.open();
+                    upstream.configureBlocking(false);
+                    upstream.socket().setTcpNoDelay(true);
+                    if (upstream.connect(b.address)) {
+                        connected();
+                        return;
+                    }
+                    key = upstream.register(selector, SelectionKey.OP_CONNECT, this);
+                    deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+                    connecting.add(this);
+                    return;
+                } catch (IOException e) {
+                    unreachable();
+                }
+            }
+        }
+
+        /**
+         * The backend being connected to did not answer: mark it down and
+         * forget the attempt. Runs on the I/O thread.
+         */
+        void unreachable() {
+            target.failures.increment();
+            setUp(target, false);
+            connecting.remove(this);
+            if (key != null) {
+                key.cancel();
+                key = null;
+            }
+            if (upstream != null) {
+                closeQuietly(upstream);
+                upstream = null;
+            }
+        }
+
+        /**
+         * The upstream connection is up: relay both ways, starting with what
+         * the client sent meanwhile, and what a pooled connection already
+         * received. Runs on the I/O thread.
+         */
+        private void connected() throws IOException {
+            connecting.remove(this);
+            if (key == null) {
+                key = upstream.register(selector, SelectionKey.OP_READ, this);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            backend = target;
+            backend.active.incrementAndGet();
+            backend.connections.increment();
+            try {
+                flush();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            if (buffer.position() > 0) {
+                deliver();
+            }
+        }
+
+        /**
+         * The upstream connection is ready. Runs on the I/O thread.
+         */
+        void ready() {
+            if (finished) {
+                return;
+            }
+            if (key.isConnectable()) {
+                try {
+                    if (upstream.finishConnect()) {
+                        connected();
+                    }
+                } catch (IOException e) {
+                    unreachable();
+                    connect();
+                }
+                return;
+            }
+            try {
+                if (key.isWritable()) {
+                    flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    receive();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Write what the client sent to the backend, as far as it takes it.
+         * Runs on the I/O thread.
+         */
+        private void flush() throws IOException {
+            synchronized (this) {
+                flushing = false;
+            }
+            if (backend == null || finished) {
+                return;     // Written once connected
+            }
+            for (;;) {
+                ByteBuffer b;
+                synchronized (this) {
+                    b = outbound.peekFirst();
+                }
+                if (b == null) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+                upstream.write(b);
+                if (b.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                synchronized (this) {
+                    outbound.pollFirst();
+                    waiting -= b.limit();
+                    BufferPool.getShared().release(b);
+                    if (suspended && waiting <= OUTBOUND_LOW) {
+                        suspended = false;
+                        session.resumeInput();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Read what the backend answered, and have it written to the client.
+         * Runs on the I/O thread.
+         */
+        private void receive() throws IOException {
+            if (upstream.read(buffer) < 0) {
+                // The backend is done: so is the client, once it has the rest
+                key.interestOps(0);
+                closeClient();
+                return;
+            }
+            if (buffer.position() > 0) {
+                deliver();
+            }
+        }
+
+        /**
+         * Have a relay thread write the buffer to the client, and stop
+         * reading the backend until it has. Runs on the I/O thread.
+         */
+        private void deliver() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            delivering = true;
+            try {
+                relays.execute(deliverer);
+            } catch (RejectedExecutionException e) {
+                delivering = false;
+                fail(new IOException("Proxy stopped"));
+            }
+        }
+
+        private final Runnable deliverer = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buffer.flip();
+                    session.write(buffer);
+                    buffer.clear();
+                    written = true;
+                } catch (IOException e) {
+                    // The client is gone
+                    written = false;
+                    closeClient();
+                }
+                if (!submit(delivered)) {
+                    delivered.run();
+                }
+            }
+        };
+        private boolean written;    // By the deliverer, for delivered
+
+        /**
+         * Read the backend again once its answer has been written. Runs on
+         * the I/O thread.
+         */
+        private final Runnable delivered = new Runnable() {
+            @Override
+            public void run() {
+                delivering = false;
+                if (finished) {
+                    release();
+                } else if (written && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        };
+
+        /**
+         * The backend failed: drop the client. Runs on the I/O thread.
+         */
+        private void fail(IOException e) {
+            LOGGER.log(Level.FINE, "Relay failed", e);
+            if (key != null) {
+                key.interestOps(0);
+            }
+            closeClient();
+        }
+
+        private void closeClient() {
+            try {
+                session.close();
+            } catch (IOException e) {
+            }
+        }
+
+        /**
+         * The client is gone: close the upstream side. Runs on the engine's
+         * thread.
+         */
+        void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            Runnable finisher = new Runnable() {
+                @Override
+                public void run() {
+                    finish();
+                }
+            };
+            if (!submit(finisher)) {
+                finish();   // Nothing else touches the relay any more
+            }
+        }
+
+        /**
+         * Close the upstream connection and give the buffers back. Runs on the
+         * I/O thread.
+         */
+        private void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            connecting.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            if (upstream != null) {
+                closeQuietly(upstream);
+            }
+            if (backend != null) {
+                backend.active.decrementAndGet();
+            }
+            synchronized (this) {
+                discard();
+            }
+            if (!delivering) {
+                release();
+            }
+        }
+
+        /**
+         * Give back the buffers waiting for the backend. Locked.
+         */
+        private void discard() {
+            ByteBuffer b;
+            while ((b = outbound.pollFirst()) != null) {
+                BufferPool.getShared().release(b);
+            }
+            waiting = 0;
+        }
+
+        /**
+         * Give the buffer back once no relay thread is writing it.
+         */
+        private synchronized void release() {
+            if (buffer != null) {
+                BufferPool.getShared().release(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    private final Backend[] backends;
+    private final Strategy strategy;
+    private final int poolSize;
+    private final TreeMap<Integer, Backend> ring = new TreeMap<Integer, Backend>();
+    private final AtomicInteger next = new AtomicInteger();    // For ROUND_ROBIN
+    private final long checkInterval;
+    private final ThreadPoolExecutor relays;    // Starts no thread until a client comes
+    private volatile Selector selector;         // Of the upstream connections, once started
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();  // For the I/O thread
+    private boolean ended = false;              // The I/O thread is gone; locked by tasks
+    private final List<Relay> connecting = new ArrayList<Relay>();  // By the I/O thread
+    private Thread checker;                     // Once started
+    private volatile boolean started = false;
+    private volatile boolean stopped = false;
+
+    /**
+     * Create a proxy from its argument to the Control service's add command:
+     * the backends as host:port pairs separated by commas, optionally
+     * preceded by a strategy and an '@', as in
+     * least_connections@localhost:8001,localhost:8002. The default strategy
+     * is round robin.
+     *
+     * @param targets
+     */
+    public Proxy(String targets) {
+        this(parseTargets(targets), parseStrategy(targets),
+                DEFAULT_POOL_SIZE, DEFAULT_CHECK_INTERVAL);
+    }
+
+    /**
+     * Create a proxy to the specified backends.
+     *
+     * @param targets
+     * @param strategy
+     * @param poolSize warm connections kept per backend, 0 for none
+     * @param checkInterval between health checks, in milliseconds
+     */
+    public Proxy(List<InetSocketAddress> targets, Strategy strategy,
+            int poolSize, long checkInterval) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No backends");
+        }
+        if (poolSize < 0 || checkInterval <= 0) {
+            throw new IllegalArgumentException("Bad pool size or check interval");
+        }
+        this.backends = new Backend[targets.size()];
+        for (int i = 0; i < backends.length; i++) {
+            backends[i] = new Backend(targets.get(i));
+            for (int r = 0; r < REPLICAS; r++) {
+                ring.put(mix((targets.get(i).toString() + '#' + r).hashCode()), backends[i]);
+            }
+        }
+        this.strategy = strategy;
+        this.poolSize = poolSize;
+        this.checkInterval = checkInterval;
+        final AtomicInteger count = new AtomicInteger();
+        this.relays = new ThreadPoolExecutor(RELAY_THREADS, RELAY_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ProxyRelay:" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        relays.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start the I/O thread and the health checks, unless they are started or
+     * the proxy stopped.
+     */
+    @Override
+    public synchronized void start() {
+        if (started || stopped) {
+            return;
+        }
+        started = true;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Cannot start the proxy", e);
+            synchronized (tasks) {
+                ended = true;   // So clients are refused
+            }
+            return;
+        }
+        Thread io = new Thread("ProxyIO") {
+            @Override
+            public void run() {
+                serveUpstreams();
+            }
+        };
+        io.setDaemon(true);
+        io.start();
+        checker = new Thread("ProxyHealth") {
+            @Override
+            public void run() {
+                while (!stopped) {
+                    for (Backend b : backends) {
+                        check(b);
+                    }
+                    try {
+                        Thread.sleep(checkInterval);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        };
+        checker.setDaemon(true);
+        checker.start();
+    }
+
+    /**
+     * Queue a task for the I/O thread.
+     *
+     * @return false if the I/O thread is gone
+     */
+    private boolean submit(Runnable task) {
+        synchronized (tasks) {
+            if (ended || selector == null) {
+                return false;
+            }
+            tasks.addLast(task);
+        }
+        selector.wakeup();
+        return true;
+    }
+
+    /**
+     * The body of the I/O thread: connect to the backends, and relay to and
+     * from them, until the proxy is stopped and its last client gone.
+     */
+    private void serveUpstreams() {
+        try {
+            for (;;) {
+                long timeout = stopped ? 100 : 0;   // To see the last key go
+                long now = System.currentTimeMillis();
+                for (Relay r : connecting) {
+                    long left = Math.max(1, r.deadline - now);
+                    timeout = timeout == 0 ? left : Math.min(timeout, left);
+                }
+                selector.select(timeout);
+                for (;;) {
+                    Runnable task;
+                    synchronized (tasks) {
+                        task = tasks.pollFirst();
+                    }
+                    if (task == null) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, "Proxy task failed", e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((Relay) key.attachment()).ready();
+                    }
+                }
+                // Connects that took too long go on to the next backend
+                now = System.currentTimeMillis();
+                for (Relay r : new ArrayList<Relay>(connecting)) {
+                    if (now >= r.deadline) {
+                        r.unreachable();
+                        r.connect();
+                    }
+                }
+                synchronized (tasks) {
+                    if (stopped && tasks.isEmpty() && selector.keys().isEmpty()) {
+                        ended = true;
+                        break;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Proxy I/O failed", e);
+        } finally {
+            synchronized (tasks) {
+                ended = true;
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+            relays.shutdown();
+        }
+    }
+
+    private static Strategy parseStrategy(String targets) {
+        int at = targets.indexOf('@');
+        if (at < 0) {
+            return Strategy.ROUND_ROBIN;
+        }
+        try {
+            return Strategy.valueOf(targets.substring(0, at).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown strategy "
+                    + targets.substring(0, at) + ", use one of "
+                    + Arrays.toString(Strategy.values()));
+        }
+    }
+
+    private static List<InetSocketAddress> parseTargets(String targets) {
+        List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+        for (String target : targets.substring(targets.indexOf('@') + 1).split(",")) {
+            int colon = target.lastIndexOf(':');
+            try {
+                list.add(new InetSocketAddress(target.substring(0, colon),
+                        Integer.parseInt(target.substring(colon + 1))));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Bad backend " + target
+                        + ", expected host:port");
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Spread the ring's points and the client addresses' hashes.
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Connect to the backend to see whether it is up, and keep the
+     * connection in its pool if there is room.
+     */
+    private void check(Backend b) {
+        // Close what has been idle too long, from the oldest
+        long now = System.currentTimeMillis();
+        Idle idle;
+        while ((idle = b.pool.peekFirst()) != null && now - idle.since > MAX_IDLE) {
+            if (b.pool.remove(idle)) {
+                b.pooled.decrementAndGet();
+                closeQuietly(idle.channel);
+            }
+        }
+        do {
+            SocketChannel channel;
+            try {
+                channel = connect(b.address);
+            } catch (IOException e) {
+                setUp(b, false);
+                closePool(b);
+                return;
+            }
+            setUp(b, true);
+            if (b.pooled.incrementAndGet() > poolSize) {
+                b.pooled.decrementAndGet();
+                closeQuietly(channel);
+                return;
+            }
+            b.pool.offerLast(new Idle(channel));
+        } while (!stopped);
+        // stop() may have emptied the pool before the last offer
+        closePool(b);
+    }
+
+    private static void closePool(Backend b) {
+        Idle idle;
+        for (; (idle = b.pool.pollFirst()) != null; b.pooled.decrementAndGet()) {
+            closeQuietly(idle.channel);
+        }
+    }
+
+    private static void setUp(Backend b, boolean up) {
+        if (b.up != up) {
+            b.up = up;
+            LOGGER.log(up ? Level.INFO : Level.WARNING, "Backend {0} is {1}",
+                    new Object[]{b.address, up ? "up" : "down"});
+        }
+    }
+
+    private static SocketChannel connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, CONNECT_TIMEOUT);
+            channel.socket().setTcpNoDelay(true);
+            return channel;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Pick the backend for a client, skipping those that are down, or that
+     * this client has failed to reach already, unless there is no other.
+     */
+    private Backend select(SocketAddress client, List<Backend> tried) {
+        Backend best = null;
+        Strategy how = strategy;
+        if (how == Strategy.CONSISTENT_HASH) {
+            if (client instanceof InetSocketAddress
+                    && ((InetSocketAddress) client).getAddress() != null) {
+                int h = mix(Arrays.hashCode(
+                        ((InetSocketAddress) client).getAddress().getAddress()));
+                best = walk(ring.tailMap(h), tried);
+                if (best == null) {
+                    best = walk(ring.headMap(h), tried);
+                }
+            } else {
+                how = Strategy.ROUND_ROBIN;   // No address to hash
+            }
+        }
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        switch (how) {
+            case ROUND_ROBIN:
+                for (int i = 0; i < backends.length && best == null; i++) {
+                    Backend b = backends[(start + i) % backends.length];
+                    if (b.up && !tried.contains(b)) {
+                        best = b;
+                    }
+                }
+                break;
+            case LEAST_CONNECTIONS:
+                // Start the scan in turn, to spread ties
+                for (int i = 0; i < backends.length; i++) {
+                    Backend b = backends[(start + i) % backends.length];
+                    if (b.up && !tried.contains(b)
+                            && (best == null || b.active.get() < best.active.get())) {
+                        best = b;
+                    }
+                }
+                break;
+        }
+        if (best == null) {
+            // All down, as far as we know: try what is left anyway
+            for (Backend b : backends) {
+                if (!tried.contains(b)) {
+                    return b;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static Backend walk(SortedMap<Integer, Backend> points, List<Backend> tried) {
+        for (Map.Entry<Integer, Backend> e : points.entrySet()) {
+            Backend b = e.getValue();
+            if (b.up && !tried.contains(b)) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A pooled connection to the backend, if it has a live one, in
+     * non-blocking mode. Whatever it has already received, such as a
+     * greeting, is read into the buffer, to go to the client first.
+     */
+    private static SocketChannel pooled(Backend b, ByteBuffer buffer) {
+        Idle idle;
+        while ((idle = b.pool.pollLast()) != null) {
+            b.pooled.decrementAndGet();
+            SocketChannel channel = idle.channel;
+            if (System.currentTimeMillis() - idle.since <= MAX_IDLE) {
+                try {
+                    // Read on past a greeting, to see whether the backend
+                    // has closed since
+                    channel.configureBlocking(false);
+                    int n;
+                    while ((n = channel.read(buffer)) > 0 && buffer.hasRemaining()) {
+                    }
+                    if (n >= 0) {
+                        return channel;
+                    }
+                } catch (IOException e) {
+                }
+            }
+            buffer.clear();
+            closeQuietly(channel);
+        }
+        return null;
+    }
+
+    /**
+     * Attach a relay to the client, and have the I/O thread connect it to a
+     * backend: under NIO this runs on an event loop, which must not wait for
+     * a connect.
+     *
+     * @param session
+     * @throws IOException
+     */
+    @Override
+    public void open(ChannelSession session) throws IOException {
+        if (stopped) {
+            throw new IOException("Proxy stopped");
+        }
+        if (!started) {
+            start();
+        }
+        final Relay relay = new Relay(session, BufferPool.getShared().borrow(BUFFER_SIZE));
+        session.attach(relay);
+        if (!submit(new Runnable() {
+            @Override
+            public void run() {
+                relay.connect();
+            }
+        })) {
+            session.attach(null);
+            relay.release();
+            throw new IOException("Proxy stopped");
+        }
+    }
+
+    @Override
+    public void read(ChannelSession session, ByteBuffer in) throws IOException {
+        ((Relay) session.attachment()).forward(in);
+    }
+
+    @Override
+    public void close(ChannelSession session) {
+        Relay relay = (Relay) session.attachment();
+        if (relay != null) {
+            relay.close();
+        }
+    }
+
+    /**
+     * Stop the health checks and close the pooled connections. Connections
+     * being relayed go on until either side closes, and the I/O thread and
+     * the relay threads end after the last; new clients are refused.
+     */
+    @Override
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            t = checker;
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+        for (Backend b : backends) {
+            closePool(b);
+        }
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    public List<Backend> getBackends() {
+        return Arrays.asList(backends);
+    }
+
+    /**
+     * Display the backends, their health and their load, in the style of
+     * Server.displayStatus().
+     *
+     * @param out
+     */
+    public void displayStatus(PrintWriter out) {
+        out.print("PROXY " + strategy + "\n");
+        for (Backend b : backends) {
+            out.print("BACKEND " + b.address.getHostString() + ":" + b.address.getPort()
+                    + (b.up ? " UP, " : " DOWN, ") + b.active.get() + " ACTIVE, "
+                    + b.connections.sum() + " RELAYED, " + b.failures.sum() + " FAILED, "
+                    + b.pooled.get() + " POOLED\n");
+        }
+    }
+}
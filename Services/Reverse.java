@@ -1,7 +1,11 @@
 package Server.Services;
 
-import Server.interfaces.Service;
+import Server.LineCodec;
+import Server.interfaces.ChannelService;
+import Server.interfaces.ChannelSession;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This is another example service. It reads lines of input from the client, and
@@ -9,8 +13,35 @@ import java.io.*;
  * instructions, and closes the connection when the user enters a '.' on a line
  * by itself.
  *
+ * It is also a ChannelService: served by the Listener it uses a LineCodec to
+ * reverse each line straight from the input buffer into a pooled output
+ * buffer, writing the replies to all the lines of a read at once, without
+ * allocating anything per line. serve() keeps the stream-based
+ * implementation, so the two can be compared.
+ *
  */
-public class Reverse implements Service {
+public class Reverse implements ChannelService, LineCodec.Handler {
+
+    private static final byte[] WELCOME = ("Welcome to the line reversal server.\n"
+            + "Enter lines.  End with a '.' on a line by itself.\n> ")
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEWLINE_PROMPT = "\n> ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TOO_LONG = "Line too long.\n> ".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxLineLength;
+
+    public Reverse() {
+        this(LineCodec.DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    /**
+     * Create the service, discarding lines longer than maxLineLength bytes.
+     *
+     * @param maxLineLength
+     */
+    public Reverse(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
 
     @Override
     public void serve(InputStream i, OutputStream o) throws IOException {
@@ -35,4 +66,61 @@ public class Reverse implements Service {
         out.close();
         in.close();
     }
+
+    @Override
+    public void open(ChannelSession session) throws IOException {
+        session.attach(new LineCodec(this, maxLineLength));
+        session.write(ByteBuffer.wrap(WELCOME));
+    }
+
+    @Override
+    public void read(ChannelSession session, ByteBuffer in) throws IOException {
+        ((LineCodec) session.attachment()).decode(session, in);
+    }
+
+    /**
+     * Reverse a line from the input buffer into the output buffer, one UTF-8
+     * code point at a time, so that multi-byte characters survive.
+     *
+     * @param line
+     * @param out
+     * @return
+     */
+    @Override
+    public boolean line(ByteBuffer line, ByteBuffer out) {
+        int start = line.position();
+        if (line.limit() - start == 1 && line.get(start) == '.') {
+            return false;
+        }
+        int end = line.limit();     // The end of the code point being copied
+        for (int k = end - 1; k >= start; k--) {
+            if ((line.get(k) & 0xC0) != 0x80) {     // Not a continuation byte
+                for (int m = k; m < end; m++) {
+                    out.put(line.get(m));
+                }
+                end = k;
+            }
+        }
+        // Continuation bytes with nothing to continue stay as they are
+        for (int m = start; m < end; m++) {
+            out.put(line.get(m));
+        }
+        out.put(NEWLINE_PROMPT);
+        return true;
+    }
+
+    @Override
+    public boolean overflow(ByteBuffer out) {
+        out.put(TOO_LONG);
+        return true;
+    }
+
+    @Override
+    public void close(ChannelSession session) {
+        LineCodec codec = (LineCodec) session.attachment();
+        if (codec != null) {
+            codec.release();
+            session.attach(null);
+        }
+    }
 }
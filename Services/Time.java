@@ -1,21 +1,74 @@
 package Server.Services;
 
-import Server.interfaces.Service;
+import Server.CachedClock;
+import Server.interfaces.DatagramService;
 import java.io.*;
-import java.util.Date;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 /**
  * A very simple service. It displays the current time on the server to the
  * client, and closes the connection.
  *
+ * The time comes pre-rendered from a CachedClock, so answering a client
+ * writes the same bytes as every other client in the same second, without
+ * formatting anything.
+ *
+ * Over UDP, any datagram is a request for the time, and the reply is the
+ * same bytes a connection gets.
+ *
  */
-public class Time implements Service {
+public class Time implements DatagramService {
+
+    private final CachedClock clock;
+
+    /**
+     * Display the time as Date.toString() does.
+     */
+    public Time() {
+        this(CachedClock.Format.DATE);
+    }
+
+    /**
+     * Display the time in the named format: DATE, ISO_8601, RFC_1123 or
+     * EPOCH_MILLIS. This is the constructor the Control service's add command
+     * uses when given an argument.
+     *
+     * @param format
+     */
+    public Time(String format) {
+        this(CachedClock.Format.valueOf(format.toUpperCase()));
+    }
+
+    /**
+     * Display the time in the specified format, rendered once a second.
+     *
+     * @param format
+     */
+    public Time(CachedClock.Format format) {
+        this(new CachedClock(format, CachedClock.DEFAULT_RESOLUTION, "", "\n"));
+    }
+
+    /**
+     * Display the time of the specified clock, which should end its
+     * rendering with a newline.
+     *
+     * @param clock
+     */
+    public Time(CachedClock clock) {
+        this.clock = clock;
+    }
 
     @Override
     public void serve(InputStream i, OutputStream o) throws IOException {
-        PrintWriter out = new PrintWriter(o);
-        out.print(new Date() + "\n");
-        out.close();
+        o.write(clock.bytes());
+        o.close();
         i.close();
     }
+
+    @Override
+    public boolean respond(SocketAddress client, ByteBuffer in, ByteBuffer out) {
+        out.put(clock.bytes());
+        return true;
+    }
 }
@@ -1,21 +1,189 @@
 package Server.Services;
 
 import java.io.*;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 import Server.interfaces.*;
 
 /**
  * This service demonstrates how to maintain state across connections by saving
- * it in instance variables and using synchronized access to those variables. It
- * maintains a count of how many clients have connected and tells each client
- * what number it is
+ * it in instance variables and using atomic access to those variables. It
+ * hands out 64-bit IDs, one to each client, that are never handed out twice,
+ * even across restarts.
+ *
+ * IDs are leased from a shared counter in blocks of BLOCK_SIZE, into a few
+ * stripes picked by thread, and handed out of its stripe's block by each
+ * thread, so threads rarely touch the same counter. IDs are therefore unique
+ * and increasing for each thread, but not in order across threads, and the
+ * rest of the blocks leased when the service stops are never handed out.
+ *
+ * When it is given a file, the service keeps in it a high-water mark, mapped
+ * into memory: an ID is only handed out once the mark is above it, and the
+ * mark is moved up RESERVE_SIZE IDs at a time and forced to disk, so there is
+ * one write for every RESERVE_SIZE IDs rather than one for each. After a
+ * restart, IDs start from the mark.
+ *
+ * Over UDP, an empty datagram asks for one ID, and the reply is the ID in
+ * decimal, on a line. A datagram holding a count, in decimal, asks for a
+ * batch of that many consecutive IDs, at most MAX_BATCH, leased at once with
+ * nextIds(): the reply is the first of them and the count, on a line. Other
+ * datagrams get no reply.
  *
  */
-public class UniqueID implements Service {
+public class UniqueID implements DatagramService {
+
+    public static final String FILE_PROPERTY = "server.uniqueid.file";
+    public static final int BLOCK_SIZE = 1024;
+    public static final long RESERVE_SIZE = 1L << 20;
+    public static final int MAX_BATCH = 1 << 16;        // IDs per datagram
+
+    /**
+     * A block of IDs leased by a stripe: next is the next ID to hand out,
+     * until limit.
+     */
+    private static final class Block {
+
+        final AtomicLong next;
+        final long limit;
+
+        Block(long start, long limit) {
+            this.next = new AtomicLong(start);
+            this.limit = limit;
+        }
+    }
+
+    private final AtomicLong next = new AtomicLong();  // The start of the next lease
+    private volatile long reserved;                     // The high-water mark
+    private final AtomicReferenceArray<Block> stripes;
+    private final int mask;
+    private final MappedByteBuffer mark;                // Or null, if not persisted
+    private final ReentrantLock reserving = new ReentrantLock();
+
+    /**
+     * Create a service whose IDs start from 0 on every run, or, if the
+     * server.uniqueid.file property is set, from the mark in that file.
+     */
+    public UniqueID() {
+        this(System.getProperty(FILE_PROPERTY));
+    }
+
+    /**
+     * Create a service keeping its high-water mark in the specified file,
+     * created if need be, or in memory only if the file is null. This is the
+     * constructor the Control service's add command uses when given an
+     * argument.
+     *
+     * @param file
+     */
+    public UniqueID(String file) {
+        int n = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 1)) * 2;
+        stripes = new AtomicReferenceArray<Block>(n);
+        mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            stripes.set(i, new Block(0, 0));
+        }
+        if (file == null) {
+            mark = null;
+            return;
+        }
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                mark = channel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            } finally {
+                // The mapping stays valid once the channel is closed
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot map " + file + ": " + e);
+        }
+        long start = mark.getLong(0);
+        if (start < 0) {
+            throw new IllegalArgumentException("Bad high-water mark in " + file + ": " + start);
+        }
+        next.set(start);
+        reserved = start;
+    }
 
-    public int id = 0;
+    /**
+     * The next ID.
+     *
+     * @return
+     */
+    public long nextId() {
+        int i = (int) Thread.currentThread().getId() & mask;
+        for (;;) {
+            Block block = stripes.get(i);
+            long id = block.next.getAndIncrement();
+            if (id < block.limit) {
+                return id;
+            }
+            // The block is used up: lease another for the stripe. If another
+            // thread got there first, the lease is lost, and so are its IDs.
+            long start = lease(BLOCK_SIZE);
+            Block fresh = new Block(start + 1, start + BLOCK_SIZE);
+            if (stripes.compareAndSet(i, block, fresh)) {
+                return start;
+            }
+        }
+    }
 
-    public synchronized int nextId() {
-        return id++;
+    /**
+     * Lease a batch of consecutive IDs at once.
+     *
+     * @param count
+     * @return the first of the count IDs
+     */
+    public long nextIds(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Bad count: " + count);
+        }
+        return lease(count);
+    }
+
+    /**
+     * Take count IDs from the shared counter, moving the high-water mark
+     * above them first if need be.
+     */
+    private long lease(int count) {
+        long start = next.getAndAdd(count);
+        if (start + count > reserved) {
+            reserve(start + count);
+        }
+        return start;
+    }
+
+    /**
+     * Move the high-water mark to end or above. A lock rather than a monitor
+     * guards it, so that a virtual thread waiting for the disk to be written
+     * does not hold on to its carrier thread.
+     */
+    private void reserve(long end) {
+        reserving.lock();
+        try {
+            long r = reserved;
+            if (end <= r) {
+                return;
+            }
+            while (r < end) {
+                r += RESERVE_SIZE;
+            }
+            if (mark != null) {
+                mark.putLong(0, r);
+                mark.force();
+            }
+            reserved = r;
+        } finally {
+            reserving.unlock();
+        }
     }
 
     /**
@@ -31,4 +199,33 @@ public class UniqueID implements Service {
         out.close();
         i.close();
     }
+
+    @Override
+    public boolean respond(SocketAddress client, ByteBuffer in, ByteBuffer out) {
+        // Trailing white space, such as a newline from a script, is allowed
+        int end = in.limit();
+        while (end > in.position() && in.get(end - 1) <= ' ') {
+            end--;
+        }
+        if (end == in.position()) {
+            Http.putDecimal(out, nextId());
+            out.put((byte) '\n');
+            return true;
+        }
+        long count = 0;
+        for (int p = in.position(); p < end; p++) {
+            int digit = in.get(p) - '0';
+            if (digit < 0 || digit > 9 || (count = count * 10 + digit) > MAX_BATCH) {
+                return false;
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+        Http.putDecimal(out, nextIds((int) count));
+        out.put((byte) ' ');
+        Http.putDecimal(out, count);
+        out.put((byte) '\n');
+        return true;
+    }
 }
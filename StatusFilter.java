@@ -0,0 +1,166 @@
+package Server;
+
+import Server.interfaces.Service;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * What Server.displayStatus() shows: the services on one port, or of one
+ * class, and the connections from one address or network, a page of them at
+ * a time, as text or as JSON lines. By default it shows everything, as text.
+ *
+ * A page is taken from the live connection sets while they change, so
+ * connections opened or closed between two pages may shift the others by a
+ * few places: a scraper should expect the odd connection twice or not at
+ * all, and rely on the connection ids.
+ *
+ */
+public class StatusFilter {
+
+    private int port = 0;               // 0 for every port
+    private String service;             // Class name or simple name, or null
+    private byte[] network;             // Peer address, or null for any
+    private int prefix;                 // Bits of network that must match
+    private long offset = 0;            // Matching connections to skip
+    private long limit = 0;             // Matching connections to show, 0 for all
+    private boolean json = false;
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Only show the service on this port. 0 for every port.
+     *
+     * @param port
+     */
+    public void setPort(int port) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("Bad port: " + port);
+        }
+        this.port = port;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * Only show the services of this class, by full or simple name, case
+     * ignored. null for every service.
+     *
+     * @param service
+     */
+    public void setService(String service) {
+        this.service = service;
+    }
+
+    /**
+     * Only show the connections from this address, or from this network,
+     * written address/bits. null for every client.
+     *
+     * @param peer
+     */
+    public void setPeer(String peer) {
+        if (peer == null) {
+            network = null;
+            return;
+        }
+        int slash = peer.indexOf('/');
+        try {
+            network = InetAddress.getByName(
+                    slash < 0 ? peer : peer.substring(0, slash)).getAddress();
+            prefix = slash < 0 ? network.length * 8
+                    : Integer.parseInt(peer.substring(slash + 1));
+        } catch (UnknownHostException | NumberFormatException e) {
+            network = null;
+            throw new IllegalArgumentException("Bad peer: " + peer);
+        }
+        if (prefix < 0 || prefix > network.length * 8) {
+            network = null;
+            throw new IllegalArgumentException("Bad peer: " + peer);
+        }
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Show at most limit of the matching connections, after skipping offset
+     * of them. A limit of 0 shows them all.
+     *
+     * @param offset
+     * @param limit
+     */
+    public void setPage(long offset, long limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Bad page: " + offset + ", " + limit);
+        }
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    public boolean isJson() {
+        return json;
+    }
+
+    /**
+     * Show one JSON object per line rather than text.
+     *
+     * @param json
+     */
+    public void setJson(boolean json) {
+        this.json = json;
+    }
+
+    boolean matches(int port, Listener listener) {
+        return matches(port, listener.service);
+    }
+
+    boolean matches(int port, Service s) {
+        if (this.port != 0 && this.port != port) {
+            return false;
+        }
+        if (service == null) {
+            return true;
+        }
+        Class<?> c = s.getClass();
+        return service.equalsIgnoreCase(c.getName())
+                || service.equalsIgnoreCase(c.getSimpleName());
+    }
+
+    /**
+     * Whether the connection is from the peer, comparing the address bytes
+     * as they are, so that nothing is formatted for the connections left
+     * out.
+     */
+    boolean matches(ConnectionInfo info) {
+        if (network == null) {
+            return true;
+        }
+        if (info.peer == null) {
+            return false;
+        }
+        byte[] address = info.peer.getAddress();
+        if (address.length != network.length) {
+            return false;
+        }
+        int bytes = prefix / 8;
+        for (int i = 0; i < bytes; i++) {
+            if (address[i] != network[i]) {
+                return false;
+            }
+        }
+        int bits = prefix % 8;
+        if (bits == 0) {
+            return true;
+        }
+        int mask = 0xff00 >> bits & 0xff;
+        return (address[bytes] & mask) == (network[bytes] & mask);
+    }
+}
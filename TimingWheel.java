@@ -0,0 +1,264 @@
+package Server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel: one thread running the timeouts of any number of
+ * connections. Time is cut into ticks, and the wheel has a bucket for each
+ * tick of one turn; a timeout goes in the bucket of its deadline's tick, with
+ * the number of turns left before it is due, so scheduling and cancelling are
+ * O(1) however many timeouts are pending, and the thread only looks at the
+ * bucket of the current tick. Timeouts run up to one tick late.
+ *
+ * Timeouts are handed to the thread through a queue, and so are
+ * cancellations, so that only the thread ever touches the buckets. Timeout
+ * tasks run on the thread, and must be short.
+ *
+ * Connections whose deadline moves with their activity, like idle timeouts,
+ * should not cancel and schedule a timeout on every read: they should keep
+ * the time of their last activity and, when the timeout runs, schedule a new
+ * one for the rest of the time if they are still active.
+ *
+ */
+public final class TimingWheel {
+
+    public static final long DEFAULT_TICK = 100;   // milliseconds
+    public static final int DEFAULT_SIZE = 512;    // ticks per turn
+
+    private static final Logger LOGGER = Logger.getLogger(TimingWheel.class.getName());
+    private static TimingWheel shared;
+
+    // The states of a Timeout
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * A scheduled task, which may be cancelled until it has run.
+     */
+    public static final class Timeout {
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE
+                = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;    // In nanoseconds from the wheel's start
+        private volatile int state = PENDING;
+        private long rounds;            // Turns of the wheel left
+        private Bucket bucket;          // Where it is, once the thread has it
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task, unless it has run or been cancelled already.
+         *
+         * @return whether it was cancelled by this call
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+
+    /**
+     * The timeouts of one tick of the wheel, in a doubly linked list.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        Timeout remove(Timeout t) {
+            Timeout next = t.next;
+            if (t.prev != null) {
+                t.prev.next = next;
+            } else {
+                head = next;
+            }
+            if (next != null) {
+                next.prev = t.prev;
+            } else {
+                tail = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            return next;
+        }
+
+        /**
+         * Run the timeouts due on this turn, count down the turns of the
+         * others.
+         */
+        void expire() {
+            Timeout t = head;
+            while (t != null) {
+                if (t.rounds <= 0) {
+                    Timeout next = remove(t);
+                    if (Timeout.STATE.compareAndSet(t, PENDING, EXPIRED)) {
+                        try {
+                            t.task.run();
+                        } catch (Throwable e) {
+                            LOGGER.log(Level.WARNING, "A timeout failed", e);
+                        }
+                    }
+                    t = next;
+                } else {
+                    t.rounds--;
+                    t = t.next;
+                }
+            }
+        }
+    }
+
+    private final long tick;            // In nanoseconds
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean stop = false;
+    private long ticks = 0;             // Ticks done, on the thread
+
+    /**
+     * Create a wheel and start its thread.
+     *
+     * @param tickMillis the length of a tick, in milliseconds
+     * @param size the number of ticks in a turn, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int size) {
+        if (tickMillis < 1 || size < 1) {
+            throw new IllegalArgumentException("Bad tick or size");
+        }
+        this.tick = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int n = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        wheel = new Bucket[n];
+        for (int i = 0; i < n; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = n - 1;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                turn();
+            }
+        }, "TimingWheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * The wheel shared by the whole process, started on first use.
+     *
+     * @return
+     */
+    public static synchronized TimingWheel getShared() {
+        if (shared == null) {
+            shared = new TimingWheel(DEFAULT_TICK, DEFAULT_SIZE);
+        }
+        return shared;
+    }
+
+    /**
+     * Run the task once the delay has passed, give or take a tick.
+     *
+     * @param task
+     * @param delay
+     * @param unit
+     * @return the Timeout, to cancel it
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(this, task,
+                System.nanoTime() - startTime + Math.max(unit.toNanos(delay), 0));
+        pending.add(t);
+        return t;
+    }
+
+    /**
+     * Stop the thread. Pending timeouts never run.
+     */
+    public void stop() {
+        stop = true;
+        LockSupport.unpark(worker);
+    }
+
+    /**
+     * The thread's body: every tick, take in the new timeouts, drop the
+     * cancelled ones, and run those due.
+     */
+    private void turn() {
+        while (!stop) {
+            long deadline = tick * (ticks + 1);
+            long wait;
+            while ((wait = deadline - (System.nanoTime() - startTime)) > 0 && !stop) {
+                LockSupport.parkNanos(wait);
+            }
+            removeCancelled();
+            transferPending();
+            wheel[(int) (ticks & mask)].expire();
+            ticks++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void transferPending() {
+        // Bounded, so that a flood of new timeouts can't stall the wheel
+        for (int i = 0; i < 100000; i++) {
+            Timeout t = pending.poll();
+            if (t == null) {
+                break;
+            }
+            if (t.state != PENDING) {
+                continue;
+            }
+            long due = t.deadline / tick;  // The tick it falls in
+            t.rounds = (due - ticks) / wheel.length;
+            // If it is already late, it runs on this tick
+            wheel[(int) (Math.max(due, ticks) & mask)].add(t);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Makes the SSLContexts of TLS ports, for ServiceOptions.setTls().
+ *
+ * Repeat clients skip the full handshake in two ways: TLS 1.2 clients by the
+ * id of a session kept in the context's cache, bounded in size and age, and
+ * TLS 1.3 clients by a session ticket, which the server encrypts and gives to
+ * the client to keep, so that it costs the server no memory. Tickets are
+ * turned on, and client-initiated renegotiation off, through the JSSE system
+ * properties, unless they are set already; as JSSE reads them once, this
+ * class must be loaded before the first SSLContext is made.
+ *
+ */
+public final class Tls {
+
+    public static final int DEFAULT_CACHE_SIZE = 20000;     // sessions
+    public static final int DEFAULT_CACHE_TIMEOUT = 3600;   // seconds
+
+    static {
+        setDefault("jdk.tls.server.enableSessionTicketExtension", "true");
+        setDefault("jdk.tls.rejectClientInitiatedRenegotiation", "true");
+    }
+
+    private Tls() {
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    /**
+     * A context with the key and certificate of the specified keystore, in
+     * any format the JDK reads (PKCS12, JKS), and the default session cache.
+     *
+     * @param keystore
+     * @param password of the keystore and its key
+     * @return
+     */
+    public static SSLContext context(String keystore, String password) {
+        return context(keystore, password, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TIMEOUT);
+    }
+
+    /**
+     * A context with the key and certificate of the specified keystore,
+     * caching at most cacheSize sessions for at most cacheTimeout seconds.
+     *
+     * @param keystore
+     * @param password of the keystore and its key
+     * @param cacheSize
+     * @param cacheTimeout
+     * @return
+     */
+    public static SSLContext context(String keystore, String password,
+            int cacheSize, int cacheTimeout) {
+        if (cacheSize < 1 || cacheTimeout < 1) {
+            throw new IllegalArgumentException("Bad session cache: " + cacheSize
+                    + " sessions, " + cacheTimeout + " seconds");
+        }
+        try {
+            char[] secret = password.toCharArray();
+            KeyStore store = KeyStore.getInstance(new File(keystore), secret);
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(
+                    KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, secret);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(cacheSize);
+            sessions.setSessionTimeout(cacheTimeout);
+            return context;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read keystore " + keystore, e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Bad keystore " + keystore, e);
+        }
+    }
+}
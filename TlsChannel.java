@@ -0,0 +1,473 @@
+package Server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A client's SocketChannel seen through TLS: what is written to it is
+ * encrypted with an SSLEngine before it goes to the socket, and what is read
+ * from it has been decrypted. It works over a blocking channel, for the
+ * Connection threads, and over a non-blocking one, for the NioEngine, in
+ * which case reads and writes return 0 rather than wait, as the channel's
+ * own do, and the session must flush() what is left once the channel is
+ * writable.
+ *
+ * The handshake is run with handshake() before anything else: on a blocking
+ * channel it returns once done, on a non-blocking one it is called again each
+ * time the channel is ready, until it returns true. Its duration, and whether
+ * it resumed an earlier session, are counted in the service's metrics. The
+ * engine's delegated tasks run inline, unless offloadTasks() gave an
+ * Executor: then handshake() returns false while they run elsewhere, and the
+ * session is called back to go on once they are done.
+ *
+ * Reads and writes may happen on different threads at once: the input side
+ * and the output side have locks of their own, always taken in that order.
+ *
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ServiceMetrics metrics;   // Where to count handshakes, or null
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private ByteBuffer netIn;       // From the socket, in write mode
+    private ByteBuffer appIn;       // Decrypted, not yet read, in write mode
+    private ByteBuffer netOut;      // To the socket, in read mode
+    private final long started = System.nanoTime();
+    private final long startedMillis = System.currentTimeMillis();
+    private boolean begun = false;
+    private volatile boolean handshaken = false;
+    private boolean eof = false;
+    private Executor taskExecutor;          // Runs delegated tasks, or null for inline
+    private Runnable afterTasks;            // Called once they have run
+    private volatile boolean tasksRunning = false;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, ServiceMetrics metrics) {
+        this.channel = channel;
+        this.engine = engine;
+        this.metrics = metrics;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut.limit(0);
+    }
+
+    /**
+     * Run the engine's delegated tasks of the handshake on the executor, and
+     * then afterTasks, rather than on the thread calling handshake().
+     *
+     * @param executor
+     * @param afterTasks
+     */
+    void offloadTasks(Executor executor, Runnable afterTasks) {
+        this.taskExecutor = executor;
+        this.afterTasks = afterTasks;
+    }
+
+    /**
+     * Run the handshake as far as the channel allows.
+     *
+     * @return whether it is done
+     * @throws IOException if it failed, which is counted
+     */
+    boolean handshake() throws IOException {
+        if (handshaken) {
+            return true;
+        }
+        if (tasksRunning) {
+            // Only what the handshake already wrote can go on meanwhile
+            flush();
+            return false;
+        }
+        try {
+            synchronized (readLock) {
+                synchronized (writeLock) {
+                    if (!begun) {
+                        // Until then the engine says it is not handshaking
+                        engine.beginHandshake();
+                        begun = true;
+                    }
+                    if (!progress()) {
+                        return false;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (metrics != null) {
+                metrics.handshakeFailures.increment();
+            }
+            throw e;
+        }
+        handshaken = true;
+        if (metrics != null) {
+            long now = System.nanoTime();
+            metrics.handshakes.increment();
+            metrics.handshakeTime.record(now - started);
+            // A resumed session was created by an earlier handshake
+            if (engine.getSession().getCreationTime() < startedMillis) {
+                metrics.resumed.increment();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Do what the engine asks for until it is done or the channel can't go
+     * on. Holds both locks.
+     */
+    private boolean progress() throws IOException {
+        for (;;) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    if (taskExecutor != null && startTasks()) {
+                        return false;
+                    }
+                    runTasks();
+                    break;
+                case NEED_WRAP:
+                    if (!wrap(new ByteBuffer[0])) {
+                        return false;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (!unwrap()) {
+                        return false;
+                    }
+                    if (eof) {
+                        throw new EOFException("Connection closed during the TLS handshake");
+                    }
+                    break;
+                default:
+                    return flushNet();
+            }
+        }
+    }
+
+    /**
+     * Hand the engine's slow work to the executor. Holds both locks.
+     *
+     * @return false if the executor refused it, which leaves it to be run
+     * inline
+     */
+    private boolean startTasks() {
+        tasksRunning = true;
+        try {
+            taskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runTasks();
+                    } finally {
+                        tasksRunning = false;
+                        afterTasks.run();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            tasksRunning = false;
+            return false;
+        }
+    }
+
+    /**
+     * Whether the handshake waits for delegated tasks running elsewhere.
+     */
+    boolean isRunningTasks() {
+        return tasksRunning;
+    }
+
+    /**
+     * The engine's slow work, such as checking certificates, run right here.
+     * After the handshake it is always run inline: a renegotiation or key
+     * update is rare, and cheap next to a full handshake.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Decrypt what has arrived into appIn, reading from the channel if no
+     * whole record has. Holds the read lock.
+     *
+     * @return false if the channel has nothing more for now
+     */
+    private boolean unwrap() throws IOException {
+        for (;;) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    return true;
+                case CLOSED:
+                    eof = true;
+                    return true;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                default: // BUFFER_UNDERFLOW
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    int n = channel.read(netIn);
+                    if (n < 0) {
+                        eof = true;
+                        return true;
+                    }
+                    if (n == 0) {
+                        return false;
+                    }
+            }
+        }
+    }
+
+    /**
+     * Encrypt the sources, or the handshake's next message if they are
+     * empty, and send it. Holds the write lock.
+     *
+     * @return false if the channel didn't take it all, which then waits in
+     * netOut
+     */
+    private boolean wrap(ByteBuffer[] srcs) throws IOException {
+        for (;;) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, netOut);
+            } finally {
+                netOut.flip();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    return flushNet();
+                case BUFFER_OVERFLOW:
+                    if (netOut.hasRemaining()) {
+                        // Make room by sending what is there, then try again
+                        if (!flushNet()) {
+                            return false;
+                        }
+                        break;
+                    }
+                    int size = engine.getSession().getPacketBufferSize();
+                    if (netOut.capacity() >= size) {
+                        throw new SSLException("TLS record larger than its packet size");
+                    }
+                    netOut = ByteBuffer.allocate(size);
+                    netOut.limit(0);
+                    break;
+                default:
+                    // Closed: the close_notify may still be in netOut
+                    boolean flushed = flushNet();
+                    if (remaining(srcs) > 0) {
+                        throw new SSLException("TLS connection closed");
+                    }
+                    return flushed;
+            }
+        }
+    }
+
+    /**
+     * Send what waits in netOut. Holds the write lock.
+     */
+    private boolean flushNet() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0 && !channel.isBlocking()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A buffer with the same content and room for size more bytes, in write
+     * mode.
+     */
+    private static ByteBuffer grow(ByteBuffer b, int size) {
+        b.flip();
+        ByteBuffer bigger = ByteBuffer.allocate(b.remaining() + size);
+        bigger.put(b);
+        return bigger;
+    }
+
+    /**
+     * Send what the channel didn't take earlier.
+     *
+     * @return whether everything has been sent
+     * @throws IOException
+     */
+    boolean flush() throws IOException {
+        synchronized (writeLock) {
+            return flushNet();
+        }
+    }
+
+    /**
+     * Whether encrypted bytes wait for the channel to be writable.
+     */
+    boolean hasPendingOutput() {
+        synchronized (writeLock) {
+            return netOut.hasRemaining();
+        }
+    }
+
+    /**
+     * Whether bytes can be read without the channel being readable again:
+     * decrypted ones, or a whole record not decrypted yet.
+     */
+    boolean hasBufferedInput() {
+        synchronized (readLock) {
+            if (appIn.position() > 0) {
+                return true;
+            }
+            int n = netIn.position();
+            return n >= 5 && 5 + ((netIn.get(3) & 0xff) << 8 | netIn.get(4) & 0xff) <= n;
+        }
+    }
+
+    boolean isHandshaken() {
+        return handshaken;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            for (;;) {
+                if (appIn.position() > 0) {
+                    appIn.flip();
+                    int n = Math.min(appIn.remaining(), dst.remaining());
+                    ByteBuffer slice = appIn.duplicate();
+                    slice.limit(slice.position() + n);
+                    dst.put(slice);
+                    appIn.position(appIn.position() + n);
+                    appIn.compact();
+                    return n;
+                }
+                if (eof) {
+                    return -1;
+                }
+                if (!unwrap()) {
+                    return 0;
+                }
+                answer();
+            }
+        }
+    }
+
+    /**
+     * After the handshake the peer may still ask for an answer, a key update
+     * for instance. Holds the read lock.
+     */
+    private void answer() throws IOException {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTasks();
+            status = engine.getHandshakeStatus();
+        }
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            synchronized (writeLock) {
+                wrap(new ByteBuffer[0]);
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypt and send as much as the channel takes. What has been
+     * encrypted counts as written, even if part of its record still waits
+     * for flush().
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!handshaken) {
+            return 0;
+        }
+        ByteBuffer[] range = srcs;
+        if (offset != 0 || length != srcs.length) {
+            range = new ByteBuffer[length];
+            System.arraycopy(srcs, offset, range, 0, length);
+        }
+        synchronized (writeLock) {
+            long written = 0;
+            while (flushNet()) {
+                long before = remaining(range);
+                if (before == 0) {
+                    break;
+                }
+                wrap(range);
+                long n = before - remaining(range);
+                if (n == 0) {
+                    break;
+                }
+                written += n;
+            }
+            return written;
+        }
+    }
+
+    private static long remaining(ByteBuffer[] srcs) {
+        long n = 0;
+        for (ByteBuffer b : srcs) {
+            n += b.remaining();
+        }
+        return n;
+    }
+
+    /**
+     * Tell the client we are done, if the channel takes it right away,
+     * without closing the channel.
+     */
+    void closeOutbound() {
+        synchronized (writeLock) {
+            try {
+                engine.closeOutbound();
+                if (flushNet()) {
+                    wrap(new ByteBuffer[0]);
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            closeOutbound();
+        }
+        channel.close();
+    }
+}
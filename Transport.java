@@ -0,0 +1,22 @@
+package Server;
+
+/**
+ * How a service on a port is reached, chosen when it is added with
+ * Server.addService(). The same port number may carry a service of each
+ * transport.
+ *
+ */
+public enum Transport {
+
+    /**
+     * A connection for each client, accepted by a Listener and served by the
+     * Server's engine, within the connection limits.
+     */
+    TCP,
+    /**
+     * A datagram for each request and one for its reply, served by a
+     * DatagramListener: no handshake, no connection and no slot in the
+     * connection limits. The service must be a DatagramService.
+     */
+    UDP
+}
@@ -0,0 +1,194 @@
+package Server;
+
+import Server.interfaces.Service;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is the worker pool of a Server running the POOLED engine. Instead of
+ * turning a client away as soon as maxConnections clients are being served,
+ * the accepted socket waits in a bounded queue for one of maxConnections
+ * reusable worker threads. A client is only refused when the queue is full,
+ * or once it has waited in the queue longer than the queue timeout.
+ *
+ */
+public class WorkerPool {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 5000; // milliseconds
+
+    private final ThreadPoolExecutor executor;
+    private final BlockingQueue<Runnable> queue;
+    private final int queueCapacity;
+    private final long queueTimeout;                    // nanoseconds
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalWait = new LongAdder(); // nanoseconds
+    private final AtomicLong maxWait = new AtomicLong(); // nanoseconds
+
+    /**
+     * Create a pool of the specified number of worker threads in the thread
+     * group, in front of which at most queueCapacity sockets wait at most
+     * queueTimeoutMillis each.
+     *
+     * @param group
+     * @param workers
+     * @param queueCapacity
+     * @param queueTimeoutMillis
+     */
+    public WorkerPool(final ThreadGroup group, int workers, int queueCapacity,
+            long queueTimeoutMillis) {
+        this.queueCapacity = queueCapacity;
+        this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                queue, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(group, r, "Worker:" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                        // The queue is full
+                        ((Admission) r).reject();
+                    }
+                });
+    }
+
+    /**
+     * Queue a socket accepted by the Listener until a worker can serve it.
+     *
+     * @param listener
+     * @param s
+     * @param service
+     */
+    void submit(Listener listener, Socket s, Service service) {
+        expire();
+        executor.execute(new Admission(listener, s, service));
+    }
+
+    /**
+     * Refuse the sockets at the head of the queue that have already waited too
+     * long, rather than leaving them there until a worker gets to them.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        Runnable head;
+        while ((head = queue.peek()) != null
+                && now - ((Admission) head).queued > queueTimeout) {
+            if (queue.remove(head)) {
+                ((Admission) head).reject();
+            }
+        }
+    }
+
+    /**
+     * Change the number of workers, that is the number of connections served
+     * at once.
+     *
+     * @param workers
+     */
+    public void setWorkers(int workers) {
+        if (workers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(workers);
+            executor.setCorePoolSize(workers);
+        } else {
+            executor.setCorePoolSize(workers);
+            executor.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * The number of sockets currently waiting for a worker.
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * The average time admitted sockets waited for a worker, in milliseconds.
+     *
+     * @return
+     */
+    public double getAverageWait() {
+        long n = admitted.sum();
+        return n == 0 ? 0 : totalWait.sum() / (n * 1e6);
+    }
+
+    /**
+     * Display the state of the pool and its queue on the specified stream.
+     *
+     * @param out
+     */
+    public void displayStatus(PrintWriter out) {
+        out.print("WORKERS " + executor.getActiveCount() + " BUSY OF "
+                + executor.getMaximumPoolSize() + "\n");
+        out.print("QUEUE " + getQueueDepth() + " WAITING OF " + queueCapacity
+                + ", WAIT AVG " + String.format("%.3f", getAverageWait())
+                + " MS MAX " + TimeUnit.NANOSECONDS.toMillis(maxWait.get())
+                + " MS, " + rejected.sum() + " REFUSED\n");
+    }
+
+    /**
+     * Stop the workers and refuse the sockets still waiting.
+     */
+    public void shutdown() {
+        for (Runnable r : executor.shutdownNow()) {
+            ((Admission) r).reject();
+        }
+    }
+
+    /**
+     * A socket waiting for a worker.
+     */
+    private final class Admission implements Runnable {
+
+        final Listener listener;
+        final Socket socket;
+        final Service service;
+        final long queued = System.nanoTime();
+
+        Admission(Listener listener, Socket socket, Service service) {
+            this.listener = listener;
+            this.socket = socket;
+            this.service = service;
+        }
+
+        @Override
+        public void run() {
+            long wait = System.nanoTime() - queued;
+            if (wait > queueTimeout) {
+                reject();
+                return;
+            }
+            admitted.increment();
+            totalWait.add(wait);
+            long max;
+            while (wait > (max = maxWait.get()) && !maxWait.compareAndSet(max, wait)) {
+            }
+            listener.metrics.queueWait.record(wait);
+            listener.serve(socket, service);
+        }
+
+        void reject() {
+            rejected.increment();
+            listener.refuse(socket);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package Server.benchmarks;
+
+import Server.Engine;
+import Server.Server;
+import Server.Services.Echo;
+import Server.Services.Time;
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A Server over real loopback sockets, for each Engine: how many connections
+ * per second it accepts, serves and closes, and how long a line takes to come
+ * back from the Echo service over a connection that is already open.
+ *
+ * The connect benchmark goes through the whole accept path: the Listener's
+ * addConnection(), the connection limits, the Connection and the service,
+ * against the Time service, which answers and closes. The VIRTUAL engine
+ * needs Java 21; on older releases its trials fail in setup.
+ *
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    static final int TIME_PORT = 23100;
+    static final int ECHO_PORT = 23101;
+    static final int MAX_CONNECTIONS = 1000;
+
+    private static final byte[] PING = "ping\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The server, started once per trial.
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+
+        @Param({"BLOCKING", "NIO", "VIRTUAL", "POOLED"})
+        String engine;
+
+        Server server;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            server = new Server(MAX_CONNECTIONS, Engine.valueOf(engine));
+            server.addService(new Time(), TIME_PORT);
+            server.addService(new Echo(), ECHO_PORT);
+            awaitPort(TIME_PORT);
+            awaitPort(ECHO_PORT);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            server.removeService(TIME_PORT);
+            server.removeService(ECHO_PORT);
+        }
+
+        private static void awaitPort(int port) throws Exception {
+            for (int i = 0;; i++) {
+                try {
+                    new Socket(InetAddress.getLoopbackAddress(), port).close();
+                    return;
+                } catch (ConnectException e) {
+                    if (i == 100) {
+                        throw e;
+                    }
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    /**
+     * A client of the Echo service, connected once per trial and past the
+     * welcome message.
+     */
+    @State(Scope.Thread)
+    public static class EchoClient {
+
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+
+        @Setup(Level.Trial)
+        public void connect(ServerState server) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), ECHO_PORT);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            awaitPrompt(in);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public int connect(ServerState server) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), TIME_PORT);
+        try {
+            InputStream in = socket.getInputStream();
+            int n = 0;
+            while (in.read() >= 0) {
+                n++;
+            }
+            return n;
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int roundTrip(EchoClient client) throws IOException {
+        client.out.write(PING);
+        return awaitPrompt(client.in);
+    }
+
+    /**
+     * Read up to and including the Echo service's "> " prompt.
+     */
+    static int awaitPrompt(InputStream in) throws IOException {
+        int n = 0;
+        int previous = -1;
+        for (;;) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Echo closed the connection");
+            }
+            n++;
+            if (previous == '>' && b == ' ') {
+                return n;
+            }
+            previous = b;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package Server.benchmarks;
+
+import Server.ChannelDriver;
+import Server.interfaces.ChannelService;
+import Server.interfaces.Service;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of the bundled services themselves, without sockets: each
+ * invocation serves one client whose input is held in memory, and whose
+ * output is counted and dropped.
+ *
+ * The line services are measured per line (or per request, for the
+ * HTTPMirror) over a client sending LINES of them, through their stream
+ * serve() and, for a ChannelService, through a ChannelDriver as the Listener
+ * runs it. Time and UniqueID answer once per client, so they are measured per
+ * client.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceBenchmark {
+
+    static final int LINES = 100;
+
+    private final Service time = new Server.Services.Time();
+    private final Service uniqueID = new Server.Services.UniqueID();
+    private final byte[] empty = new byte[0];
+    private final NullOutputStream out = new NullOutputStream();
+
+    /**
+     * A line service, how it is served, and the input of one client.
+     */
+    @State(Scope.Thread)
+    public static class Lines {
+
+        @Param({"Reverse", "Echo", "HTTPMirror"})
+        String service;
+
+        @Param({"stream", "channel"})
+        String mode;
+
+        Service instance;
+        byte[] input;
+
+        @Setup
+        public void setup() throws Exception {
+            instance = (Service) Class.forName("Server.Services." + service).newInstance();
+            StringBuilder b = new StringBuilder();
+            for (int i = 0; i < LINES; i++) {
+                if (service.equals("HTTPMirror")) {
+                    b.append("GET /benchmark/").append(i).append(" HTTP/1.1\r\n")
+                            .append("Host: localhost\r\n")
+                            .append("User-Agent: ServiceBenchmark\r\n\r\n");
+                } else {
+                    b.append("The quick brown fox jumps over the lazy dog ")
+                            .append(i).append('\n');
+                }
+            }
+            input = b.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long lines(Lines lines) throws IOException {
+        serve(lines.instance, lines.input, lines.mode.equals("channel"));
+        return out.count;
+    }
+
+    @Benchmark
+    public long time() throws IOException {
+        serve(time, empty, false);
+        return out.count;
+    }
+
+    @Benchmark
+    public long uniqueID() throws IOException {
+        serve(uniqueID, empty, false);
+        return out.count;
+    }
+
+    /**
+     * Serve one client. A service that is not a ChannelService is served
+     * through its streams either way, as is the HTTPMirror, whose serve() is
+     * the ChannelDriver bridge.
+     */
+    private void serve(Service s, byte[] bytes, boolean channel) throws IOException {
+        InputStream in = new ByteArrayInputStream(bytes);
+        if (channel && s instanceof ChannelService) {
+            ChannelDriver.serve((ChannelService) s, Channels.newChannel(in),
+                    Channels.newChannel(out), null);
+        } else {
+            s.serve(in, out);
+        }
+    }
+
+    /**
+     * Counts what the service writes, and drops it.
+     */
+    static final class NullOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package Server.benchmarks;
+
+import Server.Services.UniqueID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of handing out an ID, from one thread and from as many threads as
+ * there are processors, all sharing the one UniqueID service as the clients of
+ * a port do, and of leasing a batch of IDs at once.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UniqueIDBenchmark {
+
+    private final UniqueID service = new UniqueID();
+
+    @Benchmark
+    @Threads(1)
+    public long uncontended() {
+        return service.nextId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long contended() {
+        return service.nextId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long batch() {
+        return service.nextIds(64);
+    }
+}
@@ -0,0 +1,61 @@
+package Server.interfaces;
+
+import Server.ChannelDriver;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+    /**
+     * This is a Service that works on ByteBuffers rather than streams. Instead
+     * of being handed a pair of streams and left to block on them, it is told
+     * when a client connects, when bytes have arrived from it, and when it has
+     * gone. The Listener reads the client's bytes straight from its
+     * SocketChannel into a direct buffer, and whatever the service writes
+     * through its ChannelSession goes straight back to the channel, so no
+     * bytes are copied through stream wrappers on the way.
+     *
+     * The same object serves every connection on its port, and the calls for
+     * one connection never overlap, close() coming after the last read(),
+     * but they may come from different threads.
+     * Per-connection state belongs in the session's attachment.
+     *
+     * A ChannelService is still a Service: served through plain streams, for
+     * example by code that only knows the Service interface, it is driven over
+     * channels wrapping those streams.
+     *
+     */
+    public interface ChannelService extends Service {
+
+        /**
+         * A client has connected. The service may write a greeting.
+         *
+         * @param session
+         * @throws IOException
+         */
+        public void open(ChannelSession session) throws IOException;
+
+        /**
+         * Bytes have arrived from the client. The buffer is ready for reading;
+         * the service takes what it can use and leaves the rest, which is
+         * handed to it again, followed by the next bytes, on the next call.
+         *
+         * @param session
+         * @param in
+         * @throws IOException
+         */
+        public void read(ChannelSession session, ByteBuffer in) throws IOException;
+
+        /**
+         * The connection is gone, whether the client or the service closed it.
+         *
+         * @param session
+         */
+        public void close(ChannelSession session);
+
+        @Override
+        public default void serve(InputStream in, OutputStream out) throws IOException {
+            ChannelDriver.serve(this, Channels.newChannel(in), Channels.newChannel(out), null);
+        }
+    }
@@ -0,0 +1,103 @@
+package Server.interfaces;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This is a client connection as seen by a ChannelService. It is handed to
+ * every call the service receives for that connection, and is the only way
+ * the service talks back to the client.
+ *
+ */
+public interface ChannelSession {
+
+    /**
+     * Write the remaining bytes of the buffers to the client, in order, with a
+     * single gathering write where the transport allows it. This returns once
+     * the bytes have been written or queued for writing; either way the
+     * buffers may be reused as soon as it returns.
+     *
+     * @param srcs
+     * @throws IOException
+     */
+    public void write(ByteBuffer... srcs) throws IOException;
+
+    /**
+     * Send count bytes of a file, starting at position, to the client after
+     * everything written so far. Where the transport allows it the bytes go
+     * from the file to the socket inside the kernel (sendfile), without being
+     * copied into the process. Like write(), this returns once the bytes have
+     * been sent or queued for sending, so the file must stay open until the
+     * session is closed.
+     *
+     * @param file
+     * @param position
+     * @param count
+     * @throws IOException
+     */
+    public default void transfer(FileChannel file, long position, long count)
+            throws IOException {
+        transfer(file, position, count, null);
+    }
+
+    /**
+     * Send count bytes of a file as transfer() does, and run done once they
+     * have been sent, or the session has ended without sending them all:
+     * from then on the file may be closed. done runs on whichever thread
+     * sends the last bytes, maybe this one before this returns, and must not
+     * block. If this throws, done is not run.
+     *
+     * @param file
+     * @param position
+     * @param count
+     * @param done or null
+     * @throws IOException
+     */
+    public void transfer(FileChannel file, long position, long count, Runnable done)
+            throws IOException;
+
+    /**
+     * Close the connection once everything written so far has been sent.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException;
+
+    /**
+     * Stop handing the service the client's input until resumeInput(), so
+     * that a service which can't take more yet, such as a proxy whose backend
+     * is slow, holds the client back instead of buffering without bound.
+     * Bytes the service already has are not affected.
+     */
+    public void suspendInput();
+
+    /**
+     * Hand the service the client's input again after suspendInput().
+     */
+    public void resumeInput();
+
+    /**
+     * Whatever the service attached to this session, or null.
+     *
+     * @return
+     */
+    public Object attachment();
+
+    /**
+     * Attach per-connection state to this session. Since all connections to a
+     * service share one ChannelService object, this is where a service keeps
+     * what the stream-based Service keeps in the local variables of serve().
+     *
+     * @param attachment
+     */
+    public void attach(Object attachment);
+
+    /**
+     * The address of the client, or null if it is not known.
+     *
+     * @return
+     */
+    public SocketAddress getRemoteAddress();
+}
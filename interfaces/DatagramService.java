@@ -0,0 +1,43 @@
+package Server.interfaces;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * This is a Service that can also answer requests that come as datagrams,
+ * one reply to each, without a connection. It suits stateless services that
+ * answer every client at once and hang up, for which a connection costs far
+ * more than the answer.
+ *
+ * A DatagramListener receives the requests in batches into buffers it
+ * reuses, calls respond() for each, and sends the replies in a batch. The
+ * same object answers every request on its port, from several threads at
+ * once, so it must be thread-safe, and it must not keep the buffers.
+ *
+ * A DatagramService is still a Service, and can be added on a TCP port as
+ * well.
+ *
+ */
+public interface DatagramService extends Service {
+
+    /**
+     * The most bytes of a request, or of a reply. A longer request is
+     * dropped without a reply, and counted in the stats.
+     */
+    public static final int MAX_DATAGRAM = 2048;
+
+    /**
+     * Answer one request. The request is the remaining bytes of in; the
+     * reply is put into out, which has MAX_DATAGRAM bytes free.
+     *
+     * @param client the address the reply goes to
+     * @param in
+     * @param out
+     * @return false to send no reply, to a request it can't make sense of
+     * for instance
+     * @throws IOException
+     */
+    public boolean respond(SocketAddress client, ByteBuffer in, ByteBuffer out)
+            throws IOException;
+}
@@ -0,0 +1,27 @@
+package Server.interfaces;
+
+/**
+ * This is a Service with threads, connections or other resources of its own,
+ * which must not outlive its use. The Listener of its port starts it before
+ * serving its first client, and stops it once it no longer serves any: when
+ * the port is closed, or, if the service is replaced, once the last of its
+ * connections has ended.
+ *
+ * A service may be made and never served, by a configuration file that fails
+ * its checks for instance, so its constructor must not start anything that
+ * only stop() would end. stop() may be called without start() having been.
+ *
+ */
+public interface ManagedService extends Service {
+
+    /**
+     * Get ready to serve clients.
+     */
+    public void start();
+
+    /**
+     * Release what start() took. Clients already being served may still be
+     * closing.
+     */
+    public void stop();
+}
@@ -0,0 +1,158 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The buffer pool borrowed from and released to by several threads, each
+ * test with a pool of its own.
+ *
+ */
+public class BufferPoolTest {
+
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 20000;
+
+    @Test
+    void aBufferIsLentToOneThreadAtATime() throws Exception {
+        final BufferPool pool = new BufferPool();
+        final Set<ByteBuffer> lent = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+        // Half the buffers are released by the next thread, as a connection's
+        // are by its Connection thread
+        final List<BlockingQueue<ByteBuffer>> handed = new ArrayList<BlockingQueue<ByteBuffer>>();
+        for (int t = 0; t < THREADS; t++) {
+            handed.add(new ArrayBlockingQueue<ByteBuffer>(ROUNDS));
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch borrowed = new CountDownLatch(THREADS);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final BlockingQueue<ByteBuffer> mine = handed.get(t);
+            final BlockingQueue<ByteBuffer> next = handed.get((t + 1) % THREADS);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < ROUNDS; i++) {
+                            int size = BufferPool.MIN_SIZE << (i % 3);
+                            ByteBuffer b = pool.borrow(size);
+                            assertTrue(b.isDirect());
+                            assertEquals(size, b.capacity());
+                            assertEquals(size, b.remaining());
+                            assertTrue(lent.add(b), "a buffer was lent twice");
+                            b.put(0, (byte) i);
+                            if (i % 2 == 0) {
+                                lent.remove(b);
+                                pool.release(b);
+                            } else {
+                                next.put(b);
+                            }
+                            ByteBuffer other = mine.poll();
+                            if (other != null) {
+                                lent.remove(other);
+                                pool.release(other);
+                            }
+                        }
+                        borrowed.countDown();
+                        // Then the rest of what was handed over
+                        borrowed.await();
+                        ByteBuffer other;
+                        while ((other = mine.poll()) != null) {
+                            lent.remove(other);
+                            pool.release(other);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                        borrowed.countDown();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join(30000);
+            assertFalse(t.isAlive());
+        }
+        assertNull(failure.get());
+        assertEquals(THREADS * ROUNDS, pool.borrowed.sum());
+        assertEquals(0, pool.getOutstanding());
+        assertTrue(lent.isEmpty());
+        // Few buffers are lent at once, so nearly all are reused
+        assertTrue(pool.getHitRate() > 0.9, "hit rate " + pool.getHitRate());
+        assertEquals(0, pool.unpooled.sum());
+    }
+
+    @Test
+    void theCacheOfAnEndedThreadIsReclaimed() throws Exception {
+        final BufferPool pool = new BufferPool();
+        final List<ByteBuffer> cached = new ArrayList<ByteBuffer>();
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(1);
+        Thread owner = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 4; i++) {
+                    cached.add(pool.borrow(BufferPool.MIN_SIZE));
+                }
+                for (ByteBuffer b : cached) {
+                    pool.release(b);
+                }
+                released.countDown();
+                try {
+                    end.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        owner.start();
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        // The owner still runs: its cache is left alone
+        Thread.sleep(20);
+        ByteBuffer fresh = pool.borrow(BufferPool.MIN_SIZE);
+        assertFalse(contains(cached, fresh));
+        assertEquals(0, pool.hits.sum());
+        // Once it has ended, the first borrow that finds the list dry takes
+        // the cache back
+        end.countDown();
+        owner.join(5000);
+        Thread.sleep(20);
+        List<ByteBuffer> again = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < cached.size(); i++) {
+            ByteBuffer b = pool.borrow(BufferPool.MIN_SIZE);
+            assertTrue(contains(cached, b), "a new buffer was carved");
+            again.add(b);
+        }
+        assertEquals(cached.size(), pool.hits.sum());
+        assertEquals(1, pool.slabs.sum());
+        pool.release(fresh);
+        for (ByteBuffer b : again) {
+            pool.release(b);
+        }
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    private static boolean contains(List<ByteBuffer> list, ByteBuffer b) {
+        for (ByteBuffer c : list) {
+            if (c == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
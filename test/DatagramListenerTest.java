@@ -0,0 +1,138 @@
+package Server;
+
+import Server.Services.Time;
+import Server.Services.UniqueID;
+import Server.interfaces.DatagramService;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The bundled datagram services answering a client over loopback, each on a
+ * DatagramListener bound to a port of the system's choosing.
+ *
+ * A request that gets no reply is followed by one that does: the listener
+ * answers a client's datagrams in order, so the reply that comes is the
+ * second one's.
+ *
+ */
+public class DatagramListenerTest {
+
+    private DatagramListener listener;
+    private DatagramSocket client;
+
+    @BeforeEach
+    void open() throws IOException {
+        client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        client.setSoTimeout(5000);
+    }
+
+    @AfterEach
+    void close() {
+        client.close();
+        if (listener != null) {
+            listener.pleaseStop();
+        }
+    }
+
+    private void serve(DatagramService service) throws IOException {
+        listener = new DatagramListener(new ThreadGroup("DatagramListenerTest"), 0,
+                service, new ServiceOptions());
+        listener.start();
+    }
+
+    private String ask(String request) throws IOException {
+        return ask(request.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void send(String request) throws IOException {
+        send(request.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void send(byte[] request) throws IOException {
+        client.send(new DatagramPacket(request, request.length,
+                InetAddress.getLoopbackAddress(), listener.port));
+    }
+
+    private String ask(byte[] request) throws IOException {
+        send(request);
+        DatagramPacket reply = new DatagramPacket(new byte[DatagramService.MAX_DATAGRAM],
+                DatagramService.MAX_DATAGRAM);
+        client.receive(reply);
+        return new String(reply.getData(), 0, reply.getLength(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A reply is counted once sent, which may be after the client has it.
+     */
+    private void awaitReplies(long n) throws InterruptedException {
+        for (long deadline = System.currentTimeMillis() + 5000;
+                listener.replies.sum() < n;) {
+            assertTrue(System.currentTimeMillis() < deadline, "replies not counted");
+            Thread.sleep(1);
+        }
+        assertEquals(n, listener.replies.sum());
+    }
+
+    @Test
+    void timeAnswersAnyDatagram() throws Exception {
+        serve(new Time("EPOCH_MILLIS"));
+        long before = System.currentTimeMillis();
+        String reply = ask("");
+        assertTrue(reply.endsWith("\n"), reply);
+        long time = Long.parseLong(reply.trim());
+        // Rendered once a second
+        assertTrue(time >= before - 2000 && time <= System.currentTimeMillis(), reply);
+        assertEquals(reply.trim().length(), ask("what time is it?").trim().length());
+        assertEquals(2, listener.requests.sum());
+        awaitReplies(2);
+    }
+
+    @Test
+    void uniqueIdAnswersOneOrACount() throws Exception {
+        serve(new UniqueID((String) null));
+        long first = Long.parseLong(ask("").trim());
+        String batch = ask("10\n");
+        String[] fields = batch.trim().split(" ");
+        assertEquals(2, fields.length, batch);
+        long start = Long.parseLong(fields[0]);
+        assertEquals("10", fields[1]);
+        // Unique, though not in order: single IDs come from a block leased
+        // ahead
+        assertTrue(first < start || first >= start + 10, batch);
+        long second = Long.parseLong(ask("").trim());
+        assertTrue(second != first && (second < start || second >= start + 10));
+        // Neither a count nor empty: no reply
+        send("ten");
+        long third = Long.parseLong(ask("").trim());
+        assertTrue(third != first && third != second
+                && (third < start || third >= start + 10));
+        assertEquals(1, listener.ignored.sum());
+        assertEquals(5, listener.requests.sum());
+        awaitReplies(4);
+    }
+
+    @Test
+    void anOversizedRequestIsDroppedAndCounted() throws Exception {
+        serve(new Time("EPOCH_MILLIS"));
+        byte[] request = new byte[DatagramService.MAX_DATAGRAM + 1];
+        Arrays.fill(request, (byte) 'x');
+        send(request);
+        // The largest request still gets its reply, and is the one answered
+        String reply = ask(Arrays.copyOf(request, DatagramService.MAX_DATAGRAM));
+        Long.parseLong(reply.trim());
+        assertEquals(2, listener.requests.sum());
+        assertEquals(1, listener.oversized.sum());
+        awaitReplies(1);
+        assertEquals(2L * DatagramService.MAX_DATAGRAM + 1, listener.bytesIn.sum());
+    }
+}
@@ -0,0 +1,195 @@
+package Server;
+
+import Server.Services.Reverse;
+import Server.interfaces.ChannelService;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The codec under the Reverse service, driven by a ChannelDriver over
+ * in-memory channels: the client's bytes come in the pieces given, one per
+ * read, and each write of the session is recorded on its own, so a test sees
+ * how the replies were batched.
+ *
+ */
+public class LineCodecTest {
+
+    private static final String WELCOME = "Welcome to the line reversal server.\n"
+            + "Enter lines.  End with a '.' on a line by itself.\n> ";
+    private static final String TOO_LONG = "Line too long.\n> ";
+
+    /**
+     * The client's side: its bytes, a piece per read, then the end. A piece
+     * larger than the buffer takes several reads.
+     */
+    private static final class Pieces implements ReadableByteChannel {
+
+        private final byte[][] pieces;
+        private int next = 0;
+        private int offset = 0;     // Into the next piece
+        private boolean open = true;
+
+        Pieces(byte[]... pieces) {
+            this.pieces = pieces;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (next == pieces.length) {
+                return -1;
+            }
+            byte[] b = pieces[next];
+            int n = Math.min(b.length - offset, dst.remaining());
+            dst.put(b, offset, n);
+            offset += n;
+            if (offset == b.length) {
+                next++;
+                offset = 0;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * The server's side: what each write sent.
+     */
+    private static final class Writes implements WritableByteChannel {
+
+        final List<String> writes = new ArrayList<String>();
+        private boolean open = true;
+
+        @Override
+        public int write(ByteBuffer src) {
+            byte[] b = new byte[src.remaining()];
+            src.get(b);
+            writes.add(new String(b, StandardCharsets.UTF_8));
+            return b.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * The writes the service makes for the pieces, after its welcome.
+     */
+    private static List<String> exchange(ChannelService service, byte[]... pieces)
+            throws IOException {
+        Writes out = new Writes();
+        ChannelDriver.serve(service, new Pieces(pieces), out, null);
+        assertEquals(WELCOME, out.writes.get(0));
+        return out.writes.subList(1, out.writes.size());
+    }
+
+    private static List<String> exchange(ChannelService service, String... pieces)
+            throws IOException {
+        byte[][] bytes = new byte[pieces.length][];
+        for (int i = 0; i < pieces.length; i++) {
+            bytes[i] = utf8(pieces[i]);
+        }
+        return exchange(service, bytes);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    void theLinesOfOneReadAreAnsweredInOneWrite() throws IOException {
+        assertEquals(Arrays.asList("cba\n> fed\n> ihg\n> "),
+                exchange(new Reverse(), "abc\ndef\r\nghi\n"));
+    }
+
+    @Test
+    void aReadWithoutAWholeLineWritesNothing() throws IOException {
+        assertEquals(Arrays.asList("olleh\n> "),
+                exchange(new Reverse(), "he", "l", "lo\n"));
+    }
+
+    @Test
+    void aLineSpansReads() throws IOException {
+        // Its terminator split from it too, and an empty line
+        assertEquals(Arrays.asList("cba\n> ", "fed\n> ", "\n> "),
+                exchange(new Reverse(), "ab", "c\nde", "f\r", "\n", "\n"));
+    }
+
+    @Test
+    void aDotLineClosesTheConnection() throws IOException {
+        assertEquals(Arrays.asList("ba\n> "),
+                exchange(new Reverse(), "ab\n.\nnever\n", "nor this\n"));
+    }
+
+    @Test
+    void aLineOfTheMaximumLengthIsAnswered() throws IOException {
+        String line = "12345678";
+        assertEquals(Arrays.asList("87654321\n> ", "87654321\n> "),
+                exchange(new Reverse(8), line + "\n", line + "\r\n"));
+    }
+
+    @Test
+    void aLineTooLongIsRejected() throws IOException {
+        assertEquals(Arrays.asList(TOO_LONG + "ko\n> "),
+                exchange(new Reverse(8), "123456789\nok\n"));
+    }
+
+    @Test
+    void aLineTooLongIsDiscardedAcrossReads() throws IOException {
+        // Told once, as soon as it is too long, and nothing of it answered
+        assertEquals(Arrays.asList(TOO_LONG, "yx\n> "),
+                exchange(new Reverse(8), "1234567890", "abc", "def\nxy\n"));
+    }
+
+    @Test
+    void aLineFillingTheInputBufferIsRejected() throws IOException {
+        // Under the maximum length, but longer than the buffer of a read
+        String line = repeat('x', ChannelDriver.BUFFER_SIZE + 10);
+        List<String> writes = exchange(new Reverse(ChannelDriver.BUFFER_SIZE * 2),
+                line + "\nab\n");
+        assertEquals(TOO_LONG + "ba\n> ", String.join("", writes));
+    }
+
+    @Test
+    void codePointsAreReversedWhole() throws IOException {
+        String line = "h\u00e9llo \u20ac \ud834\udd1e!";  // 2, 3 and 4 byte characters
+        String reversed = new StringBuilder(line).reverse().toString();
+        assertEquals(Arrays.asList(reversed + "\n> "), exchange(new Reverse(), line + "\n"));
+
+        // Split inside a character, which waits for the rest of its line
+        byte[] bytes = utf8(line + "\n");
+        int euro = utf8("h\u00e9llo ").length + 1;
+        assertEquals(Arrays.asList(reversed + "\n> "), exchange(new Reverse(),
+                Arrays.copyOfRange(bytes, 0, euro), Arrays.copyOfRange(bytes, euro, bytes.length)));
+    }
+}
@@ -0,0 +1,187 @@
+package Server.Services;
+
+import Server.ChannelDriver;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The mirror's HTTP/1.1 framing, driven by a ChannelDriver over in-memory
+ * channels: the client's bytes come in the pieces given, one per read.
+ *
+ */
+public class HTTPMirrorTest {
+
+    /**
+     * The client's side: its bytes, a piece per read, then the end.
+     */
+    private static final class Pieces implements ReadableByteChannel {
+
+        private final String[] pieces;
+        private int next = 0;
+        private boolean open = true;
+
+        Pieces(String... pieces) {
+            this.pieces = pieces;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (next == pieces.length) {
+                return -1;
+            }
+            byte[] b = pieces[next++].getBytes(StandardCharsets.ISO_8859_1);
+            dst.put(b);
+            return b.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * What the mirror answers to the pieces.
+     */
+    private static String exchange(String... pieces) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChannelDriver.serve(new HTTPMirror(), new Pieces(pieces), Channels.newChannel(out), null);
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The responses in what the mirror sent, each from its status line.
+     */
+    private static List<String> responses(String answer) {
+        List<String> list = new ArrayList<String>();
+        int from = answer.indexOf("HTTP/1.1 ");
+        while (from >= 0) {
+            int next = answer.indexOf("HTTP/1.1 ", from + 1);
+            // Not inside a mirrored body, which starts with the request line
+            while (next > 0 && answer.charAt(next - 1) == ' ') {
+                next = answer.indexOf("HTTP/1.1 ", next + 1);
+            }
+            list.add(next < 0 ? answer.substring(from) : answer.substring(from, next));
+            from = next;
+        }
+        return list;
+    }
+
+    private static String body(String response) {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static final String GET = "GET /%s HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+    @Test
+    void keepAliveAnswersEachRequest() throws Exception {
+        List<String> r = responses(exchange(String.format(GET, "a"), String.format(GET, "b")));
+        assertEquals(2, r.size());
+        for (int i = 0; i < 2; i++) {
+            assertTrue(r.get(i).startsWith("HTTP/1.1 200 OK\r\n"), r.get(i));
+            assertTrue(!r.get(i).contains("Connection: close"), r.get(i));
+            String request = String.format(GET, i == 0 ? "a" : "b");
+            assertEquals(request, body(r.get(i)));
+            assertTrue(r.get(i).contains("Content-Length: " + request.length() + "\r\n"));
+        }
+    }
+
+    @Test
+    void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+        String last = "GET /c HTTP/1.1\r\nConnection: close\r\n\r\n";
+        List<String> r = responses(exchange(String.format(GET, "a") + String.format(GET, "b")
+                + last + String.format(GET, "ignored")));
+        assertEquals(3, r.size());
+        assertTrue(body(r.get(0)).startsWith("GET /a "));
+        assertTrue(body(r.get(1)).startsWith("GET /b "));
+        assertEquals(last, body(r.get(2)));
+        assertTrue(r.get(2).contains("Connection: close\r\n"));
+    }
+
+    @Test
+    void http10ClosesUnlessKeptAlive() throws Exception {
+        List<String> r = responses(exchange("GET / HTTP/1.0\r\n\r\n", String.format(GET, "b")));
+        assertEquals(1, r.size());
+        assertTrue(r.get(0).contains("Connection: close\r\n"));
+        r = responses(exchange("GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n",
+                String.format(GET, "b")));
+        assertEquals(2, r.size());
+        assertTrue(r.get(0).contains("Connection: keep-alive\r\n"));
+    }
+
+    @Test
+    void aBodyIsMirroredAcrossReads() throws Exception {
+        String head = "POST /p HTTP/1.1\r\nContent-Length: 11\r\n\r\n";
+        List<String> r = responses(exchange(head + "hello", " wor", "ld" + String.format(GET, "n")));
+        assertEquals(2, r.size());
+        assertTrue(r.get(0).contains("Content-Length: " + (head.length() + 11) + "\r\n"));
+        assertEquals(head + "hello world", body(r.get(0)));
+        assertTrue(body(r.get(1)).startsWith("GET /n "));
+    }
+
+    @Test
+    void aChunkedBodyIsMirroredChunked() throws Exception {
+        String head = "POST /c HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+        List<String> r = responses(exchange(head + "5\r\nhel", "lo\r\n6;ext=1\r\n wor",
+                "ld\r\n0\r\n", "Trailer: x\r\n\r\n" + String.format(GET, "n")));
+        assertEquals(2, r.size());
+        assertTrue(r.get(0).contains("Transfer-Encoding: chunked\r\n"));
+        // The request head as the first chunk, then the chunks as they came
+        assertEquals(Integer.toHexString(head.length()) + "\r\n" + head + "\r\n"
+                + "5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\nTrailer: x\r\n\r\n",
+                body(r.get(0)));
+        assertTrue(body(r.get(1)).startsWith("GET /n "));
+    }
+
+    private static String status(String... headers) throws IOException {
+        StringBuilder request = new StringBuilder("POST / HTTP/1.1\r\n");
+        for (String h : headers) {
+            request.append(h).append("\r\n");
+        }
+        request.append("\r\n");
+        List<String> r = responses(exchange(request.toString(), "12", String.format(GET, "n")));
+        String status = r.get(0).substring(9, r.get(0).indexOf("\r\n"));
+        if (!status.startsWith("200")) {
+            // And nothing after: the connection is closed
+            assertEquals(1, r.size(), r.toString());
+            assertTrue(r.get(0).contains("Connection: close\r\n"));
+        }
+        return status;
+    }
+
+    @Test
+    void badLengthsAreRefused() throws Exception {
+        assertEquals("200 OK", status("Content-Length: 2"));
+        assertEquals("200 OK", status("Content-Length:\t 2 \t"));
+        assertEquals("400 Bad Request", status("Content-Length: 1 2"));
+        assertEquals("400 Bad Request", status("Content-Length: "));
+        assertEquals("400 Bad Request", status("Content-Length: -2"));
+        assertEquals("400 Bad Request", status("Content-Length: +2"));
+        assertEquals("400 Bad Request", status("Content-Length: 2, 2"));
+        assertEquals("400 Bad Request", status("Content-Length: 99999999999"));
+    }
+
+    @Test
+    void ambiguousFramingIsRefused() throws Exception {
+        assertEquals("200 OK", status("Content-Length: 2", "Content-Length: 2"));
+        assertEquals("400 Bad Request", status("Content-Length: 2", "Content-Length: 3"));
+        assertEquals("400 Bad Request", status("Content-Length: 2", "Transfer-Encoding: chunked"));
+        assertEquals("400 Bad Request", status("Transfer-Encoding: chunked", "Content-Length: 2"));
+        assertEquals("501 Not Implemented", status("Transfer-Encoding: gzip"));
+    }
+}
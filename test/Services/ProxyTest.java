@@ -0,0 +1,373 @@
+package Server.Services;
+
+import Server.Engine;
+import Server.Server;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The proxy on an NIO server in front of two loopback backends, an Echo and a
+ * Reverse on a blocking server, which tell themselves apart by their welcome
+ * line.
+ *
+ */
+public class ProxyTest {
+
+    // Fresh ports for each test, as a closed NIO port is released lazily
+    private static final AtomicInteger NEXT_PORT = new AtomicInteger(23500);
+    private static final String ECHO_WELCOME = "Welcome to the Echo server.";
+    private static final String REVERSE_WELCOME = "Welcome to the line reversal server.";
+    private static final long NO_CHECKS = 600000;   // Only the one at start
+
+    private int proxyPort;
+    private int echoPort;
+    private int reversePort;
+    private Server backends;
+    private Server server;
+    private final List<Socket> clients = new ArrayList<Socket>();
+
+    @BeforeEach
+    void start() throws IOException {
+        proxyPort = NEXT_PORT.getAndAdd(3);
+        echoPort = proxyPort + 1;
+        reversePort = proxyPort + 2;
+        backends = new Server(20, Engine.BLOCKING);
+        backends.addService(new Echo(), echoPort);
+        backends.addService(new Reverse(), reversePort);
+        server = new Server(20, Engine.NIO);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        for (Socket c : clients) {
+            c.close();
+        }
+        server.removeAllServices();
+        backends.removeAllServices();
+    }
+
+    private static List<InetSocketAddress> targets(int... ports) {
+        List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+        for (int port : ports) {
+            list.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        return list;
+    }
+
+    /**
+     * Connect a client through the proxy, leaving it open.
+     *
+     * @return the welcome line of the backend it reached
+     */
+    private String connect() throws IOException {
+        Socket c = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+        c.setSoTimeout(5000);
+        clients.add(c);
+        return reader(c).readLine();
+    }
+
+    private static BufferedReader reader(Socket c) throws IOException {
+        return new BufferedReader(new InputStreamReader(c.getInputStream(),
+                StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Have a line answered through the proxy.
+     *
+     * @return the backend's welcome line and its answer
+     */
+    private String[] talk(String line) throws IOException {
+        Socket c = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+        try {
+            c.setSoTimeout(5000);
+            BufferedReader in = reader(c);
+            String welcome = in.readLine();
+            in.readLine();
+            c.getOutputStream().write((line + "\n.\n").getBytes(StandardCharsets.US_ASCII));
+            c.getOutputStream().flush();
+            return new String[]{welcome, in.readLine()};
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Take a backend down, and wait for its port to refuse connections: a
+     * connection made while it closes may be left half open.
+     */
+    private void remove(int port) throws Exception {
+        backends.removeService(port);
+        for (long deadline = System.currentTimeMillis() + 5000;;) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+            } catch (ConnectException e) {
+                return;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "port " + port + " still open");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void await(String what, long millis, Condition condition)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!condition.holds()) {
+            assertTrue(System.currentTimeMillis() < deadline, what);
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Condition {
+
+        boolean holds();
+    }
+
+    @Test
+    void roundRobinTakesEachBackendInTurn() throws Exception {
+        Proxy proxy = new Proxy(targets(echoPort, reversePort), Proxy.Strategy.ROUND_ROBIN, 0, NO_CHECKS);
+        server.addService(proxy, proxyPort);
+        String[] first = talk("abc");
+        String[] second = talk("abc");
+        assertNotEquals(first[0], second[0]);
+        for (int i = 0; i < 4; i++) {
+            String[] reply = talk("abc" + i);
+            assertEquals(i % 2 == 0 ? first[0] : second[0], reply[0]);
+            assertEquals(reply[0].equals(ECHO_WELCOME) ? "> abc" + i : "> " + i + "cba",
+                    reply[1]);
+        }
+        for (Proxy.Backend b : proxy.getBackends()) {
+            assertEquals(3, b.getConnections());
+        }
+    }
+
+    @Test
+    void leastConnectionsTakesTheLeastBusy() throws Exception {
+        Proxy proxy = new Proxy(targets(echoPort, reversePort),
+                Proxy.Strategy.LEAST_CONNECTIONS, 0, NO_CHECKS);
+        server.addService(proxy, proxyPort);
+        // One each, whichever goes first
+        String first = connect();
+        assertNotEquals(first, connect());
+        // Then a third makes one busier, and the fourth goes to the other
+        String third = connect();
+        assertNotEquals(third, connect());
+        for (Proxy.Backend b : proxy.getBackends()) {
+            assertEquals(2, b.getActive());
+        }
+        // The clients of one go, and it gets the next
+        clients.get(third.equals(first) ? 0 : 1).close();
+        clients.get(2).close();
+        final Proxy.Backend idler = proxy.getBackends().get(third.equals(ECHO_WELCOME) ? 0 : 1);
+        await("the closed clients were not released", 5000, new Condition() {
+            @Override
+            public boolean holds() {
+                return idler.getActive() == 0;
+            }
+        });
+        assertEquals(third, connect());
+        assertEquals(third, connect());
+        assertEquals(2, idler.getActive());
+    }
+
+    @Test
+    void consistentHashKeepsAClientOnOneBackend() throws Exception {
+        Proxy proxy = new Proxy(targets(echoPort, reversePort), Proxy.Strategy.CONSISTENT_HASH, 0, NO_CHECKS);
+        server.addService(proxy, proxyPort);
+        String first = talk("abc")[0];
+        for (int i = 0; i < 5; i++) {
+            assertEquals(first, talk("abc")[0]);
+        }
+        // Until its backend goes
+        remove(first.equals(ECHO_WELCOME) ? echoPort : reversePort);
+        String other = first.equals(ECHO_WELCOME) ? REVERSE_WELCOME : ECHO_WELCOME;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(other, talk("abc")[0]);
+        }
+    }
+
+    @Test
+    void aBackendDownIsSkipped() throws Exception {
+        Proxy proxy = new Proxy(targets(echoPort, reversePort), Proxy.Strategy.ROUND_ROBIN, 1, NO_CHECKS);
+        server.addService(proxy, proxyPort);
+        final Proxy.Backend reverse = proxy.getBackends().get(1);
+        // The check pools one connection to each, and closes a second one
+        await("the health check did not run", 5000, new Condition() {
+            @Override
+            public boolean holds() {
+                return reverse.getPooled() == 1 && accepted(backends) == 4;
+            }
+        });
+        // Down after the check: its pooled connection is closed, and the
+        // clients sent to it fail over to the other
+        remove(reversePort);
+        for (int i = 0; i < 4; i++) {
+            String[] reply = talk("abc" + i);
+            assertEquals(ECHO_WELCOME, reply[0]);
+            assertEquals("> abc" + i, reply[1]);
+        }
+        assertFalse(reverse.isUp());
+        assertEquals(1, reverse.getFailures());
+        assertEquals(0, reverse.getPooled());
+        assertEquals(0, reverse.getConnections());
+    }
+
+    @Test
+    void pooledConnectionsAreTakenFirst() throws Exception {
+        Proxy proxy = new Proxy(targets(echoPort), Proxy.Strategy.ROUND_ROBIN, 2, NO_CHECKS);
+        server.addService(proxy, proxyPort);
+        final Proxy.Backend echo = proxy.getBackends().get(0);
+        // The check fills the pool, and closes the one connection too many
+        await("the pool was not filled", 5000, new Condition() {
+            @Override
+            public boolean holds() {
+                return echo.getPooled() == 2 && accepted(backends) == 3;
+            }
+        });
+        // The welcome the backend sent the pooled connection goes to the client
+        String[] reply = talk("abc");
+        assertEquals(ECHO_WELCOME, reply[0]);
+        assertEquals("> abc", reply[1]);
+        assertEquals(1, echo.getPooled());
+        assertEquals(ECHO_WELCOME, connect());
+        assertEquals(0, echo.getPooled());
+        assertEquals(3, accepted(backends));
+        // Then new ones are made
+        assertEquals(ECHO_WELCOME, connect());
+        assertEquals(4, accepted(backends));
+        assertEquals(3, echo.getConnections());
+    }
+
+    /**
+     * The connections a server has accepted, from its stats.
+     */
+    private static long accepted(Server s) {
+        StringWriter stats = new StringWriter();
+        s.displayStats(new PrintWriter(stats), false);
+        Matcher m = Pattern.compile("(\\d+) ACCEPTED").matcher(stats.toString());
+        assertTrue(m.find(), stats.toString());
+        return Long.parseLong(m.group(1));
+    }
+
+    @Test
+    void healthChecksRunFromStartToStop() throws Exception {
+        int before = healthCheckers();
+        Proxy proxy = new Proxy(targets(echoPort, reversePort), Proxy.Strategy.ROUND_ROBIN, 0, NO_CHECKS);
+        assertEquals(before, healthCheckers());
+        server.addService(proxy, proxyPort);
+        assertEquals(before + 1, healthCheckers());
+        server.removeService(proxyPort);
+        final int after = before;
+        await("the health checker was not stopped", 5000, new Condition() {
+            @Override
+            public boolean holds() {
+                return healthCheckers() == after;
+            }
+        });
+    }
+
+    private static int healthCheckers() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("ProxyHealth") && t.isAlive()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    void aBackendThatDoesNotAnswerHoldsUpOnlyItsClients() throws Exception {
+        // A listening socket whose backlog is full drops new connects unanswered
+        int blackhole = NEXT_PORT.getAndIncrement();
+        ServerSocket full = new ServerSocket(blackhole, 1, InetAddress.getLoopbackAddress());
+        try {
+            for (;;) {
+                Socket c = new Socket();
+                clients.add(c);
+                try {
+                    c.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), blackhole), 200);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+            }
+            Proxy proxy = new Proxy(targets(blackhole, echoPort), Proxy.Strategy.ROUND_ROBIN, 0, NO_CHECKS);
+            server.addService(proxy, proxyPort);
+            // The first client is sent to the black hole
+            Socket waiting = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+            clients.add(waiting);
+            waiting.setSoTimeout(5000);
+            Thread.sleep(100);
+            long start = System.currentTimeMillis();
+            String[] reply = talk("abc");
+            assertEquals(ECHO_WELCOME, reply[0]);
+            assertTrue(System.currentTimeMillis() - start < Proxy.CONNECT_TIMEOUT / 2,
+                    "a client waited for another's connect");
+            // Which goes on to the other backend once its connect times out
+            assertEquals(ECHO_WELCOME, reader(waiting).readLine());
+            assertEquals(1, proxy.getBackends().get(0).getFailures());
+        } finally {
+            full.close();
+        }
+    }
+
+    @Test
+    void clientsShareTheRelayThreads() throws Exception {
+        // Those of other proxies may linger, or end meanwhile
+        int before = relayThreads();
+        Proxy proxy = new Proxy(targets(echoPort), Proxy.Strategy.ROUND_ROBIN, 0, NO_CHECKS);
+        server.addService(proxy, proxyPort);
+        for (int i = 0; i < 3 * Proxy.RELAY_THREADS; i++) {
+            assertEquals(ECHO_WELCOME, connect());
+        }
+        assertEquals("> abc", talk("abc")[1]);
+        int relays = relayThreads() - before;
+        assertTrue(relays <= Proxy.RELAY_THREADS, relays + " more relay threads");
+    }
+
+    private static int relayThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("ProxyRelay:") && t.isAlive()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    void aStoppedProxyRefusesClients() throws Exception {
+        Proxy proxy = new Proxy(Arrays.asList(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), echoPort)), Proxy.Strategy.ROUND_ROBIN, 0, NO_CHECKS);
+        server.addService(proxy, proxyPort);
+        assertEquals("> abc", talk("abc")[1]);
+        proxy.stop();
+        Socket c = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+        clients.add(c);
+        c.setSoTimeout(5000);
+        assertEquals(null, reader(c).readLine());
+    }
+}
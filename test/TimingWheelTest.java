@@ -0,0 +1,423 @@
+package Server;
+
+import Server.Services.Echo;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The wheel on its own, with a short tick and a small turn so that timeouts
+ * span several turns, and the four connection timeouts it runs for an Echo
+ * on an NIO server, checked through the service's counters.
+ *
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = 10;            // milliseconds
+    private static final int SIZE = 8;              // ticks per turn
+    private static final long TURN = TICK * SIZE;
+    // Fresh ports for each test, as a closed NIO port is released lazily
+    private static final AtomicInteger NEXT_PORT = new AtomicInteger(23700);
+
+    private TimingWheel wheel;
+    private Server server;
+    private final List<Socket> clients = new ArrayList<Socket>();
+
+    @AfterEach
+    void stop() throws IOException {
+        if (wheel != null) {
+            wheel.stop();
+        }
+        for (Socket c : clients) {
+            c.close();
+        }
+        if (server != null) {
+            server.removeAllServices();
+        }
+    }
+
+    /**
+     * A task recording when it ran, and in what order.
+     */
+    private static final class Probe implements Runnable {
+
+        final long scheduled = System.nanoTime();
+        final List<Probe> order;
+        final CountDownLatch ran = new CountDownLatch(1);
+        volatile long at;
+
+        Probe(List<Probe> order) {
+            this.order = order;
+        }
+
+        @Override
+        public void run() {
+            at = System.nanoTime();
+            order.add(this);
+            ran.countDown();
+        }
+
+        long millis() {
+            return TimeUnit.NANOSECONDS.toMillis(at - scheduled);
+        }
+
+        boolean await(long millis) throws InterruptedException {
+            return ran.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    void timeoutsOfOneBucketRunOnTheirOwnTurn() throws Exception {
+        wheel = new TimingWheel(TICK, SIZE);
+        List<Probe> order = Collections.synchronizedList(new ArrayList<Probe>());
+        // A turn apart, so they share a bucket and differ only in rounds
+        long[] delays = {TURN * 4 + 15, 15, TURN * 2 + 15, TURN + 15};
+        Probe[] probes = new Probe[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            probes[i] = new Probe(order);
+            wheel.schedule(probes[i], delays[i], TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(probes[i].await(5000), "never ran");
+            assertTrue(probes[i].millis() >= delays[i],
+                    "ran after " + probes[i].millis() + " ms of " + delays[i]);
+        }
+        assertEquals(Arrays.asList(probes[1], probes[3], probes[2], probes[0]), order);
+    }
+
+    @Test
+    void timeoutsRunInTheOrderOfTheirDeadlines() throws Exception {
+        wheel = new TimingWheel(TICK, SIZE);
+        List<Probe> order = Collections.synchronizedList(new ArrayList<Probe>());
+        List<Probe> expected = new ArrayList<Probe>();
+        // Three ticks apart, further than a turn in all
+        for (long delay = 0; delay < TURN * 3; delay += TICK * 3) {
+            Probe p = new Probe(order);
+            expected.add(p);
+            wheel.schedule(p, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(expected.get(expected.size() - 1).await(5000), "never ran");
+        assertEquals(expected, order);
+    }
+
+    @Test
+    void aTimeoutAlreadyDueRunsOnTheNextTick() throws Exception {
+        wheel = new TimingWheel(TICK, SIZE);
+        List<Probe> order = Collections.synchronizedList(new ArrayList<Probe>());
+        Probe now = new Probe(order);
+        Probe past = new Probe(order);
+        wheel.schedule(now, 0, TimeUnit.MILLISECONDS);
+        wheel.schedule(past, -1000, TimeUnit.MILLISECONDS);
+        assertTrue(now.await(5000), "never ran");
+        assertTrue(past.await(5000), "never ran");
+        assertTrue(now.at != 0 && past.at != 0);
+    }
+
+    @Test
+    void aCancelledTimeoutNeverRuns() throws Exception {
+        wheel = new TimingWheel(TICK, SIZE);
+        List<Probe> order = Collections.synchronizedList(new ArrayList<Probe>());
+        // The head, middle and tail of one bucket's list, and the one left
+        Probe[] probes = new Probe[5];
+        TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[probes.length];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = new Probe(order);
+            timeouts[i] = wheel.schedule(probes[i], TURN + 5, TimeUnit.MILLISECONDS);
+        }
+        // Once the thread has them in the bucket
+        Thread.sleep(TICK * 3);
+        for (int i : new int[]{0, 2, 4}) {
+            assertTrue(timeouts[i].cancel());
+            assertFalse(timeouts[i].cancel(), "cancelled twice");
+            assertTrue(timeouts[i].isCancelled());
+        }
+        // And one cancelled before the thread has taken it in
+        Probe early = new Probe(order);
+        assertTrue(wheel.schedule(early, 5, TimeUnit.MILLISECONDS).cancel());
+
+        assertTrue(probes[3].await(5000), "never ran");
+        assertTrue(probes[1].await(5000), "never ran");
+        Thread.sleep(TURN * 2);
+        assertEquals(2, order.size(), "ran " + order.size());
+        assertTrue(timeouts[1].isExpired());
+        assertFalse(timeouts[1].cancel(), "cancelled after it ran");
+        assertFalse(timeouts[1].isCancelled());
+    }
+
+    @Test
+    void aFailingTimeoutLeavesTheWheelTurning() throws Exception {
+        wheel = new TimingWheel(TICK, SIZE);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Failing on purpose");
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        Probe later = new Probe(Collections.synchronizedList(new ArrayList<Probe>()));
+        wheel.schedule(later, TICK * 3, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(5000), "the wheel stopped");
+    }
+
+    @Test
+    void aStoppedWheelRunsNothing() throws Exception {
+        wheel = new TimingWheel(TICK, SIZE);
+        Probe p = new Probe(Collections.synchronizedList(new ArrayList<Probe>()));
+        wheel.schedule(p, TICK * 5, TimeUnit.MILLISECONDS);
+        wheel.stop();
+        assertFalse(p.await(TICK * 20), "ran once stopped");
+    }
+
+    @Test
+    void badTickOrSize() {
+        for (long[] bad : new long[][]{{0, 8}, {10, 0}}) {
+            try {
+                new TimingWheel(bad[0], (int) bad[1]).stop();
+                assertTrue(false, "accepted " + Arrays.toString(bad));
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Serve an Echo on a fresh NIO port with the timeout of the specified
+     * kind, in milliseconds.
+     *
+     * @return the port
+     */
+    private int serve(String kind, long millis, ServiceOptions options) throws IOException {
+        int port = NEXT_PORT.getAndIncrement();
+        server = new Server(100, Engine.NIO);
+        server.addService(new Echo(), port, options);
+        server.setTimeout(port, kind, millis);
+        return port;
+    }
+
+    private Socket connect(int port) throws IOException {
+        Socket c = new Socket(InetAddress.getLoopbackAddress(), port);
+        c.setSoTimeout(5000);
+        clients.add(c);
+        readLine(c.getInputStream());   // The welcome, up to its prompt
+        readLine(c.getInputStream());
+        return c;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.append((char) b);
+        }
+        return b < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+    private static void send(Socket c, String line) throws IOException {
+        c.getOutputStream().write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        c.getOutputStream().flush();
+    }
+
+    /**
+     * Whether the server closes the connection, skipping what it still
+     * sends, such as the prompt, and waiting at most the socket's timeout.
+     */
+    private static boolean closedByServer(Socket c) throws IOException {
+        try {
+            while (c.getInputStream().read() >= 0) {
+                // Skipped
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (SocketException e) {
+            return true;    // Reset
+        }
+    }
+
+    /**
+     * The service's counters: accepted, closed, then the idle, read, session
+     * and write timeouts.
+     */
+    private long[] counters() {
+        StringWriter stats = new StringWriter();
+        server.displayStats(new PrintWriter(stats), false);
+        Matcher c = Pattern.compile("(\\d+) ACCEPTED .* (\\d+) CLOSED").matcher(stats.toString());
+        Matcher t = Pattern.compile("TIMEOUTS (\\d+) IDLE, (\\d+) READ, (\\d+) SESSION, (\\d+) WRITE")
+                .matcher(stats.toString());
+        assertTrue(c.find() && t.find(), stats.toString());
+        return new long[]{Long.parseLong(c.group(1)), Long.parseLong(c.group(2)),
+            Long.parseLong(t.group(1)), Long.parseLong(t.group(2)),
+            Long.parseLong(t.group(3)), Long.parseLong(t.group(4))};
+    }
+
+    /**
+     * Wait for the counters to settle on the expected ones.
+     */
+    private void awaitCounters(long... expected) throws InterruptedException {
+        long[] got = counters();
+        for (long deadline = System.currentTimeMillis() + 5000;
+                !Arrays.equals(expected, got) && System.currentTimeMillis() < deadline;
+                got = counters()) {
+            Thread.sleep(20);
+        }
+        assertEquals(Arrays.toString(expected), Arrays.toString(got));
+    }
+
+    @Test
+    void anIdleConnectionExpires() throws Exception {
+        int port = serve("idle", 300, new ServiceOptions());
+        Socket c = connect(port);
+        long start = System.nanoTime();
+        assertTrue(closedByServer(c));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        awaitCounters(1, 1, 1, 0, 0, 0);
+    }
+
+    @Test
+    void anActiveConnectionOutlivesItsIdleTimeout() throws Exception {
+        int port = serve("idle", 300, new ServiceOptions());
+        Socket c = connect(port);
+        // Each line moves the deadline on, so the wheel checks again
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(100);
+            send(c, "ping " + i);
+            assertEquals("> ping " + i, readLine(c.getInputStream()));
+        }
+        awaitCounters(1, 0, 0, 0, 0, 0);
+        assertTrue(closedByServer(c));
+        awaitCounters(1, 1, 1, 0, 0, 0);
+    }
+
+    @Test
+    void aConnectionWaitingForInputExpires() throws Exception {
+        int port = serve("read", 300, new ServiceOptions());
+        Socket c = connect(port);
+        assertTrue(closedByServer(c));
+        awaitCounters(1, 1, 0, 1, 0, 0);
+    }
+
+    @Test
+    void aSessionExpiresWhateverItsActivity() throws Exception {
+        int port = serve("session", 400, new ServiceOptions());
+        Socket c = connect(port);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 50; i++) {
+                send(c, "ping " + i);
+                if (readLine(c.getInputStream()) == null) {
+                    break;
+                }
+                Thread.sleep(50);
+            }
+        } catch (SocketException e) {
+            // Closed while writing
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(2500),
+                "outlived its session");
+        awaitCounters(1, 1, 0, 0, 1, 0);
+    }
+
+    @Test
+    void aClientHoldingUpOutputExpires() throws Exception {
+        ServiceOptions options = new ServiceOptions();
+        options.setBackpressure(Backpressure.BLOCK);
+        options.setWaterMarks(1024, 4096);
+        int port = serve("write", 300, options);
+        final Socket c = connect(port);
+        // Lines echoed to a client that never reads them
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] lines = new byte[64 * 1024];
+                Arrays.fill(lines, (byte) 'x');
+                for (int i = 63; i < lines.length; i += 64) {
+                    lines[i] = '\n';
+                }
+                try {
+                    OutputStream out = c.getOutputStream();
+                    for (int i = 0; i < 1024; i++) {
+                        out.write(lines);
+                    }
+                } catch (IOException e) {
+                    // Closed by the server, as expected
+                }
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        awaitCounters(1, 1, 0, 0, 0, 1);
+        writer.join(5000);
+        assertFalse(writer.isAlive(), "still writing");
+    }
+
+    /**
+     * Clients closing around their idle timeout, so that the wheel ending a
+     * connection races the connection ending itself: each must end once.
+     */
+    @Test
+    void expiryRacingACloseEndsTheConnectionOnce() throws Exception {
+        final int n = 40;
+        final int port = serve("idle", 200, new ServiceOptions());
+        final Random random = new Random(7);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final long linger = 100 + random.nextInt(200);   // Either side of it
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Socket c = new Socket(InetAddress.getLoopbackAddress(), port);
+                        try {
+                            c.setSoTimeout(5000);
+                            readLine(c.getInputStream());
+                            Thread.sleep(linger);
+                        } finally {
+                            c.close();
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+        assertEquals(0, failures.get());
+        // Every connection accepted is closed once, timed out or not
+        long[] got = counters();
+        for (long deadline = System.currentTimeMillis() + 5000;
+                got[1] < n && System.currentTimeMillis() < deadline; got = counters()) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(300);  // Any second end would have come by now
+        got = counters();
+        assertEquals(n, got[0]);
+        assertEquals(n, got[1], "closed " + got[1] + " of " + n);
+        assertTrue(got[2] <= n);
+    }
+}
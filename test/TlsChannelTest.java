@@ -0,0 +1,268 @@
+package Server;
+
+import Server.Services.Echo;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The TLS layer over a loopback connection, with a self-signed keystore made
+ * by keytool: the server side is a TlsChannel over a blocking SocketChannel,
+ * the client an SSLSocket trusting any certificate.
+ *
+ */
+public class TlsChannelTest {
+
+    private static final String PASSWORD = "secret";
+
+    @TempDir
+    static Path dir;
+    static SSLContext server;
+
+    private ServerSocketChannel listening;
+    private SocketChannel accepted;
+    private SSLSocket client;
+    private ServiceMetrics metrics;
+
+    @BeforeAll
+    static void keystore() throws Exception {
+        File keystore = dir.resolve("server.p12").toFile();
+        Process keytool = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool",
+                "-genkeypair", "-alias", "server", "-keyalg", "EC", "-dname", "CN=localhost",
+                "-validity", "2", "-keystore", keystore.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        assertTrue(keytool.waitFor(60, TimeUnit.SECONDS), "keytool timed out");
+        assertEquals(0, keytool.exitValue(), "keytool failed");
+        server = Tls.context(keystore.getPath(), PASSWORD);
+    }
+
+    /**
+     * A client context that trusts the self-signed certificate, speaking only
+     * the specified protocol.
+     */
+    static SSLContext client(String protocol) throws Exception {
+        SSLContext context = SSLContext.getInstance(protocol);
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String type) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String type) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+
+    @BeforeEach
+    void listen() throws IOException {
+        listening = ServerSocketChannel.open();
+        listening.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        metrics = new ServiceMetrics();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        disconnect();
+        listening.close();
+    }
+
+    private void disconnect() throws IOException {
+        // The server side first, or the client waits for its close_notify
+        if (accepted != null) {
+            accepted.close();
+        }
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    /**
+     * Connect a client, and have it start its handshake on a thread of its
+     * own while the server side runs its half.
+     */
+    private TlsChannel connect(SSLContext context) throws Exception {
+        client = (SSLSocket) context.getSocketFactory().createSocket(
+                InetAddress.getLoopbackAddress(), listening.socket().getLocalPort());
+        client.setSoTimeout(5000);
+        final SSLSocket c = client;
+        Thread handshake = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    c.startHandshake();
+                } catch (IOException e) {
+                }
+            }
+        };
+        handshake.start();
+        accepted = listening.accept();
+        SSLEngine engine = server.createSSLEngine();
+        engine.setUseClientMode(false);
+        TlsChannel tls = new TlsChannel(accepted, engine, metrics);
+        assertTrue(tls.handshake());
+        handshake.join(5000);
+        return tls;
+    }
+
+    private static String read(TlsChannel tls, int max) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(max);
+        int n = tls.read(b);
+        return n < 0 ? null : new String(b.array(), 0, n, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void handshakeThenEcho() throws Exception {
+        TlsChannel tls = connect(client("TLSv1.3"));
+        assertTrue(tls.isHandshaken());
+        assertEquals(1, metrics.handshakes.sum());
+        assertEquals(0, metrics.handshakeFailures.sum());
+        assertEquals(1, metrics.handshakeTime.getCount());
+
+        client.getOutputStream().write("ping".getBytes(StandardCharsets.US_ASCII));
+        client.getOutputStream().flush();
+        assertEquals("ping", read(tls, 64));
+        tls.write(ByteBuffer.wrap("pong".getBytes(StandardCharsets.US_ASCII)));
+        byte[] b = new byte[4];
+        new DataInputStream(client.getInputStream()).readFully(b);
+        assertEquals("pong", new String(b, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void tls12SessionIsResumed() throws Exception {
+        SSLContext context = client("TLSv1.2");
+        connect(context);
+        ServiceMetrics first = metrics;
+        disconnect();
+        // The client looks sessions up by host and port
+        metrics = new ServiceMetrics();
+        connect(context);
+        assertEquals(0, first.resumed.sum());
+        assertEquals(1, metrics.handshakes.sum());
+        assertEquals(1, metrics.resumed.sum());
+    }
+
+    @Test
+    void tls13SessionIsResumedWithATicket() throws Exception {
+        SSLContext context = client("TLSv1.3");
+        TlsChannel tls = connect(context);
+        // The ticket comes after the handshake: let the client read it
+        tls.write(ByteBuffer.wrap(new byte[]{'x'}));
+        assertEquals('x', client.getInputStream().read());
+        disconnect();
+        metrics = new ServiceMetrics();
+        connect(context);
+        assertEquals(1, metrics.resumed.sum());
+    }
+
+    @Test
+    void wholeRecordsAreBufferedInput() throws Exception {
+        TlsChannel tls = connect(client("TLSv1.3"));
+        assertFalse(tls.hasBufferedInput());
+        // Each write is a record of its own; both arrive before the read
+        OutputStream out = client.getOutputStream();
+        out.write('a');
+        out.flush();
+        out.write('b');
+        out.flush();
+        Thread.sleep(200);
+        assertEquals("a", read(tls, 1));
+        // The second record came in with the first, and is still encrypted
+        assertTrue(tls.hasBufferedInput());
+        assertEquals("b", read(tls, 1));
+        assertFalse(tls.hasBufferedInput());
+    }
+
+    @Test
+    void decryptedBytesAreBufferedInput() throws Exception {
+        TlsChannel tls = connect(client("TLSv1.3"));
+        client.getOutputStream().write("abc".getBytes(StandardCharsets.US_ASCII));
+        client.getOutputStream().flush();
+        assertEquals("a", read(tls, 1));
+        assertTrue(tls.hasBufferedInput());
+        assertEquals("bc", read(tls, 2));
+        assertFalse(tls.hasBufferedInput());
+    }
+
+    @Test
+    void closeOutboundSendsCloseNotify() throws Exception {
+        TlsChannel tls = connect(client("TLSv1.3"));
+        tls.closeOutbound();
+        assertFalse(tls.hasPendingOutput());
+        assertTrue(accepted.isOpen(), "closeOutbound() must leave the channel open");
+        // A close_notify is the end of the stream, not a reset
+        assertEquals(-1, client.getInputStream().read());
+        client.close();
+        assertEquals(null, read(tls, 64));
+    }
+
+    @Test
+    void handshakeTasksRunOffTheEventLoop() throws Throwable {
+        Server s = new Server(10, Engine.NIO);
+        try {
+            ServiceOptions options = new ServiceOptions();
+            options.setTls(server);
+            s.addService(new Echo(), 23481, options);
+            SSLContext context = client("TLSv1.3");
+            for (int i = 0; i < 4; i++) {
+                Socket c = context.getSocketFactory().createSocket(
+                        InetAddress.getLoopbackAddress(), 23481);
+                try {
+                    c.setSoTimeout(5000);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(
+                            c.getInputStream(), StandardCharsets.US_ASCII));
+                    in.readLine();
+                    in.readLine();
+                    c.getOutputStream().write(("line " + i + "\n.\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    c.getOutputStream().flush();
+                    assertEquals("> line " + i, in.readLine());
+                } finally {
+                    c.close();
+                }
+            }
+            StringWriter status = new StringWriter();
+            s.displayStats(new PrintWriter(status), false);
+            assertTrue(status.toString().contains("TLS 4 HANDSHAKES"), status.toString());
+            assertTrue(s.nioEngine.handshakers.getCompletedTaskCount() > 0);
+        } finally {
+            s.closeServer();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package Server.tools;
+
+import Server.Engine;
+import Server.LatencyHistogram;
+import Server.Server;
+import Server.ServiceRegistry;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is an end-to-end load generator for the Server. It opens a number of
+ * concurrent clients against a port, each with its own thread and socket, and
+ * has them make requests for a while, recording the latency of every request
+ * in a LatencyHistogram. It then prints the throughput and the latency
+ * percentiles, and exits with a non-zero status if any request failed or the
+ * 99th percentile is above the -max-p99 limit, so that a release can be gated
+ * on it.
+ *
+ * The workloads are:
+ * line: the line protocol of Reverse and Echo; each request is a line, and
+ * the answer ends with the "> " prompt.
+ * http: a GET to the HTTPMirror (or a FileService), over persistent
+ * connections, reconnecting when the server closes.
+ * connect: connect, read until the server closes, as for Time and UniqueID.
+ *
+ * Without -rate the clients run closed-loop: each sends its next request as
+ * soon as it has the answer to the last. With -rate they run open-loop: the
+ * requests are scheduled at a fixed total rate, and each latency is measured
+ * from when the request was due, not when it could be sent, so that a server
+ * that stalls is charged for all the requests it held up rather than for the
+ * few that were waiting (coordinated omission).
+ *
+ * With -service the tool starts its own Server on the port first, with the
+ * specified Engine, so the whole run stays in one process on loopback.
+ *
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = "Usage: java Server.tools.LoadGenerator -port <port>\n"
+            + "\t[-host <host>] [-workload line|http|connect] [-clients <n>]\n"
+            + "\t[-duration <seconds>] [-warmup <seconds>] [-rate <requests/second>]\n"
+            + "\t[-line <text>] [-path <path>] [-max-p99 <microseconds>]\n"
+            + "\t[-service <class> [-engine BLOCKING|NIO|VIRTUAL|POOLED]]";
+
+    private String host = null;
+    private int port = -1;
+    private String workload = "line";
+    private int clients = 16;
+    private long duration = 10;         // seconds
+    private long warmup = 2;            // seconds
+    private double rate = 0;            // requests per second; 0 for closed loop
+    private String line = "The quick brown fox jumps over the lazy dog";
+    private String path = "/load";
+    private double maxP99 = 0;          // microseconds; 0 for no limit
+    private String service = null;
+    private Engine engine = Engine.BLOCKING;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private volatile long measureFrom;  // System.nanoTime() when warmup ends
+    private volatile long end;          // System.nanoTime() when the run ends
+
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        try {
+            System.exit(generator.run());
+        } catch (Exception e) {
+            System.err.println("LoadGenerator: " + e);
+            System.exit(1);
+        }
+    }
+
+    private void parse(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+                if (option.equals("-host")) {
+                    host = value;
+                } else if (option.equals("-port")) {
+                    port = Integer.parseInt(value);
+                } else if (option.equals("-workload")) {
+                    workload = value;
+                } else if (option.equals("-clients")) {
+                    clients = Integer.parseInt(value);
+                } else if (option.equals("-duration")) {
+                    duration = Long.parseLong(value);
+                } else if (option.equals("-warmup")) {
+                    warmup = Long.parseLong(value);
+                } else if (option.equals("-rate")) {
+                    rate = Double.parseDouble(value);
+                } else if (option.equals("-line")) {
+                    line = value;
+                } else if (option.equals("-path")) {
+                    path = value;
+                } else if (option.equals("-max-p99")) {
+                    maxP99 = Double.parseDouble(value);
+                } else if (option.equals("-service")) {
+                    service = value;
+                } else if (option.equals("-engine")) {
+                    engine = Engine.valueOf(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number: " + e.getMessage());
+        }
+        if (port < 0) {
+            throw new IllegalArgumentException("No port");
+        }
+        if (!workload.equals("line") && !workload.equals("http")
+                && !workload.equals("connect")) {
+            throw new IllegalArgumentException("Unknown workload " + workload);
+        }
+        if (clients < 1 || duration < 1 || warmup < 0 || rate < 0) {
+            throw new IllegalArgumentException("Bad clients, duration, warmup or rate");
+        }
+    }
+
+    /**
+     * Run the clients, print the results.
+     *
+     * @return the exit status
+     */
+    private int run() throws Exception {
+        if (service != null) {
+            Server server = new Server(clients * 2, engine);
+            server.addService(ServiceRegistry.getShared().create(service, null), port);
+            Thread.sleep(200);  // Let the Listener start
+        }
+        final InetSocketAddress address = new InetSocketAddress(
+                host != null ? InetAddress.getByName(host) : InetAddress.getLoopbackAddress(),
+                port);
+        long start = System.nanoTime();
+        measureFrom = start + warmup * 1000000000L;
+        end = measureFrom + duration * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            // Spread the clients' schedules evenly over one interval
+            final long interval = rate > 0 ? (long) (1e9 * clients / rate) : 0;
+            final long first = start + interval * i / clients;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new Client(address).run(first, interval);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "LoadGenerator:" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        done.await();
+
+        long requests = histogram.getCount();
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out), true);
+        out.printf("%s ON %s WITH %d CLIENTS, %s, %d S%n", workload.toUpperCase(), address,
+                clients, rate > 0 ? "OPEN LOOP AT " + rate + "/S" : "CLOSED LOOP", duration);
+        out.printf("REQUESTS %d ERRORS %d THROUGHPUT %.1f/S%n",
+                requests, errors.sum(), requests / (double) duration);
+        histogram.print(out);
+        if (errors.sum() > 0) {
+            return 1;
+        }
+        if (maxP99 > 0 && histogram.getValueAtPercentile(99) / 1000.0 > maxP99) {
+            out.printf("P99 ABOVE %.1f US%n", maxP99);
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * One client: a thread, and the connection it is using, if any.
+     */
+    private final class Client {
+
+        private final InetSocketAddress address;
+        private final byte[] request;
+        private final byte[] buffer = new byte[8192];
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private int count;          // Bytes in buffer
+        private int offset;         // Of the first unconsumed byte in buffer
+
+        Client(InetSocketAddress address) {
+            this.address = address;
+            String r = workload.equals("line") ? line + "\n"
+                    : "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            this.request = r.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        void run(long next, long interval) {
+            while (true) {
+                long now = System.nanoTime();
+                if (interval > 0) {
+                    if (next >= end) {
+                        break;
+                    }
+                    // Wait until the request is due; if it is late, send it
+                    // now, and charge the wait to its latency
+                    while (now < next) {
+                        long wait = next - now;
+                        if (wait > 2000000) {
+                            sleep((wait - 1000000) / 1000000);
+                        } else {
+                            Thread.yield();
+                        }
+                        now = System.nanoTime();
+                    }
+                } else {
+                    if (now >= end) {
+                        break;
+                    }
+                    next = now;
+                }
+                try {
+                    request();
+                    long done = System.nanoTime();
+                    if (next >= measureFrom) {
+                        histogram.record(done - next);
+                    }
+                } catch (IOException e) {
+                    if (next >= measureFrom) {
+                        errors.increment();
+                    }
+                    close();
+                }
+                next += interval;
+            }
+            close();
+        }
+
+        private void request() throws IOException {
+            if (workload.equals("connect")) {
+                connect();
+                while (in.read(buffer) >= 0) {
+                }
+                close();
+                return;
+            }
+            if (socket == null) {
+                connect();
+                if (workload.equals("line")) {
+                    awaitPrompt();   // The welcome message
+                }
+            }
+            out.write(request);
+            if (workload.equals("line")) {
+                awaitPrompt();
+            } else if (!awaitResponse()) {
+                close();
+            }
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+            count = 0;
+            offset = 0;
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+                socket = null;
+            }
+        }
+
+        /**
+         * The next byte from the server.
+         */
+        private int next() throws IOException {
+            if (offset == count) {
+                count = in.read(buffer);
+                offset = 0;
+                if (count < 0) {
+                    count = 0;
+                    throw new EOFException("Connection closed by the server");
+                }
+            }
+            return buffer[offset++];
+        }
+
+        private void awaitPrompt() throws IOException {
+            int previous = -1;
+            for (int b; !((b = next()) == ' ' && previous == '>'); previous = b) {
+            }
+        }
+
+        /**
+         * Read a response, headers and Content-Length body.
+         *
+         * @return whether the connection may be used again
+         */
+        private boolean awaitResponse() throws IOException {
+            StringBuilder head = new StringBuilder();
+            int n;
+            while ((n = head.length()) < 4 || head.charAt(n - 1) != '\n'
+                    || head.charAt(n - 2) != '\r' || head.charAt(n - 3) != '\n') {
+                head.append((char) next());
+            }
+            String h = head.toString().toLowerCase();
+            int i = h.indexOf("\r\ncontent-length:");
+            long length = 0;
+            if (i >= 0) {
+                int eol = h.indexOf('\r', i + 2);
+                length = Long.parseLong(h.substring(i + 17, eol).trim());
+            }
+            for (long j = 0; j < length; j++) {
+                next();
+            }
+            return !h.contains("\r\nconnection: close");
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}